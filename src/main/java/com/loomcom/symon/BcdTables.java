@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+/**
+ * Lookup tables for decimal mode ADC and SBC.
+ * <p/>
+ * Each table has one entry for every combination of carry, accumulator and
+ * operand. An entry holds the result byte in bits 0-7, and the resulting
+ * carry, zero, overflow and negative flags in bits 8-15, using the same bit
+ * positions as the processor status register.
+ * <p/>
+ * The NMOS 6502 leaves N and V meaningless in decimal mode, and the simulator
+ * has always cleared them. The 65C02 fixed this so that N and Z reflect the
+ * decimal result byte, and its tables do the same.
+ */
+public class BcdTables implements InstructionTable {
+
+    private static final int TABLE_SIZE = 0x20000;
+
+    private final int[] adc = new int[TABLE_SIZE];
+    private final int[] sbc = new int[TABLE_SIZE];
+
+    // The tables are only built the first time each variant is used.
+    private static class NmosHolder {
+        static final BcdTables TABLES = new BcdTables(false);
+    }
+
+    private static class CmosHolder {
+        static final BcdTables TABLES = new BcdTables(true);
+    }
+
+    /**
+     * Return the decimal mode tables for the given CPU behavior.
+     */
+    public static BcdTables forBehavior(CpuBehavior behavior) {
+        if (behavior == CpuBehavior.CMOS) {
+            return CmosHolder.TABLES;
+        }
+        return NmosHolder.TABLES;
+    }
+
+    private BcdTables(boolean cmos) {
+        for (int carry = 0; carry < 2; carry++) {
+            for (int acc = 0; acc < 0x100; acc++) {
+                for (int operand = 0; operand < 0x100; operand++) {
+                    int i = index(acc, operand, carry != 0);
+                    adc[i] = addDecimal(acc, operand, carry, cmos);
+                    sbc[i] = subtractDecimal(acc, operand, carry, cmos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up a decimal mode Add with Carry.
+     *
+     * @return The table entry, holding both the result and the new flags.
+     */
+    public int adc(int acc, int operand, boolean carry) {
+        return adc[index(acc, operand, carry)];
+    }
+
+    /**
+     * Look up a decimal mode Subtract with Carry.
+     *
+     * @return The table entry, holding both the result and the new flags.
+     */
+    public int sbc(int acc, int operand, boolean carry) {
+        return sbc[index(acc, operand, carry)];
+    }
+
+    /**
+     * @return The result byte of a table entry.
+     */
+    public static int result(int entry) {
+        return entry & 0xff;
+    }
+
+    /**
+     * @return The processor status bits of a table entry.
+     */
+    public static int flags(int entry) {
+        return entry >>> 8;
+    }
+
+    private static int index(int acc, int operand, boolean carry) {
+        return (carry ? 0x10000 : 0) | ((acc & 0xff) << 8) | (operand & 0xff);
+    }
+
+    private static int addDecimal(int acc, int operand, int carry, boolean cmos) {
+        int l, h, result;
+        l = (acc & 0x0f) + (operand & 0x0f) + carry;
+        if ((l & 0xff) > 9) l += 6;
+        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+        if ((h & 0xff) > 9) h += 6;
+        result = ((l & 0x0f) | (h << 4)) & 0xff;
+        return entry(result, h > 15, result == 0, cmos);
+    }
+
+    private static int subtractDecimal(int acc, int operand, int carry, boolean cmos) {
+        int l, h, result;
+        l = (acc & 0x0f) - (operand & 0x0f) - (carry == 0 ? 1 : 0);
+        if ((l & 0x10) != 0) l -= 6;
+        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+        if ((h & 0x10) != 0) h -= 6;
+        result = (l & 0x0f) | (h << 4);
+        // The NMOS zero test deliberately looks at the unmasked result, as it
+        // always has. The 65C02 sets Z from the result byte.
+        return entry(result & 0xff, (h & 0xff) < 15, cmos ? (result & 0xff) == 0 : result == 0, cmos);
+    }
+
+    private static int entry(int result, boolean carry, boolean zero, boolean cmos) {
+        int flags = 0;
+        if (carry) {
+            flags |= Cpu.P_CARRY;
+        }
+        if (zero) {
+            flags |= Cpu.P_ZERO;
+        }
+        if (cmos && (result & 0x80) != 0) {
+            flags |= Cpu.P_NEGATIVE;
+        }
+        return (flags << 8) | result;
+    }
+}
@@ -24,15 +24,17 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
 
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -40,8 +42,25 @@ import java.util.TreeSet;
  */
 public class Bus {
 
+    /**
+     * Notified of each access to an address where no device is mapped,
+     * while open bus behavior is enabled.
+     */
+    public interface FaultListener {
+        public void unmappedRead(int address);
+
+        public void unmappedWrite(int address, int value);
+    }
+
     // The default address at which to load programs
     public static int DEFAULT_LOAD_ADDRESS = 0x0200;
+
+    // The zero page and the stack, which the CPU may access directly.
+    public static final int LOW_PAGES_SIZE = 0x200;
+
+    // Dirty pages are tracked in units of 256 bytes.
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE  = 1 << PAGE_SHIFT;
 	
     // By default, our bus starts at 0, and goes up to 64K
     private int startAddress = 0x0000;
@@ -50,11 +69,48 @@ public class Bus {
     // The CPU
     private Cpu cpu;
 
-    // Ordered sets of IO devices, associated with their priority
+    // Ordered sets of IO devices, associated with their priority, lowest first
     private Map<Integer, SortedSet<Device>> deviceMap;
     
     // an array for quick lookup of adresses, brute-force style
     private Device[] deviceAddressArray;
+
+    // Optional per-address access counters. Null unless a heatmap is attached.
+    private MemoryHeatmap heatmap;
+
+    // Null unless an observer is attached. With several, an ObserverGroup.
+    private BusObserver observer;
+    private final List<BusObserver> observers = new ArrayList<BusObserver>();
+
+    // Number of writes made outside the stack page, used to detect idle loops.
+    private long writeCount;
+
+    // One bit per page written since the dirty pages were last cleared.
+    private final long[] dirtyPages;
+    // Counts the times the dirty pages have been cleared.
+    private long dirtyPageEpoch;
+
+    // If true, unmapped addresses read as openBusValue instead of throwing.
+    private boolean openBus;
+    private int openBusValue = 0xff;
+    private long unmappedReadCount;
+    private long unmappedWriteCount;
+    private FaultListener faultListener;
+
+    // Instructions the CPU has already decoded, by address.
+    private final DecodedInstructionCache decodeCache;
+    private boolean decodeCacheEnabled = true;
+
+    // Undo journal for running backwards, if reverse debugging is enabled.
+    private ReverseJournal reverseJournal;
+
+    // Session being recorded or replayed, if any.
+    private volatile SessionRecorder sessionRecorder;
+    private volatile SessionReplayer sessionReplayer;
+
+    // Lets a thread sleep until a device or the UI has something for the CPU to do.
+    private final Object activityMonitor = new Object();
+    private boolean activitySignalled;
     
 
     public Bus(int size) {
@@ -62,9 +118,11 @@ public class Bus {
     }
 
     public Bus(int startAddress, int endAddress) {
-        this.deviceMap = new HashMap<Integer, SortedSet<Device>>();
+        this.deviceMap = new TreeMap<Integer, SortedSet<Device>>();
         this.startAddress = startAddress;
         this.endAddress = endAddress;
+        this.dirtyPages = new long[(getPageCount() + 63) >>> 6];
+        this.decodeCache = new DecodedInstructionCache(endAddress - startAddress + 1);
     }
 
     public int startAddress() {
@@ -78,15 +136,45 @@ public class Bus {
     private void buildDeviceAddressArray() {
         int size = (this.endAddress - this.startAddress) + 1;
         deviceAddressArray = new Device[size];
-   
-        // getDevices() provides an OrderedSet with devices ordered by priorities
-        for(Device device : getDevices()) {
-            MemoryRange range = device.getMemoryRange();
-            for(int address = range.startAddress; address <= range.endAddress; ++address) {
-                deviceAddressArray[address - this.startAddress] = device;
+        mapDevices(startAddress, endAddress);
+
+        decodeCache.clear();
+        lowPagesChanged();
+    }
+
+    /**
+     * Map the devices overlapping addresses lo to hi, layered by priority so
+     * that higher priority devices cover lower ones.
+     */
+    private void mapDevices(int lo, int hi) {
+        for (SortedSet<Device> deviceSet : deviceMap.values()) {
+            for (Device device : deviceSet) {
+                MemoryRange range = device.getMemoryRange();
+                int from = Math.max(lo, range.startAddress);
+                int to = Math.min(hi, range.endAddress);
+                if (from <= to) {
+                    Arrays.fill(deviceAddressArray, from - startAddress, to - startAddress + 1, device);
+                }
             }
         }
-        
+    }
+
+    /**
+     * Point the addresses of a device that was just added or removed at
+     * whichever devices now cover them, leaving the rest of the bus alone.
+     */
+    private void updateDeviceAddressArray(MemoryRange changed) {
+        if (deviceAddressArray == null) {
+            buildDeviceAddressArray();
+            return;
+        }
+        int lo = changed.startAddress();
+        int hi = changed.endAddress();
+        Arrays.fill(deviceAddressArray, lo - startAddress, hi - startAddress + 1, null);
+        mapDevices(lo, hi);
+
+        decodeCache.invalidate(lo - startAddress, hi - startAddress);
+        lowPagesChanged();
     }
 
     /**
@@ -115,7 +203,7 @@ public class Bus {
         
         device.setBus(this);
         deviceSet.add(device);
-        buildDeviceAddressArray();
+        updateDeviceAddressArray(range);
     }
     
     /**
@@ -138,12 +226,96 @@ public class Bus {
         for(SortedSet<Device> deviceSet : deviceMap.values()) {
             deviceSet.remove(device);
         }
-        buildDeviceAddressArray();
+        updateDeviceAddressArray(device.getMemoryRange());
     }
 
     public void addCpu(Cpu cpu) {
         this.cpu = cpu;
         cpu.setBus(this);
+        decodeCache.clear();
+    }
+
+    /**
+     * Returns the RAM behind the zero page and stack, so that the CPU can
+     * access them without looking up the device on every access. This is
+     * only possible if addresses $0000-$01FF are all backed by the same
+     * writable {@link Memory}, and nothing needs to see each access, such as
+     * a heatmap, an observer or a reverse journal.
+     *
+     * @return The memory array, indexed by address, or null if the CPU must
+     *         go through the bus.
+     */
+    byte[] getLowPages() {
+        if (deviceAddressArray == null || startAddress != 0 ||
+            deviceAddressArray.length < LOW_PAGES_SIZE ||
+            heatmap != null || observer != null || reverseJournal != null) {
+            return null;
+        }
+        Device d = deviceAddressArray[0];
+        if (!(d instanceof Memory) || ((Memory) d).isReadOnly() || d.getMemoryRange().startAddress() != 0) {
+            return null;
+        }
+        for (int i = 1; i < LOW_PAGES_SIZE; i++) {
+            if (deviceAddressArray[i] != d) {
+                return null;
+            }
+        }
+        return ((Memory) d).getDmaAccess();
+    }
+
+    private void lowPagesChanged() {
+        if (cpu != null) {
+            cpu.setLowPages(getLowPages());
+        }
+    }
+
+    /**
+     * Account for a byte the CPU wrote directly to the array returned by
+     * {@link #getLowPages()}, as {@link #write(int, int)} would have.
+     */
+    void lowPageWritten(int address) {
+        if ((address & 0xff00) != 0x0100) {
+            writeCount++;
+        }
+        dirtyPages[0] |= 1L << (address >>> PAGE_SHIFT);
+        decodeCache.written(address);
+    }
+
+    /**
+     * @return The cache of instructions the CPU has already decoded.
+     */
+    public DecodedInstructionCache getDecodeCache() {
+        return decodeCache;
+    }
+
+    public boolean isDecodeCacheEnabled() {
+        return decodeCacheEnabled;
+    }
+
+    /**
+     * Turn the decoded instruction cache on or off. Even when it is on, the
+     * cache stays off while a heatmap or an observer is attached.
+     */
+    public void setDecodeCacheEnabled(boolean enabled) {
+        this.decodeCacheEnabled = enabled;
+        accessTrackingChanged();
+    }
+
+    /**
+     * Returns true if a range of addresses is all ordinary memory, which
+     * can be read without side effects.
+     */
+    boolean isMemory(int address, int length) {
+        int offset = address - startAddress;
+        if (offset < 0 || offset + length > deviceAddressArray.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!(deviceAddressArray[offset + i] instanceof Memory)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -168,30 +340,262 @@ public class Bus {
     public int read(int address) throws MemoryAccessException {
         Device d = deviceAddressArray[address - this.startAddress];
         if(d != null) {
+            if (heatmap != null) {
+                heatmap.countRead(address - this.startAddress);
+            }
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
-            return d.read(devAddr) & 0xff;
+            int value = d.read(devAddr) & 0xff;
+            if (observer != null) {
+                observer.read(address, value, cpu == null ? 0 : cpu.getCycleCount());
+            }
+            return value;
         }
-        
-        throw new MemoryAccessException("Bus read failed. No device at address " + String.format("$%04X", address));
+
+        return unmappedRead("read", address);
+    }
+
+    /**
+     * Read a byte for a memory viewer or debugger. Unlike {@link #read(int)},
+     * this is not counted by a heatmap or seen by an observer, and only
+     * works for devices that can be read without side effects, such as
+     * memory.
+     *
+     * @throws MemoryAccessException if no device is mapped at the address,
+     *                               or its device can't be peeked at.
+     */
+    public int peek(int address) throws MemoryAccessException {
+        Device d = deviceAddressArray[address - this.startAddress];
+        if (d == null) {
+            throw new MemoryAccessException("Bus peek failed. No device at address " +
+                                            String.format("$%04X", address));
+        }
+        return d.peek(address - d.getMemoryRange().startAddress()) & 0xff;
+    }
+
+    /**
+     * Read an instruction opcode on behalf of the CPU. This behaves exactly
+     * like {@link #read(int)}, except that an attached heatmap counts the
+     * access as an execution rather than a read.
+     */
+    public int fetch(int address) throws MemoryAccessException {
+        Device d = deviceAddressArray[address - this.startAddress];
+        if(d != null) {
+            if (heatmap != null) {
+                heatmap.countExecute(address - this.startAddress);
+            }
+            MemoryRange range = d.getMemoryRange();
+            int devAddr = address - range.startAddress();
+            int value = d.read(devAddr) & 0xff;
+            if (observer != null) {
+                observer.fetch(address, value, cpu == null ? 0 : cpu.getCycleCount());
+            }
+            return value;
+        }
+
+        return unmappedRead("fetch", address);
     }
 
     public void write(int address, int value) throws MemoryAccessException {
         Device d = deviceAddressArray[address - this.startAddress];
         if(d != null) {
+            if (heatmap != null) {
+                heatmap.countWrite(address - this.startAddress);
+            }
+            if ((address & 0xff00) != 0x0100) {
+                writeCount++;
+            }
+            int offset = address - this.startAddress;
+            dirtyPages[offset >>> (PAGE_SHIFT + 6)] |= 1L << (offset >>> PAGE_SHIFT);
+            decodeCache.written(offset);
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
+            if (reverseJournal != null) {
+                reverseJournal.memoryWritten(address, d, devAddr);
+            }
             d.write(devAddr, value);
+            if (observer != null) {
+                observer.write(address, value, cpu == null ? 0 : cpu.getCycleCount());
+            }
             return;
         }
-        
-        throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
+
+        if (!openBus) {
+            throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
+        }
+        unmappedWriteCount++;
+        if (faultListener != null) {
+            faultListener.unmappedWrite(address, value);
+        }
+    }
+
+    /**
+     * Copy a block of bytes out of the bus, with one copy per device that
+     * the block spans. Unlike {@link #read(int)}, this is not counted by a
+     * heatmap.
+     *
+     * @param address The first address to read.
+     * @param buffer  The array to copy into.
+     * @param offset  The position in the array of the first byte.
+     * @param length  The number of bytes to copy.
+     */
+    public void readBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        checkBlock(address, length);
+        int end = address + length;
+        while (address < end) {
+            Device d = deviceAddressArray[address - this.startAddress];
+            int run = deviceRun(d, address, end);
+            if (d != null) {
+                d.readBlock(address - d.getMemoryRange().startAddress(), buffer, offset, run);
+            } else {
+                for (int i = 0; i < run; i++) {
+                    buffer[offset + i] = (byte) unmappedRead("read", address + i);
+                }
+            }
+            address += run;
+            offset += run;
+        }
+    }
+
+    /**
+     * Copy a block of bytes onto the bus, with one copy per device that the
+     * block spans, as when loading a program or by a DMA device. Cached
+     * instructions and dirty pages are updated as for {@link #write(int, int)},
+     * and the block is journaled if reverse debugging is enabled, but it is
+     * not counted by a heatmap or the write counter.
+     *
+     * @param address The first address to write.
+     * @param buffer  The array to copy from.
+     * @param offset  The position in the array of the first byte.
+     * @param length  The number of bytes to copy.
+     */
+    public void writeBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        checkBlock(address, length);
+        if (length == 0) {
+            return;
+        }
+        int end = address + length;
+        markDirty(address, end - 1);
+        while (address < end) {
+            Device d = deviceAddressArray[address - this.startAddress];
+            int run = deviceRun(d, address, end);
+            if (d != null) {
+                int devAddr = address - d.getMemoryRange().startAddress();
+                if (reverseJournal != null) {
+                    for (int i = 0; i < run; i++) {
+                        reverseJournal.memoryWritten(address + i, d, devAddr + i);
+                    }
+                }
+                d.writeBlock(devAddr, buffer, offset, run);
+            } else {
+                for (int i = 0; i < run; i++) {
+                    write(address + i, buffer[offset + i] & 0xff);
+                }
+            }
+            address += run;
+            offset += run;
+        }
+    }
+
+    private void checkBlock(int address, int length) throws MemoryAccessException {
+        if (length < 0 || address < startAddress || address + length - 1 > endAddress) {
+            throw new MemoryAccessException("Block of " + length + " bytes at " +
+                                            String.format("$%04X", address) + " is not on the bus.");
+        }
+    }
+
+    /**
+     * @return The number of addresses from address up to end that are all
+     *         mapped to the same device, or all unmapped.
+     */
+    private int deviceRun(Device d, int address, int end) {
+        if (d != null) {
+            return Math.min(end, d.endAddress() + 1) - address;
+        }
+        int next = address + 1;
+        while (next < end && deviceAddressArray[next - this.startAddress] == null) {
+            next++;
+        }
+        return next - address;
+    }
+
+    /**
+     * Handle a read from an address where no device is mapped. This is kept
+     * out of line, so that the common case stays small enough to inline.
+     */
+    private int unmappedRead(String operation, int address) throws MemoryAccessException {
+        if (!openBus) {
+            throw new MemoryAccessException("Bus " + operation + " failed. No device at address " +
+                                            String.format("$%04X", address));
+        }
+        unmappedReadCount++;
+        if (faultListener != null) {
+            faultListener.unmappedRead(address);
+        }
+        return openBusValue;
+    }
+
+    /**
+     * Choose what happens when the CPU accesses an address where no device
+     * is mapped. By default, a {@link MemoryAccessException} is thrown. With
+     * open bus behavior, reads return {@link #getOpenBusValue()} and writes
+     * are ignored, as on real hardware; both are counted, and reported to
+     * the fault listener if there is one.
+     */
+    public void setOpenBus(boolean openBus) {
+        this.openBus = openBus;
+    }
+
+    public boolean isOpenBus() {
+        return openBus;
+    }
+
+    /**
+     * @param value The value read from unmapped addresses with open bus behavior.
+     */
+    public void setOpenBusValue(int value) {
+        this.openBusValue = value & 0xff;
+    }
+
+    public int getOpenBusValue() {
+        return openBusValue;
+    }
+
+    public void setFaultListener(FaultListener faultListener) {
+        this.faultListener = faultListener;
+    }
+
+    /**
+     * @return The number of reads from unmapped addresses with open bus behavior.
+     */
+    public long getUnmappedReadCount() {
+        return unmappedReadCount;
+    }
+
+    /**
+     * @return The number of writes to unmapped addresses with open bus behavior.
+     */
+    public long getUnmappedWriteCount() {
+        return unmappedWriteCount;
+    }
+
+    /**
+     * Put back a byte of RAM on behalf of a {@link ReverseJournal}. Unlike
+     * {@link #write(int, int)}, this is not counted or journaled.
+     */
+    void restoreByte(int address, int value) throws MemoryAccessException {
+        int offset = address - this.startAddress;
+        Device d = deviceAddressArray[offset];
+        dirtyPages[offset >>> (PAGE_SHIFT + 6)] |= 1L << (offset >>> PAGE_SHIFT);
+        decodeCache.written(offset);
+        d.write(address - d.getMemoryRange().startAddress(), value);
     }
 
     public void assertIrq() {
         if (cpu != null) {
             cpu.assertIrq();
         }
+        signalActivity();
     }
 
     public void clearIrq() {
@@ -204,6 +608,270 @@ public class Bus {
         if (cpu != null) {
             cpu.assertNmi();
         }
+        signalActivity();
+    }
+
+    /**
+     * Assert the IRQ line of one interrupt source, on behalf of a device.
+     * The CPU sees an IRQ for as long as any source holds its line asserted.
+     * <p/>
+     * Device lines are not part of a session recording: a replayed session
+     * drives the devices the same way, and they raise their lines again.
+     * Interrupts from outside the machine go through {@link #injectIrq(int)}.
+     *
+     * @param source The interrupt source, from 0 to {@link InterruptLines#SOURCES} - 1.
+     */
+    public void assertIrq(int source) {
+        if (cpu != null) {
+            cpu.getInterruptLines().raiseIrq(source);
+        }
+        signalActivity();
+    }
+
+    public void clearIrq(int source) {
+        if (cpu != null) {
+            cpu.getInterruptLines().clearIrq(source);
+        }
+    }
+
+    /**
+     * Assert the NMI line of one interrupt source, on behalf of a device. An
+     * NMI is latched when the first source asserts its line, and not again
+     * until all have cleared it.
+     *
+     * @param source The interrupt source, from 0 to {@link InterruptLines#SOURCES} - 1.
+     */
+    public void assertNmi(int source) {
+        if (cpu != null) {
+            cpu.getInterruptLines().raiseNmi(source);
+        }
+        signalActivity();
+    }
+
+    public void clearNmi(int source) {
+        if (cpu != null) {
+            cpu.getInterruptLines().clearNmi(source);
+        }
+    }
+
+    /**
+     * Assert an IRQ line from outside the machine, such as the UI or a test
+     * harness. Unlike {@link #assertIrq(int)}, this is an input: it is
+     * recorded in a session log, and ignored while a session is replayed,
+     * since the replayer injects it again from the log.
+     *
+     * @param source The interrupt source, from 0 to {@link InterruptLines#SOURCES} - 1.
+     */
+    public void injectIrq(int source) {
+        if (sessionReplayer != null) {
+            return;
+        }
+        if (sessionRecorder != null) {
+            sessionRecorder.interrupt(SessionRecorder.IRQ_RAISE, source);
+        }
+        assertIrq(source);
+    }
+
+    /**
+     * Clear an IRQ line asserted with {@link #injectIrq(int)}.
+     */
+    public void retractIrq(int source) {
+        if (sessionReplayer != null) {
+            return;
+        }
+        if (sessionRecorder != null) {
+            sessionRecorder.interrupt(SessionRecorder.IRQ_CLEAR, source);
+        }
+        clearIrq(source);
+    }
+
+    /**
+     * Assert an NMI line from outside the machine. See {@link #injectIrq(int)}.
+     */
+    public void injectNmi(int source) {
+        if (sessionReplayer != null) {
+            return;
+        }
+        if (sessionRecorder != null) {
+            sessionRecorder.interrupt(SessionRecorder.NMI_RAISE, source);
+        }
+        assertNmi(source);
+    }
+
+    /**
+     * Clear an NMI line asserted with {@link #injectNmi(int)}.
+     */
+    public void retractNmi(int source) {
+        if (sessionReplayer != null) {
+            return;
+        }
+        if (sessionRecorder != null) {
+            sessionRecorder.interrupt(SessionRecorder.NMI_CLEAR, source);
+        }
+        clearNmi(source);
+    }
+
+    /**
+     * @return The recorder logging inputs to this bus, or null if none.
+     */
+    public SessionRecorder getSessionRecorder() {
+        return sessionRecorder;
+    }
+
+    public void setSessionRecorder(SessionRecorder recorder) {
+        this.sessionRecorder = recorder;
+    }
+
+    /**
+     * @return The replayer supplying inputs to this bus, or null if none.
+     *         While a session is being replayed, devices should take their
+     *         input from it instead of from the host.
+     */
+    public SessionReplayer getSessionReplayer() {
+        return sessionReplayer;
+    }
+
+    public void setSessionReplayer(SessionReplayer replayer) {
+        this.sessionReplayer = replayer;
+    }
+
+    /**
+     * Returns the number of writes made through the bus, not counting writes
+     * to the 6502 stack page. The stack page is left out so that a loop which
+     * calls a subroutine can still be recognized as idle.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return The number of pages in the address space of the bus.
+     */
+    public int getPageCount() {
+        return ((endAddress - startAddress) >>> PAGE_SHIFT) + 1;
+    }
+
+    /**
+     * Returns true if anything has been written to the given page since the
+     * dirty pages were last cleared. Pages are numbered from the start
+     * address of the bus.
+     */
+    public boolean isPageDirty(int page) {
+        return (dirtyPages[page >>> 6] & (1L << page)) != 0;
+    }
+
+    /**
+     * @return The number of pages written since the dirty pages were last cleared.
+     */
+    public int getDirtyPageCount() {
+        int count = 0;
+        for (long bits : dirtyPages) {
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /**
+     * @return A copy of the dirty page bitmap, with one bit for each page.
+     */
+    public long[] getDirtyPages() {
+        return dirtyPages.clone();
+    }
+
+    /**
+     * Replace the dirty page bitmap, for example after restoring a snapshot
+     * that differs from its base in the given pages.
+     */
+    public void setDirtyPages(long[] pages) {
+        System.arraycopy(pages, 0, dirtyPages, 0, dirtyPages.length);
+    }
+
+    /**
+     * Mark pages as dirty that were changed without going through the bus,
+     * such as memory filled or loaded directly by the simulator. Any
+     * instructions cached from them are forgotten.
+     *
+     * @param start The first address changed.
+     * @param end   The last address changed.
+     */
+    public void markDirty(int start, int end) {
+        int first = (Math.max(start, startAddress) - startAddress) >>> PAGE_SHIFT;
+        int last = (Math.min(end, endAddress) - startAddress) >>> PAGE_SHIFT;
+        for (int page = first; page <= last; page++) {
+            dirtyPages[page >>> 6] |= 1L << page;
+        }
+        decodeCache.invalidate(Math.max(start, startAddress) - startAddress,
+                               Math.min(end, endAddress) - startAddress);
+    }
+
+    /**
+     * Start tracking dirty pages afresh.
+     *
+     * @return The new dirty page epoch. See {@link #getDirtyPageEpoch()}.
+     */
+    public long clearDirtyPages() {
+        Arrays.fill(dirtyPages, 0L);
+        return ++dirtyPageEpoch;
+    }
+
+    /**
+     * Returns the number of times the dirty pages have been cleared. Anything
+     * relying on the dirty pages being relative to a particular point in time
+     * can compare this with the value it saw when it cleared them.
+     */
+    public long getDirtyPageEpoch() {
+        return dirtyPageEpoch;
+    }
+
+    /**
+     * Wake up any thread waiting in {@link #awaitActivity(long)}. Devices and
+     * the UI call this when they have new input or an interrupt for the CPU.
+     */
+    public void signalActivity() {
+        synchronized (activityMonitor) {
+            activitySignalled = true;
+            activityMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until {@link #signalActivity()} is called, or the timeout expires.
+     * Returns immediately if activity has been signalled since the last wait.
+     *
+     * @param timeoutNanos The maximum time to wait, in nanoseconds.
+     * @return True if activity was signalled, false if the wait timed out.
+     */
+    public boolean awaitActivity(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (activityMonitor) {
+            try {
+                long remaining = timeoutNanos;
+                while (!activitySignalled && remaining > 0) {
+                    activityMonitor.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            boolean signalled = activitySignalled;
+            activitySignalled = false;
+            return signalled;
+        }
+    }
+
+    /**
+     * Returns how long until the next device on the bus changes state by
+     * itself, for example when a simulated baud rate delay runs out.
+     *
+     * @return The time in nanoseconds, or Long.MAX_VALUE if no device has a pending event.
+     */
+    public long nanosUntilNextDeviceEvent() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (Device device : getDevices()) {
+            next = Math.min(next, device.nanosUntilNextEvent(now));
+        }
+        return next;
     }
 
     public void clearNmi() {
@@ -233,11 +901,105 @@ public class Bus {
         return cpu;
     }
 
+    /**
+     * Attach a heatmap to count every read, write and instruction fetch
+     * made through the bus, or detach it by passing null.
+     *
+     * @param heatmap The heatmap, sized to cover the whole bus, or null.
+     */
+    public void setHeatmap(MemoryHeatmap heatmap) {
+        if (heatmap != null && heatmap.size() != (endAddress - startAddress) + 1) {
+            throw new IllegalArgumentException("Heatmap size does not match the address range of the bus");
+        }
+        this.heatmap = heatmap;
+        accessTrackingChanged();
+    }
+
+    /**
+     * Attach an observer, to see every read, write and instruction fetch
+     * made through the bus.
+     */
+    public void addObserver(BusObserver observer) {
+        observers.add(observer);
+        observersChanged();
+    }
+
+    public void removeObserver(BusObserver observer) {
+        observers.remove(observer);
+        observersChanged();
+    }
+
+    private void observersChanged() {
+        if (observers.isEmpty()) {
+            observer = null;
+        } else if (observers.size() == 1) {
+            observer = observers.get(0);
+        } else {
+            observer = new ObserverGroup(observers.toArray(new BusObserver[observers.size()]));
+        }
+        accessTrackingChanged();
+    }
+
+    /**
+     * A heatmap or an observer must see every access, so while either is
+     * attached, instructions must not come from the cache, and the zero
+     * page and stack must not be accessed directly.
+     */
+    private void accessTrackingChanged() {
+        decodeCache.setEnabled(decodeCacheEnabled && heatmap == null && observer == null);
+        lowPagesChanged();
+    }
+
+    /**
+     * Passes each access on to several observers.
+     */
+    private static class ObserverGroup implements BusObserver {
+        private final BusObserver[] observers;
+
+        ObserverGroup(BusObserver[] observers) {
+            this.observers = observers;
+        }
+
+        public void read(int address, int value, long cycle) {
+            for (BusObserver o : observers) {
+                o.read(address, value, cycle);
+            }
+        }
+
+        public void write(int address, int value, long cycle) {
+            for (BusObserver o : observers) {
+                o.write(address, value, cycle);
+            }
+        }
+
+        public void fetch(int address, int value, long cycle) {
+            for (BusObserver o : observers) {
+                o.fetch(address, value, cycle);
+            }
+        }
+    }
+
+    public MemoryHeatmap getHeatmap() {
+        return heatmap;
+    }
+
+    void setReverseJournal(ReverseJournal reverseJournal) {
+        this.reverseJournal = reverseJournal;
+        lowPagesChanged();
+    }
+
+    /**
+     * @return The undo journal, or null if reverse debugging is not enabled.
+     */
+    public ReverseJournal getReverseJournal() {
+        return reverseJournal;
+    }
+
     public void loadProgram(int... program) throws MemoryAccessException {
-        int address = getCpu().getProgramCounter();
-        int i = 0;
-        for (int d : program) {
-            write(address + i++, d);
+        byte[] bytes = new byte[program.length];
+        for (int i = 0; i < program.length; i++) {
+            bytes[i] = (byte) program[i];
         }
+        writeBlock(getCpu().getProgramCounter(), bytes, 0, bytes.length);
     }
 }
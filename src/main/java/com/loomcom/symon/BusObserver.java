@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+/**
+ * Sees every access the CPU makes through the {@link Bus}, for profilers,
+ * watchpoints, coverage and the like. Attach one with
+ * {@link Bus#addObserver(BusObserver)}.
+ * <p/>
+ * While no observer is attached, the bus pays one null check per access.
+ * While one is, it pays one call. Observers are called on the thread
+ * running the CPU, and should return quickly.
+ * <p/>
+ * Block transfers made with {@link Bus#readBlock} and {@link Bus#writeBlock},
+ * and accesses to unmapped addresses, are not observed.
+ */
+public interface BusObserver {
+
+    /**
+     * @param address The address read.
+     * @param value   The value read.
+     * @param cycle   The CPU cycle count at the start of the instruction.
+     */
+    public void read(int address, int value, long cycle);
+
+    /**
+     * @param address The address written.
+     * @param value   The value written.
+     * @param cycle   The CPU cycle count at the start of the instruction.
+     */
+    public void write(int address, int value, long cycle);
+
+    /**
+     * @param address The address of the opcode fetched.
+     * @param value   The opcode.
+     * @param cycle   The CPU cycle count at the start of the instruction.
+     */
+    public void fetch(int address, int value, long cycle);
+}
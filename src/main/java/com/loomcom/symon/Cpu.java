@@ -25,6 +25,8 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.util.HexUtil;
+
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,27 +58,61 @@ public class Cpu implements InstructionTable {
     public static final int IRQ_VECTOR_H = 0xffff;
 
     /* Simulated behavior */
-    private static CpuBehavior behavior;
+    private CpuBehavior behavior;
+
+    /* Instruction sizes and clock counts for the simulated instruction set */
+    private final int[] sizeTable;
+    private final int[] clockTable;
+
+    /* Decimal mode lookup tables matching the simulated behavior */
+    private BcdTables bcdTables;
+
+    /* If true, the N and Z flags are only computed when something reads them */
+    private boolean lazyFlags = true;
+
+    /* If true, common pairs of instructions may be executed in a single step */
+    private boolean fusionEnabled;
 
     /* The Bus */
-    private Bus bus;
+    Bus bus;
+
+    /* Instructions already decoded, owned by the bus */
+    private DecodedInstructionCache decodeCache;
+
+    /* Direct view of the RAM behind the zero page and stack, or null if
+     * they must be accessed through the bus */
+    private byte[] lowPages;
 
     /* The CPU state */
-    private static final CpuState state = new CpuState();
+    final CpuState state;
+
+    /* The IRQ and NMI inputs, which other threads may drive */
+    final InterruptLines interrupts = new InterruptLines();
+
+    /* Undo journal, if reverse debugging is enabled */
+    private ReverseJournal journal;
 
     /* Scratch space for addressing mode and effective address
      * calculations */
     private int irAddressMode; // Bits 3-5 of IR:  [ | | |X|X|X| | ]
     private int irOpMode;      // Bits 6-7 of IR:  [ | | | | | |X|X]
-    private int effectiveAddress;
+    int effectiveAddress;
 
     /* Internal scratch space */
-    private int lo = 0, hi = 0;  // Used in address calculation
-    private int tmp; // Temporary storage
+    int lo = 0, hi = 0;  // Used in address calculation
+    int tmp; // Temporary storage
     
     /* start time of op execution, needed for speed simulation */
     private long opBeginTime;
 
+    /* Monitoring counters. These are never reset, and are only ever written
+     * by the thread running the CPU, so they can be plain fields. */
+    private long instructionCount;
+    private long cycleCount;
+    private long irqCount;
+    private long nmiCount;
+    private long fusedCount;
+
     /**
      * Construct a new CPU.
      */
@@ -84,8 +120,33 @@ public class Cpu implements InstructionTable {
         this(CpuBehavior.NMOS_WITH_INDIRECT_JMP_BUG);
     }
 
+    /**
+     * Construct a new CPU with the NMOS instruction set. Use {@link Cpu65C02},
+     * or {@link #forBehavior(CpuBehavior)}, to simulate a 65C02.
+     */
     public Cpu(CpuBehavior behavior) {
-        this.behavior = behavior;
+        this(behavior, opcodeNames, instructionModes, instructionSizes, instructionClocks);
+    }
+
+    /**
+     * Construct a CPU with its own instruction set tables. For use by
+     * subclasses that simulate other members of the 6502 family.
+     */
+    protected Cpu(CpuBehavior behavior, String[] names, Mode[] modes, int[] sizes, int[] clocks) {
+        this.state = new CpuState(names, modes, sizes);
+        this.sizeTable = sizes;
+        this.clockTable = clocks;
+        setBehavior(behavior);
+    }
+
+    /**
+     * Create a CPU that simulates the given behavior.
+     */
+    public static Cpu forBehavior(CpuBehavior behavior) {
+        if (behavior == CpuBehavior.CMOS) {
+            return new Cpu65C02();
+        }
+        return new Cpu(behavior);
     }
 
     /**
@@ -93,6 +154,16 @@ public class Cpu implements InstructionTable {
      */
     public void setBus(Bus bus) {
         this.bus = bus;
+        this.decodeCache = bus.getDecodeCache();
+        this.lowPages = bus.getLowPages();
+    }
+
+    /**
+     * Called by the bus when the memory behind the zero page and stack may
+     * have changed.
+     */
+    void setLowPages(byte[] lowPages) {
+        this.lowPages = lowPages;
     }
 
     /**
@@ -102,14 +173,76 @@ public class Cpu implements InstructionTable {
         return bus;
     }
 
+    /**
+     * Change the simulated behavior. This only affects the quirks of
+     * instructions that exist on every 6502; the 65C02 instruction set
+     * is implemented by {@link Cpu65C02}.
+     */
     public void setBehavior(CpuBehavior behavior) {
         this.behavior = behavior;
+        this.bcdTables = BcdTables.forBehavior(behavior);
     }
 
     public CpuBehavior getBehavior() {
         return behavior;
     }
 
+    /**
+     * @return True if this CPU implements the 65C02 instruction set.
+     */
+    public boolean isCmos() {
+        return false;
+    }
+
+    /**
+     * @return True if the CPU has executed a WAI and is waiting for an IRQ or NMI.
+     */
+    public boolean isWaitingForInterrupt() {
+        return state.waitingForInterrupt;
+    }
+
+    /**
+     * @return True if the CPU has executed an STP, and will do nothing until reset.
+     */
+    public boolean isStopped() {
+        return state.stopped;
+    }
+
+    /**
+     * Choose between lazy and eager evaluation of the negative and zero flags.
+     * <p/>
+     * Nearly every instruction sets N and Z from its result, but very few
+     * instructions ever look at them. With lazy flags, the CPU only records the
+     * result byte, and the flags are worked out from it when a branch, PHP,
+     * an interrupt, or the debugger asks for them. The two modes are
+     * indistinguishable to running code.
+     *
+     * @param lazyFlags True to evaluate N and Z lazily (the default).
+     */
+    public void setLazyFlags(boolean lazyFlags) {
+        state.resolveFlags();
+        this.lazyFlags = lazyFlags;
+    }
+
+    public boolean getLazyFlags() {
+        return lazyFlags;
+    }
+
+    /**
+     * Allow common pairs of instructions, listed in {@link InstructionFusion},
+     * to be executed together in a single call to {@link #step()}. This
+     * saves the per-step overhead for the second instruction, but means that
+     * a step may execute two instructions; use {@link #getInstructionCount()}
+     * to count them. It is off by default.
+     */
+    public void setFusionEnabled(boolean fusionEnabled) {
+        this.fusionEnabled = fusionEnabled;
+    }
+
+    public boolean isFusionEnabled() {
+        return fusionEnabled;
+    }
+
     /**
      * Reset the CPU to known initial values.
      */
@@ -120,7 +253,7 @@ public class Cpu implements InstructionTable {
         state.sp = 0xff;
 
         // Set the PC to the address stored in the reset vector
-        state.pc = address(bus.read(RST_VECTOR_L), bus.read(RST_VECTOR_H));
+        state.pc = address(read(RST_VECTOR_L), read(RST_VECTOR_H));
 
         // Clear instruction register.
         state.ir = 0;
@@ -133,11 +266,15 @@ public class Cpu implements InstructionTable {
         state.breakFlag = false;
         state.overflowFlag = false;
         state.negativeFlag = false;
+        state.flagsPending = false;
 
+        interrupts.clearIrq(InterruptLines.DEFAULT_SOURCE);
         state.irqAsserted = false;
 
-        // Clear illegal opcode trap.
+        // Clear illegal opcode trap, and wake the CPU if it was stopped.
         state.opTrap = false;
+        state.waitingForInterrupt = false;
+        state.stopped = false;
 
         // Reset step counter
         state.stepCounter = 0L;
@@ -159,36 +296,136 @@ public class Cpu implements InstructionTable {
      */
     public void step() throws MemoryAccessException {
         opBeginTime = System.nanoTime();
+        ReverseJournal journal = this.journal;
+        if (journal != null) {
+            journal.instructionStarting();
+        }
         // Store the address from which the IR was read, for debugging
         state.lastPc = state.pc;
 
         // Check for Interrupts before doing anything else.
         // This will set the PC and jump to the interrupt vector.
-        if (state.nmiAsserted) {
-            handleNmi();
-        } else if (state.irqAsserted && !getIrqDisableFlag()) {
-            handleIrq(state.pc);
+        if (interrupts.get() != 0) {
+            serviceInterrupts();
         }
 
-        // Fetch memory location for this instruction.
-        state.ir = bus.read(state.pc);
-        irAddressMode = (state.ir >> 2) & 0x07;
-        irOpMode = state.ir & 0x03;
-
-        incrementPC();
+        int offset = state.pc - bus.startAddress();
+        int decoded = decodeCache.get(offset);
+        if (decoded != 0) {
+            // Already fetched and decoded, and not written since.
+            decodeCache.hit();
+            loadDecoded(decoded);
+        } else {
+            int instructionPc = state.pc;
 
-        clearOpTrap();
+            // Fetch memory location for this instruction.
+            state.ir = bus.fetch(state.pc);
+            irAddressMode = (state.ir >> 2) & 0x07;
+            irOpMode = state.ir & 0x03;
 
-        // Decode the instruction and operands
-        state.instSize = Cpu.instructionSizes[state.ir];
-        for (int i = 0; i < state.instSize - 1; i++) {
-            state.args[i] = bus.read(state.pc);
-            // Increment PC after reading
             incrementPC();
+
+            clearOpTrap();
+
+            // Decode the instruction and operands
+            state.instSize = sizeTable[state.ir];
+            for (int i = 0; i < state.instSize - 1; i++) {
+                state.args[i] = read(state.pc);
+                // Increment PC after reading
+                incrementPC();
+            }
+
+            if (state.instSize > 0 && decodeCache.isEnabled() && bus.isMemory(instructionPc, state.instSize)) {
+                decodeCache.put(offset, state.ir,
+                                state.instSize > 1 ? state.args[0] : 0,
+                                state.instSize > 2 ? state.args[1] : 0,
+                                state.instSize);
+            }
         }
 
         state.stepCounter++;
+        instructionCount++;
+
+        execute();
+
+        int clockSteps = clockTable[state.ir];
+        // Just a precaution. This could be better.
+        if (clockSteps == 0) {
+            clockSteps = 1;
+        }
+        cycleCount += clockSteps;
+
+        if (journal != null) {
+            journal.instructionFinished();
+        } else if (fusionEnabled) {
+            clockSteps += executeFused();
+        }
+
+        delayLoop(clockSteps);
+    }
+
+    /**
+     * If the instruction just executed and the next one form one of the
+     * idioms in {@link InstructionFusion}, execute the next one as part of
+     * the same step. Nothing is fused while an interrupt is pending, or while
+     * a session is being recorded or replayed, since either needs the CPU to
+     * stop between the two instructions.
+     *
+     * @return The number of cycles taken by the second instruction, or 0 if
+     *         nothing was fused.
+     */
+    private int executeFused() throws MemoryAccessException {
+        int decoded = decodeCache.get(state.pc - bus.startAddress());
+        if (decoded == 0 ||
+            !InstructionFusion.canFuse(state.ir, decoded & 0xff) ||
+            interrupts.get() != 0 ||
+            bus.getSessionRecorder() != null ||
+            bus.getSessionReplayer() != null) {
+            return 0;
+        }
+
+        state.lastPc = state.pc;
+        decodeCache.hit();
+        loadDecoded(decoded);
+
+        state.stepCounter++;
+        instructionCount++;
+        fusedCount++;
+
+        execute();
+
+        int clockSteps = clockTable[state.ir];
+        cycleCount += clockSteps;
+        return clockSteps;
+    }
+
+    /**
+     * Load an instruction from the decoded instruction cache, and advance
+     * the PC past it.
+     */
+    private void loadDecoded(int decoded) {
+        state.ir = decoded & 0xff;
+        state.instSize = decoded >>> 24;
+        if (state.instSize > 1) {
+            state.args[0] = (decoded >>> 8) & 0xff;
+            if (state.instSize > 2) {
+                state.args[1] = (decoded >>> 16) & 0xff;
+            }
+        }
+        // Instructions that cross $FFFF are never cached, but one that ends
+        // there still wraps the PC, as incrementPC() does.
+        state.pc = (state.pc + state.instSize) & 0xffff;
+        irAddressMode = (state.ir >> 2) & 0x07;
+        irOpMode = state.ir & 0x03;
+        clearOpTrap();
+    }
 
+    /**
+     * Work out the effective address of the instruction in the IR, and
+     * execute it. Subclasses simulating other CPUs override this with
+     * their own instruction set.
+     */
+    protected void execute() throws MemoryAccessException {
         // Get the data from the effective address (if any)
         effectiveAddress = 0;
 
@@ -226,7 +463,7 @@ public class Cpu implements InstructionTable {
                 switch (irAddressMode) {
                     case 0: // (Zero Page,X)
                         tmp = (state.args[0] + state.x) & 0xff;
-                        effectiveAddress = address(bus.read(tmp), bus.read(tmp + 1));
+                        effectiveAddress = address(read(tmp), read(tmp + 1));
                         break;
                     case 1: // Zero Page
                         effectiveAddress = state.args[0];
@@ -238,8 +475,8 @@ public class Cpu implements InstructionTable {
                         effectiveAddress = address(state.args[0], state.args[1]);
                         break;
                     case 4: // (Zero Page),Y
-                        tmp = address(bus.read(state.args[0]),
-                                      bus.read((state.args[0] + 1) & 0xff));
+                        tmp = address(read(state.args[0]),
+                                      read((state.args[0] + 1) & 0xff));
                         effectiveAddress = (tmp + state.y) & 0xffff;
                         break;
                     case 5: // Zero Page,X
@@ -413,7 +650,7 @@ public class Cpu implements InstructionTable {
                     hi = lo + 1;
                 }
 
-                state.pc = address(bus.read(lo), bus.read(hi));
+                state.pc = address(read(lo), read(hi));
                 /* TODO: For accuracy, allow a flag to enable broken behavior of early 6502s:
                  *
                  * "An original 6502 has does not correctly fetch the target
@@ -440,7 +677,7 @@ public class Cpu implements InstructionTable {
             case 0x15: // Zero Page,X
             case 0x19: // Absolute,Y
             case 0x1d: // Absolute,X
-                state.a |= bus.read(effectiveAddress);
+                state.a |= read(effectiveAddress);
                 setArithmeticFlags(state.a);
                 break;
 
@@ -454,8 +691,8 @@ public class Cpu implements InstructionTable {
             case 0x0e: // Absolute
             case 0x16: // Zero Page,X
             case 0x1e: // Absolute,X
-                tmp = asl(bus.read(effectiveAddress));
-                bus.write(effectiveAddress, tmp);
+                tmp = asl(read(effectiveAddress));
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -463,7 +700,7 @@ public class Cpu implements InstructionTable {
             /** BIT - Bit Test ******************************************************/
             case 0x24: // Zero Page
             case 0x2c: // Absolute
-                tmp = bus.read(effectiveAddress);
+                tmp = read(effectiveAddress);
                 setZeroFlag((state.a & tmp) == 0);
                 setNegativeFlag((tmp & 0x80) != 0);
                 setOverflowFlag((tmp & 0x40) != 0);
@@ -482,7 +719,7 @@ public class Cpu implements InstructionTable {
             case 0x35: // Zero Page,X
             case 0x39: // Absolute,Y
             case 0x3d: // Absolute,X
-                state.a &= bus.read(effectiveAddress);
+                state.a &= read(effectiveAddress);
                 setArithmeticFlags(state.a);
                 break;
 
@@ -496,8 +733,8 @@ public class Cpu implements InstructionTable {
             case 0x2e: // Absolute
             case 0x36: // Zero Page,X
             case 0x3e: // Absolute,X
-                tmp = rol(bus.read(effectiveAddress));
-                bus.write(effectiveAddress, tmp);
+                tmp = rol(read(effectiveAddress));
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -514,7 +751,7 @@ public class Cpu implements InstructionTable {
             case 0x55: // Zero Page,X
             case 0x59: // Absolute,Y
             case 0x5d: // Absolute,X
-                state.a ^= bus.read(effectiveAddress);
+                state.a ^= read(effectiveAddress);
                 setArithmeticFlags(state.a);
                 break;
 
@@ -528,8 +765,8 @@ public class Cpu implements InstructionTable {
             case 0x4e: // Absolute
             case 0x56: // Zero Page,X
             case 0x5e: // Absolute,X
-                tmp = lsr(bus.read(effectiveAddress));
-                bus.write(effectiveAddress, tmp);
+                tmp = lsr(read(effectiveAddress));
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -550,9 +787,9 @@ public class Cpu implements InstructionTable {
             case 0x79: // Absolute,Y
             case 0x7d: // Absolute,X
                 if (state.decimalModeFlag) {
-                    state.a = adcDecimal(state.a, bus.read(effectiveAddress));
+                    state.a = adcDecimal(state.a, read(effectiveAddress));
                 } else {
-                    state.a = adc(state.a, bus.read(effectiveAddress));
+                    state.a = adc(state.a, read(effectiveAddress));
                 }
                 break;
 
@@ -566,8 +803,8 @@ public class Cpu implements InstructionTable {
             case 0x6e: // Absolute
             case 0x76: // Zero Page,X
             case 0x7e: // Absolute,X
-                tmp = ror(bus.read(effectiveAddress));
-                bus.write(effectiveAddress, tmp);
+                tmp = ror(read(effectiveAddress));
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -580,7 +817,7 @@ public class Cpu implements InstructionTable {
             case 0x95: // Zero Page,X
             case 0x99: // Absolute,Y
             case 0x9d: // Absolute,X
-                bus.write(effectiveAddress, state.a);
+                write(effectiveAddress, state.a);
                 break;
 
 
@@ -588,7 +825,7 @@ public class Cpu implements InstructionTable {
             case 0x84: // Zero Page
             case 0x8c: // Absolute
             case 0x94: // Zero Page,X
-                bus.write(effectiveAddress, state.y);
+                write(effectiveAddress, state.y);
                 break;
 
 
@@ -596,7 +833,7 @@ public class Cpu implements InstructionTable {
             case 0x86: // Zero Page
             case 0x8e: // Absolute
             case 0x96: // Zero Page,Y
-                bus.write(effectiveAddress, state.x);
+                write(effectiveAddress, state.x);
                 break;
 
 
@@ -609,7 +846,7 @@ public class Cpu implements InstructionTable {
             case 0xac: // Absolute
             case 0xb4: // Zero Page,X
             case 0xbc: // Absolute,X
-                state.y = bus.read(effectiveAddress);
+                state.y = read(effectiveAddress);
                 setArithmeticFlags(state.y);
                 break;
 
@@ -623,7 +860,7 @@ public class Cpu implements InstructionTable {
             case 0xae: // Absolute
             case 0xb6: // Zero Page,Y
             case 0xbe: // Absolute,Y
-                state.x = bus.read(effectiveAddress);
+                state.x = read(effectiveAddress);
                 setArithmeticFlags(state.x);
                 break;
 
@@ -640,7 +877,7 @@ public class Cpu implements InstructionTable {
             case 0xb5: // Zero Page,X
             case 0xb9: // Absolute,Y
             case 0xbd: // Absolute,X
-                state.a = bus.read(effectiveAddress);
+                state.a = read(effectiveAddress);
                 setArithmeticFlags(state.a);
                 break;
 
@@ -651,7 +888,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xc4: // Zero Page
             case 0xcc: // Absolute
-                cmp(state.y, bus.read(effectiveAddress));
+                cmp(state.y, read(effectiveAddress));
                 break;
 
 
@@ -666,7 +903,7 @@ public class Cpu implements InstructionTable {
             case 0xd5: // Zero Page,X
             case 0xd9: // Absolute,Y
             case 0xdd: // Absolute,X
-                cmp(state.a, bus.read(effectiveAddress));
+                cmp(state.a, read(effectiveAddress));
                 break;
 
 
@@ -675,8 +912,8 @@ public class Cpu implements InstructionTable {
             case 0xce: // Absolute
             case 0xd6: // Zero Page,X
             case 0xde: // Absolute,X
-                tmp = (bus.read(effectiveAddress) - 1) & 0xff;
-                bus.write(effectiveAddress, tmp);
+                tmp = (read(effectiveAddress) - 1) & 0xff;
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -687,7 +924,7 @@ public class Cpu implements InstructionTable {
                 break;
             case 0xe4: // Zero Page
             case 0xec: // Absolute
-                cmp(state.x, bus.read(effectiveAddress));
+                cmp(state.x, read(effectiveAddress));
                 break;
 
 
@@ -707,9 +944,9 @@ public class Cpu implements InstructionTable {
             case 0xf9: // Absolute,Y
             case 0xfd: // Absolute,X
                 if (state.decimalModeFlag) {
-                    state.a = sbcDecimal(state.a, bus.read(effectiveAddress));
+                    state.a = sbcDecimal(state.a, read(effectiveAddress));
                 } else {
-                    state.a = sbc(state.a, bus.read(effectiveAddress));
+                    state.a = sbc(state.a, read(effectiveAddress));
                 }
                 break;
 
@@ -719,8 +956,8 @@ public class Cpu implements InstructionTable {
             case 0xee: // Absolute
             case 0xf6: // Zero Page,X
             case 0xfe: // Absolute,X
-                tmp = (bus.read(effectiveAddress) + 1) & 0xff;
-                bus.write(effectiveAddress, tmp);
+                tmp = (read(effectiveAddress) + 1) & 0xff;
+                write(effectiveAddress, tmp);
                 setArithmeticFlags(tmp);
                 break;
 
@@ -730,18 +967,25 @@ public class Cpu implements InstructionTable {
                 setOpTrap();
                 break;
         }
+    }
 
-        delayLoop(state.ir);
+    /**
+     * Take an NMI if one is latched, or else an IRQ if the line is asserted
+     * and not masked. Only called when at least one line is active.
+     */
+    private void serviceInterrupts() throws MemoryAccessException {
+        if (interrupts.acknowledgeNmi()) {
+            nmiCount++;
+            handleInterrupt(state.pc, NMI_VECTOR_L, NMI_VECTOR_H);
+        } else if (interrupts.isIrqAsserted() && !getIrqDisableFlag()) {
+            handleIrq(state.pc);
+        }
     }
 
     private void handleIrq(int returnPc) throws MemoryAccessException {
+        irqCount++;
         handleInterrupt(returnPc, IRQ_VECTOR_L, IRQ_VECTOR_H);
-        clearIrq();
-    }
-
-    private void handleNmi() throws MemoryAccessException {
-        handleInterrupt(state.pc, NMI_VECTOR_L, NMI_VECTOR_H);
-        clearNmi();
+        interrupts.acknowledgeIrq();
     }
 
     /**
@@ -749,7 +993,7 @@ public class Cpu implements InstructionTable {
      *
      * @throws MemoryAccessException
      */
-    private void handleInterrupt(int returnPc, int vectorLow, int vectorHigh) throws MemoryAccessException {
+    void handleInterrupt(int returnPc, int vectorLow, int vectorHigh) throws MemoryAccessException {
         // Set the break flag before pushing.
         setBreakFlag();
         // Push program counter + 1 onto the stack
@@ -760,7 +1004,7 @@ public class Cpu implements InstructionTable {
         setIrqDisableFlag();
 
         // Load interrupt vector address into PC
-        state.pc = address(bus.read(vectorLow), bus.read(vectorHigh));
+        state.pc = address(read(vectorLow), read(vectorHigh));
     }
 
     /**
@@ -772,7 +1016,7 @@ public class Cpu implements InstructionTable {
      * @param operand The operand
      * @return
      */
-    private int adc(int acc, int operand) {
+    int adc(int acc, int operand) {
         int result = (operand & 0xff) + (acc & 0xff) + getCarryBit();
         int carry6 = (operand & 0x7f) + (acc & 0x7f) + getCarryBit();
         setCarryFlag((result & 0x100) != 0);
@@ -785,20 +1029,8 @@ public class Cpu implements InstructionTable {
     /**
      * Add with Carry (BCD).
      */
-
-    private int adcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) + (operand & 0x0f) + getCarryBit();
-        if ((l & 0xff) > 9) l += 6;
-        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
-        if ((h & 0xff) > 9) h += 6;
-        result = (l & 0x0f) | (h << 4);
-        result &= 0xff;
-        setCarryFlag(h > 15);
-        setZeroFlag(result == 0);
-        setNegativeFlag(false); // BCD is never negative
-        setOverflowFlag(false); // BCD never sets overflow flag
-        return result;
+    int adcDecimal(int acc, int operand) {
+        return applyDecimalResult(bcdTables.adc(acc, operand, state.carryFlag));
     }
 
     /**
@@ -806,7 +1038,7 @@ public class Cpu implements InstructionTable {
      * one's complement of the operand.  This lets the N, V, C, and Z
      * flags work out nicely without any additional logic.
      */
-    private int sbc(int acc, int operand) {
+    int sbc(int acc, int operand) {
         int result;
         result = adc(acc, ~operand);
         setArithmeticFlags(result);
@@ -816,38 +1048,46 @@ public class Cpu implements InstructionTable {
     /**
      * Subtract with Carry, BCD mode.
      */
-    private int sbcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) - (operand & 0x0f) - (state.carryFlag ? 0 : 1);
-        if ((l & 0x10) != 0) l -= 6;
-        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
-        if ((h & 0x10) != 0) h -= 6;
-        result = (l & 0x0f) | (h << 4);
-        setCarryFlag((h & 0xff) < 15);
-        setZeroFlag(result == 0);
-        setNegativeFlag(false); // BCD is never negative
-        setOverflowFlag(false); // BCD never sets overflow flag
-        return (result & 0xff);
+    int sbcDecimal(int acc, int operand) {
+        return applyDecimalResult(bcdTables.sbc(acc, operand, state.carryFlag));
+    }
+
+    /**
+     * Set the carry, zero, negative and overflow flags from a BCD table
+     * entry, and return the result byte.
+     */
+    private int applyDecimalResult(int entry) {
+        int flags = BcdTables.flags(entry);
+        state.carryFlag = (flags & P_CARRY) != 0;
+        state.zeroFlag = (flags & P_ZERO) != 0;
+        state.negativeFlag = (flags & P_NEGATIVE) != 0;
+        state.overflowFlag = (flags & P_OVERFLOW) != 0;
+        state.flagsPending = false;
+        return BcdTables.result(entry);
     }
 
     /**
      * Compare two values, and set carry, zero, and negative flags
      * appropriately.
      */
-    private void cmp(int reg, int operand) {
+    void cmp(int reg, int operand) {
         int tmp = (reg - operand) & 0xff;
         setCarryFlag(reg >= operand);
-        setZeroFlag(tmp == 0);
-        setNegativeFlag((tmp & 0x80) != 0); // Negative bit set
+        setArithmeticFlags(tmp);
     }
 
     /**
      * Set the Negative and Zero flags based on the current value of the
      * register operand.
      */
-    private void setArithmeticFlags(int reg) {
-        state.zeroFlag = (reg == 0);
-        state.negativeFlag = (reg & 0x80) != 0;
+    void setArithmeticFlags(int reg) {
+        if (lazyFlags) {
+            state.flagsResult = reg;
+            state.flagsPending = true;
+        } else {
+            state.zeroFlag = (reg == 0);
+            state.negativeFlag = (reg & 0x80) != 0;
+        }
     }
 
     /**
@@ -857,7 +1097,7 @@ public class Cpu implements InstructionTable {
      * @param m The value to shift left.
      * @return the left shifted value (m * 2).
      */
-    private int asl(int m) {
+    int asl(int m) {
         setCarryFlag((m & 0x80) != 0);
         return (m << 1) & 0xff;
     }
@@ -866,7 +1106,7 @@ public class Cpu implements InstructionTable {
      * Shifts the given value right by one bit, filling with zeros,
      * and sets the carry flag to the low bit of the initial value.
      */
-    private int lsr(int m) {
+    int lsr(int m) {
         setCarryFlag((m & 0x01) != 0);
         return (m & 0xff) >>> 1;
     }
@@ -876,7 +1116,7 @@ public class Cpu implements InstructionTable {
      * of the carry flag, and setting the carry flag to the original value
      * of bit 7.
      */
-    private int rol(int m) {
+    int rol(int m) {
         int result = ((m << 1) | getCarryBit()) & 0xff;
         setCarryFlag((m & 0x80) != 0);
         return result;
@@ -887,7 +1127,7 @@ public class Cpu implements InstructionTable {
      * of the carry flag, and setting the carry flag to the original value
      * of bit 1.
      */
-    private int ror(int m) {
+    int ror(int m) {
         int result = ((m >>> 1) | (getCarryBit() << 7)) & 0xff;
         setCarryFlag((m & 0x01) != 0);
         return result;
@@ -899,6 +1139,8 @@ public class Cpu implements InstructionTable {
      * @return the current Cpu State.
      */
     public CpuState getCpuState() {
+        state.irqAsserted = interrupts.isIrqAsserted();
+        state.nmiAsserted = interrupts.isNmiPending();
         return state;
     }
 
@@ -906,6 +1148,7 @@ public class Cpu implements InstructionTable {
      * @return the negative flag
      */
     public boolean getNegativeFlag() {
+        state.resolveFlags();
         return state.negativeFlag;
     }
 
@@ -913,14 +1156,17 @@ public class Cpu implements InstructionTable {
      * @param negativeFlag the negative flag to set
      */
     public void setNegativeFlag(boolean negativeFlag) {
+        state.resolveFlags();
         state.negativeFlag = negativeFlag;
     }
 
     public void setNegativeFlag() {
+        state.resolveFlags();
         state.negativeFlag = true;
     }
 
     public void clearNegativeFlag() {
+        state.resolveFlags();
         state.negativeFlag = false;
     }
 
@@ -963,6 +1209,7 @@ public class Cpu implements InstructionTable {
      * @return the zero flag
      */
     public boolean getZeroFlag() {
+        state.resolveFlags();
         return state.zeroFlag;
     }
 
@@ -970,6 +1217,7 @@ public class Cpu implements InstructionTable {
      * @param zeroFlag the zero flag to set
      */
     public void setZeroFlag(boolean zeroFlag) {
+        state.resolveFlags();
         state.zeroFlag = zeroFlag;
     }
 
@@ -977,6 +1225,7 @@ public class Cpu implements InstructionTable {
      * Sets the Zero Flag
      */
     public void setZeroFlag() {
+        state.resolveFlags();
         state.zeroFlag = true;
     }
 
@@ -984,6 +1233,7 @@ public class Cpu implements InstructionTable {
      * Clears the Zero Flag
      */
     public void clearZeroFlag() {
+        state.resolveFlags();
         state.zeroFlag = false;
     }
 
@@ -1131,6 +1381,59 @@ public class Cpu implements InstructionTable {
         return state.ir;
     }
 
+    /**
+     * @return The total number of instructions executed since this CPU was created.
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * @return The total number of clock cycles emulated since this CPU was created.
+     */
+    public long getCycleCount() {
+        return cycleCount;
+    }
+
+    /**
+     * Set the cycle counter, for running the CPU backwards.
+     */
+    void setCycleCount(long cycles) {
+        cycleCount = cycles;
+    }
+
+    /**
+     * Advance the cycle counter without executing anything, to account for
+     * time the CPU spent parked in an idle loop.
+     *
+     * @param cycles The number of cycles to add.
+     */
+    public void addIdleCycles(long cycles) {
+        cycleCount += cycles;
+    }
+
+    /**
+     * @return The number of IRQs serviced since this CPU was created.
+     */
+    public long getIrqCount() {
+        return irqCount;
+    }
+
+    /**
+     * @return The number of NMIs serviced since this CPU was created.
+     */
+    public long getNmiCount() {
+        return nmiCount;
+    }
+
+    /**
+     * @return The number of instructions executed as the second half of a
+     *         fused pair since this CPU was created.
+     */
+    public long getFusedCount() {
+        return fusedCount;
+    }
+
     /**
      * @value The value of the Process Status Register bits to be set.
      */
@@ -1195,32 +1498,98 @@ public class Cpu implements InstructionTable {
         return state.getStatusFlag();
     }
 
+    /**
+     * The number of bytes written by {@link #saveState(ByteBuffer)}.
+     */
+    public static final int STATE_SIZE = 26;
+
+    /**
+     * Save the registers, flags and interrupt lines, for a machine snapshot.
+     * The monitoring counters are not saved, since they only ever count up.
+     */
+    public void saveState(ByteBuffer out) {
+        out.put((byte) state.a);
+        out.put((byte) state.x);
+        out.put((byte) state.y);
+        out.put((byte) state.sp);
+        out.putShort((short) state.pc);
+        out.putShort((short) state.lastPc);
+        out.put((byte) state.ir);
+        out.put((byte) state.args[0]);
+        out.put((byte) state.args[1]);
+        out.put((byte) state.instSize);
+        out.put((byte) state.getStatusFlag());
+        out.put((byte) ((state.opTrap ? 0x01 : 0) |
+                        (state.waitingForInterrupt ? 0x02 : 0) |
+                        (state.stopped ? 0x04 : 0)));
+        out.putLong(state.stepCounter);
+        out.putInt(interrupts.get());
+    }
+
+    /**
+     * Restore the state saved by {@link #saveState(ByteBuffer)}.
+     */
+    public void restoreState(ByteBuffer in) {
+        state.a = in.get() & 0xff;
+        state.x = in.get() & 0xff;
+        state.y = in.get() & 0xff;
+        state.sp = in.get() & 0xff;
+        state.pc = in.getShort() & 0xffff;
+        state.lastPc = in.getShort() & 0xffff;
+        state.ir = in.get() & 0xff;
+        state.args[0] = in.get() & 0xff;
+        state.args[1] = in.get() & 0xff;
+        state.instSize = in.get() & 0xff;
+        state.flagsPending = false;
+        setProcessorStatus(in.get() & 0xff);
+        int flags = in.get();
+        state.opTrap = (flags & 0x01) != 0;
+        state.waitingForInterrupt = (flags & 0x02) != 0;
+        state.stopped = (flags & 0x04) != 0;
+        state.stepCounter = in.getLong();
+        interrupts.set(in.getInt());
+    }
+
+    void setReverseJournal(ReverseJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return The interrupt inputs of this CPU. These may be driven from any thread.
+     */
+    public InterruptLines getInterruptLines() {
+        return interrupts;
+    }
+
     /**
      * Simulate transition from logic-high to logic-low on the INT line.
+     * The line is released again when the CPU takes the interrupt.
      */
     public void assertIrq() {
-       state.irqAsserted = true;
+        interrupts.raiseIrq(InterruptLines.DEFAULT_SOURCE);
     }
 
     /**
      * Simulate transition from logic-low to logic-high of the INT line.
      */
     public void clearIrq() {
-        state.irqAsserted = false;
+        interrupts.clearIrq(InterruptLines.DEFAULT_SOURCE);
     }
 
     /**
-     * Simulate transition from logic-high to logic-low on the NMI line.
+     * Simulate a pulse on the NMI line, latching an NMI.
      */
     public void assertNmi() {
-        state.nmiAsserted = true;
+        interrupts.raiseNmi(InterruptLines.DEFAULT_SOURCE);
+        interrupts.clearNmi(InterruptLines.DEFAULT_SOURCE);
     }
 
     /**
-     * Simulate transition from logic-low to logic-high of the NMI line.
+     * Cancel an NMI that has been latched but not yet taken.
      */
     public void clearNmi() {
-        state.nmiAsserted = false;
+        interrupts.clearNmi(InterruptLines.DEFAULT_SOURCE);
+        interrupts.cancelNmi();
     }
 
     /**
@@ -1229,7 +1598,7 @@ public class Cpu implements InstructionTable {
      * is the same behavior as the real 6502)
      */
     void stackPush(int data) throws MemoryAccessException {
-        bus.write(0x100 + state.sp, data);
+        write(0x100 + state.sp, data);
 
         if (state.sp == 0) {
             state.sp = 0xff;
@@ -1239,6 +1608,30 @@ public class Cpu implements InstructionTable {
     }
 
 
+    /**
+     * Read a byte for the instruction being executed. The zero page and
+     * stack are read straight from RAM when the bus allows it.
+     */
+    final int read(int address) throws MemoryAccessException {
+        if (address < Bus.LOW_PAGES_SIZE && lowPages != null) {
+            return lowPages[address] & 0xff;
+        }
+        return bus.read(address);
+    }
+
+    /**
+     * Write a byte for the instruction being executed. The zero page and
+     * stack are written straight to RAM when the bus allows it.
+     */
+    final void write(int address, int data) throws MemoryAccessException {
+        if (address < Bus.LOW_PAGES_SIZE && lowPages != null) {
+            lowPages[address] = (byte) data;
+            bus.lowPageWritten(address);
+            return;
+        }
+        bus.write(address, data);
+    }
+
     /**
      * Pre-increment the stack pointer, and return the top of the stack.
      * Will wrap-around if already at the top of the stack (This
@@ -1251,14 +1644,14 @@ public class Cpu implements InstructionTable {
             ++state.sp;
         }
 
-        return bus.read(0x100 + state.sp);
+        return read(0x100 + state.sp);
     }
 
     /**
      * Peek at the value currently at the top of the stack
      */
     int stackPeek() throws MemoryAccessException {
-        return bus.read(0x100 + state.sp + 1);
+        return read(0x100 + state.sp + 1);
     }
 
     /*
@@ -1320,12 +1713,7 @@ public class Cpu implements InstructionTable {
     /*
      * Perform a busy-loop for CLOCK_IN_NS nanoseconds
      */
-    private void delayLoop(int opcode) {
-        int clockSteps = Cpu.instructionClocks[0xff & opcode];
-        // Just a precaution. This could be better.
-        if (clockSteps == 0) {
-            clockSteps = 1;
-        }
+    private void delayLoop(int clockSteps) {
         long opScheduledEnd = opBeginTime + clockSteps;
         long now = System.nanoTime();
         while(now < opScheduledEnd) {
@@ -1366,6 +1754,9 @@ public class Cpu implements InstructionTable {
         public int[] args = new int[2];
         public int instSize;
         public boolean opTrap;
+        public boolean waitingForInterrupt;
+        public boolean stopped;
+        /* Copies of the interrupt lines, as of the last call to getCpuState() */
         public boolean irqAsserted;
         public boolean nmiAsserted;
 
@@ -1379,10 +1770,33 @@ public class Cpu implements InstructionTable {
         public boolean overflowFlag;
         public long stepCounter = 0L;
 
+        /* Instruction set tables, used for disassembly */
+        private final String[] opcodeNameTable;
+        private final Mode[] modeTable;
+        private final int[] sizeTable;
+
+        /* Lazily evaluated N and Z flags. While flagsPending is true, the
+         * negativeFlag and zeroFlag fields are stale, and the real flags
+         * must be derived from flagsResult. Call resolveFlags() before
+         * reading either field directly. */
+        public int flagsResult;
+        public boolean flagsPending;
+
         /**
          * Create an empty CPU State.
          */
-        public CpuState() {}
+        public CpuState() {
+            this(opcodeNames, instructionModes, instructionSizes);
+        }
+
+        /**
+         * Create an empty CPU State for a CPU with the given instruction set.
+         */
+        public CpuState(String[] names, Mode[] modes, int[] sizes) {
+            this.opcodeNameTable = names;
+            this.modeTable = modes;
+            this.sizeTable = sizes;
+        }
 
         /**
          * Snapshot a copy of the CpuState.
@@ -1404,6 +1818,8 @@ public class Cpu implements InstructionTable {
             this.args[1] = s.args[1];
             this.instSize = s.instSize;
             this.opTrap = s.opTrap;
+            this.waitingForInterrupt = s.waitingForInterrupt;
+            this.stopped = s.stopped;
             this.irqAsserted = s.irqAsserted;
             this.carryFlag = s.carryFlag;
             this.negativeFlag = s.negativeFlag;
@@ -1413,6 +1829,23 @@ public class Cpu implements InstructionTable {
             this.breakFlag = s.breakFlag;
             this.overflowFlag = s.overflowFlag;
             this.stepCounter = s.stepCounter;
+            this.flagsResult = s.flagsResult;
+            this.flagsPending = s.flagsPending;
+            this.opcodeNameTable = s.opcodeNameTable;
+            this.modeTable = s.modeTable;
+            this.sizeTable = s.sizeTable;
+        }
+
+        /**
+         * Bring the negative and zero flags up to date, if they are pending
+         * evaluation from the result of the last instruction.
+         */
+        public void resolveFlags() {
+            if (flagsPending) {
+                zeroFlag = (flagsResult == 0);
+                negativeFlag = (flagsResult & 0x80) != 0;
+                flagsPending = false;
+            }
         }
 
         /**
@@ -1438,6 +1871,7 @@ public class Cpu implements InstructionTable {
          * @returns The value of the Process Status Register, as a byte.
          */
         public int getStatusFlag() {
+            resolveFlags();
             int status = 0x20;
             if (carryFlag) {
                 status |= P_CARRY;
@@ -1464,7 +1898,7 @@ public class Cpu implements InstructionTable {
         }
 
         public String getInstructionByteStatus() {
-            switch (Cpu.instructionSizes[ir]) {
+            switch (sizeTable[ir]) {
                 case 0:
                 case 1:
                     return HexUtil.wordToHex(lastPc) + "  " +
@@ -1490,7 +1924,7 @@ public class Cpu implements InstructionTable {
          * @return A string representing the mnemonic and operands of the instruction
          */
         public String disassembleOp() {
-            String mnemonic = opcodeNames[ir];
+            String mnemonic = opcodeNameTable[ir];
 
             if (mnemonic == null) {
                 return "???";
@@ -1498,7 +1932,7 @@ public class Cpu implements InstructionTable {
 
             StringBuilder sb = new StringBuilder(mnemonic);
 
-            switch (instructionModes[ir]) {
+            switch (modeTable[ir]) {
                 case ABS:
                     sb.append(" $" + HexUtil.wordToHex(address(args[0], args[1])));
                     break;
@@ -1530,6 +1964,15 @@ public class Cpu implements InstructionTable {
                 case ZPY:
                     sb.append(" $" + HexUtil.byteToHex(args[0]) + ",Y");
                     break;
+                case ZPI:
+                    sb.append(" ($" + HexUtil.byteToHex(args[0]) + ")");
+                    break;
+                case AIX:
+                    sb.append(" ($" + HexUtil.wordToHex(address(args[0], args[1])) + ",X)");
+                    break;
+                case ZPR:
+                    sb.append(" $" + HexUtil.byteToHex(args[0]) + ",$" + HexUtil.byteToHex(args[1]));
+                    break;
             }
 
             return sb.toString();
@@ -1547,6 +1990,7 @@ public class Cpu implements InstructionTable {
          * @return A string representing the current status register state.
          */
         public String getProcessorStatusString() {
+            resolveFlags();
             StringBuilder sb = new StringBuilder("[");
             sb.append(negativeFlag ? 'N' : '.');    // Bit 7
             sb.append(overflowFlag ? 'V' : '.');    // Bit 6
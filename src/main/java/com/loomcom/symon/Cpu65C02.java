@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * A simulation of the WDC 65C02, including the Rockwell bit manipulation
+ * instructions (RMB, SMB, BBR and BBS) and WDC's WAI and STP.
+ * <p/>
+ * Instructions that behave the same as on the NMOS 6502 are handed to
+ * {@link Cpu}, so only opcodes that are new or changed are implemented here.
+ * Choosing the instruction set by class keeps the NMOS core free of any
+ * per-instruction checks for which CPU is being simulated.
+ */
+public class Cpu65C02 extends Cpu {
+
+    public Cpu65C02() {
+        super(CpuBehavior.CMOS, cmosOpcodeNames, cmosInstructionModes,
+              cmosInstructionSizes, cmosInstructionClocks);
+    }
+
+    @Override
+    public boolean isCmos() {
+        return true;
+    }
+
+    @Override
+    public void setBehavior(CpuBehavior behavior) {
+        if (behavior != CpuBehavior.CMOS) {
+            throw new IllegalArgumentException("A 65C02 cannot simulate " + behavior);
+        }
+        super.setBehavior(behavior);
+    }
+
+    @Override
+    public void step() throws MemoryAccessException {
+        if (state.stopped) {
+            // Only a reset will start the CPU again.
+            return;
+        }
+        if (state.waitingForInterrupt) {
+            if (!interrupts.isIrqAsserted() && !interrupts.isNmiPending()) {
+                return;
+            }
+            state.waitingForInterrupt = false;
+        }
+        super.step();
+    }
+
+    /**
+     * The 65C02 clears the decimal flag on every interrupt, including BRK.
+     */
+    @Override
+    void handleInterrupt(int returnPc, int vectorLow, int vectorHigh) throws MemoryAccessException {
+        super.handleInterrupt(returnPc, vectorLow, vectorHigh);
+        clearDecimalModeFlag();
+    }
+
+    @Override
+    protected void execute() throws MemoryAccessException {
+        switch (state.ir) {
+
+            case 0x00: // BRK - Force Interrupt - Implied
+                // Unlike the NMOS core, BRK is not masked by the I flag.
+                handleInterrupt(state.pc + 1, IRQ_VECTOR_L, IRQ_VECTOR_H);
+                break;
+
+
+            /** New implied and relative instructions ******************************/
+            case 0x1a: // INC - Increment Accumulator
+                state.a = (state.a + 1) & 0xff;
+                setArithmeticFlags(state.a);
+                break;
+            case 0x3a: // DEC - Decrement Accumulator
+                state.a = (state.a - 1) & 0xff;
+                setArithmeticFlags(state.a);
+                break;
+            case 0x5a: // PHY - Push Y Register
+                stackPush(state.y);
+                break;
+            case 0x7a: // PLY - Pull Y Register
+                state.y = stackPop();
+                setArithmeticFlags(state.y);
+                break;
+            case 0xda: // PHX - Push X Register
+                stackPush(state.x);
+                break;
+            case 0xfa: // PLX - Pull X Register
+                state.x = stackPop();
+                setArithmeticFlags(state.x);
+                break;
+            case 0x80: // BRA - Branch Always
+                state.pc = relAddress(state.args[0]);
+                break;
+            case 0xcb: // WAI - Wait for Interrupt
+                state.waitingForInterrupt = true;
+                break;
+            case 0xdb: // STP - Stop the Clock
+                state.stopped = true;
+                break;
+
+
+            /** JMP (Absolute,X) ***************************************************/
+            case 0x7c:
+                lo = xAddress(state.args[0], state.args[1]);
+                state.pc = address(read(lo), read((lo + 1) & 0xffff));
+                break;
+
+
+            /** (Zero Page) addressing mode ****************************************/
+            case 0x12: // ORA
+                state.a |= read(zpiAddress(state.args[0]));
+                setArithmeticFlags(state.a);
+                break;
+            case 0x32: // AND
+                state.a &= read(zpiAddress(state.args[0]));
+                setArithmeticFlags(state.a);
+                break;
+            case 0x52: // EOR
+                state.a ^= read(zpiAddress(state.args[0]));
+                setArithmeticFlags(state.a);
+                break;
+            case 0x72: // ADC
+                tmp = read(zpiAddress(state.args[0]));
+                state.a = state.decimalModeFlag ? adcDecimal(state.a, tmp) : adc(state.a, tmp);
+                break;
+            case 0x92: // STA
+                write(zpiAddress(state.args[0]), state.a);
+                break;
+            case 0xb2: // LDA
+                state.a = read(zpiAddress(state.args[0]));
+                setArithmeticFlags(state.a);
+                break;
+            case 0xd2: // CMP
+                cmp(state.a, read(zpiAddress(state.args[0])));
+                break;
+            case 0xf2: // SBC
+                tmp = read(zpiAddress(state.args[0]));
+                state.a = state.decimalModeFlag ? sbcDecimal(state.a, tmp) : sbc(state.a, tmp);
+                break;
+
+
+            /** BIT - Bit Test *****************************************************/
+            case 0x89: // #Immediate - only affects the Z flag
+                setZeroFlag((state.a & state.args[0]) == 0);
+                break;
+            case 0x34: // Zero Page,X
+                bit(read(zpxAddress(state.args[0])));
+                break;
+            case 0x3c: // Absolute,X
+                bit(read(xAddress(state.args[0], state.args[1])));
+                break;
+
+
+            /** STZ - Store Zero ***************************************************/
+            case 0x64: // Zero Page
+                write(state.args[0], 0);
+                break;
+            case 0x74: // Zero Page,X
+                write(zpxAddress(state.args[0]), 0);
+                break;
+            case 0x9c: // Absolute
+                write(address(state.args[0], state.args[1]), 0);
+                break;
+            case 0x9e: // Absolute,X
+                write(xAddress(state.args[0], state.args[1]), 0);
+                break;
+
+
+            /** TSB - Test and Set Bits / TRB - Test and Reset Bits ****************/
+            case 0x04: // TSB Zero Page
+            case 0x0c: // TSB Absolute
+                effectiveAddress = address(state.args[0], state.ir == 0x04 ? 0 : state.args[1]);
+                tmp = read(effectiveAddress);
+                setZeroFlag((state.a & tmp) == 0);
+                write(effectiveAddress, tmp | state.a);
+                break;
+            case 0x14: // TRB Zero Page
+            case 0x1c: // TRB Absolute
+                effectiveAddress = address(state.args[0], state.ir == 0x14 ? 0 : state.args[1]);
+                tmp = read(effectiveAddress);
+                setZeroFlag((state.a & tmp) == 0);
+                write(effectiveAddress, tmp & ~state.a);
+                break;
+
+
+            /** RMB / SMB - Reset and Set Memory Bit *******************************/
+            case 0x07: case 0x17: case 0x27: case 0x37:
+            case 0x47: case 0x57: case 0x67: case 0x77:
+                tmp = read(state.args[0]);
+                write(state.args[0], tmp & ~(1 << (state.ir >> 4)));
+                break;
+            case 0x87: case 0x97: case 0xa7: case 0xb7:
+            case 0xc7: case 0xd7: case 0xe7: case 0xf7:
+                tmp = read(state.args[0]);
+                write(state.args[0], tmp | (1 << ((state.ir >> 4) & 0x07)));
+                break;
+
+
+            /** BBR / BBS - Branch on Bit Reset and Set ****************************/
+            case 0x0f: case 0x1f: case 0x2f: case 0x3f:
+            case 0x4f: case 0x5f: case 0x6f: case 0x7f:
+                if ((read(state.args[0]) & (1 << (state.ir >> 4))) == 0) {
+                    state.pc = relAddress(state.args[1]);
+                }
+                break;
+            case 0x8f: case 0x9f: case 0xaf: case 0xbf:
+            case 0xcf: case 0xdf: case 0xef: case 0xff:
+                if ((read(state.args[0]) & (1 << ((state.ir >> 4) & 0x07))) != 0) {
+                    state.pc = relAddress(state.args[1]);
+                }
+                break;
+
+
+            /** Undefined opcodes are NOPs of various sizes ************************/
+            case 0x02: case 0x22: case 0x42: case 0x62:
+            case 0x82: case 0xc2: case 0xe2:
+            case 0x03: case 0x13: case 0x23: case 0x33:
+            case 0x43: case 0x53: case 0x63: case 0x73:
+            case 0x83: case 0x93: case 0xa3: case 0xb3:
+            case 0xc3: case 0xd3: case 0xe3: case 0xf3:
+            case 0x0b: case 0x1b: case 0x2b: case 0x3b:
+            case 0x4b: case 0x5b: case 0x6b: case 0x7b:
+            case 0x8b: case 0x9b: case 0xab: case 0xbb:
+            case 0xeb: case 0xfb:
+            case 0x44: case 0x54: case 0xd4: case 0xf4:
+            case 0x5c: case 0xdc: case 0xfc:
+                break;
+
+            default:
+                super.execute();
+                break;
+        }
+    }
+
+    /**
+     * Given a zero page address, return the address it points to.
+     */
+    int zpiAddress(int zp) throws MemoryAccessException {
+        return address(read(zp), read((zp + 1) & 0xff));
+    }
+
+    private void bit(int operand) {
+        setZeroFlag((state.a & operand) == 0);
+        setNegativeFlag((operand & 0x80) != 0);
+        setOverflowFlag((operand & 0x40) != 0);
+    }
+}
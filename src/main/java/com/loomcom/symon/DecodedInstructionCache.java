@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the instructions the CPU has already fetched and decoded, by
+ * address, so that code which runs over and over does not have to be read
+ * through the bus one byte at a time on every trip.
+ * <p/>
+ * Each entry packs the opcode, up to two operand bytes and the instruction
+ * size into one int, with zero meaning "not cached". Only instructions that
+ * lie entirely in {@link com.loomcom.symon.devices.Memory} are cached, since
+ * reading an I/O register may have side effects or return something new.
+ * <p/>
+ * The bus tells the cache about every write. To keep writes to data cheap,
+ * one bit per page records whether any cached instruction touches the page,
+ * and only writes to such pages look at the entries.
+ */
+public class DecodedInstructionCache {
+
+    private final int[] entries;
+    private final long[] codePages;
+    private boolean enabled = true;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param size The number of addresses on the bus.
+     */
+    public DecodedInstructionCache(int size) {
+        this.entries = new int[size];
+        this.codePages = new long[((size + Bus.PAGE_SIZE - 1) >>> Bus.PAGE_SHIFT + 6) + 1];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the cache on or off. While it is off, every instruction is read
+     * through the bus.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        clear();
+    }
+
+    /**
+     * @param offset The address of an instruction, relative to the start of the bus.
+     * @return The packed instruction, or 0 if it is not cached.
+     */
+    public int get(int offset) {
+        return entries[offset];
+    }
+
+    /**
+     * Cache an instruction that lies entirely in memory.
+     *
+     * @param offset The address of the instruction, relative to the start of the bus.
+     * @param ir     The opcode.
+     * @param arg0   The first operand byte, if any.
+     * @param arg1   The second operand byte, if any.
+     * @param size   The size of the instruction, in bytes.
+     */
+    public void put(int offset, int ir, int arg0, int arg1, int size) {
+        if (!enabled || offset + size > entries.length) {
+            return;
+        }
+        misses++;
+        entries[offset] = pack(ir, arg0, arg1, size);
+        int first = offset >>> Bus.PAGE_SHIFT;
+        int last = (offset + size - 1) >>> Bus.PAGE_SHIFT;
+        for (int page = first; page <= last; page++) {
+            codePages[page >>> 6] |= 1L << page;
+        }
+    }
+
+    /**
+     * Count an instruction that was found in the cache.
+     */
+    public void hit() {
+        hits++;
+    }
+
+    /**
+     * A byte is about to be written through the bus. Any instruction that
+     * includes it is forgotten.
+     *
+     * @param offset The address written, relative to the start of the bus.
+     */
+    public void written(int offset) {
+        if ((codePages[offset >>> (Bus.PAGE_SHIFT + 6)] & (1L << (offset >>> Bus.PAGE_SHIFT))) == 0) {
+            return;
+        }
+        // An instruction is at most three bytes long.
+        entries[offset] = 0;
+        if (offset > 0) {
+            entries[offset - 1] = 0;
+        }
+        if (offset > 1) {
+            entries[offset - 2] = 0;
+        }
+    }
+
+    /**
+     * A range of memory was changed without going through the bus.
+     *
+     * @param start The first offset changed, relative to the start of the bus.
+     * @param end   The last offset changed.
+     */
+    public void invalidate(int start, int end) {
+        int from = Math.max(0, start - 2);
+        int to = Math.min(entries.length - 1, end);
+        if (from > to) {
+            return;
+        }
+        Arrays.fill(entries, from, to + 1, 0);
+    }
+
+    /**
+     * Forget every instruction, for example when the memory map changes.
+     */
+    public void clear() {
+        Arrays.fill(entries, 0);
+        Arrays.fill(codePages, 0L);
+    }
+
+    /**
+     * @return The number of instructions found in the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of instructions decoded and added to the cache.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    static int pack(int ir, int arg0, int arg1, int size) {
+        return ir | arg0 << 8 | arg1 << 16 | size << 24;
+    }
+}
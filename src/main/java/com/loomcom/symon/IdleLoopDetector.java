@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+/**
+ * Recognizes when the CPU is spinning in an idle loop, such as a monitor
+ * polling the ACIA status register for a key press, so that the run loop
+ * can put its thread to sleep instead of burning a host core.
+ * <p/>
+ * A loop is considered idle when the CPU keeps coming back to the same
+ * address with exactly the same registers and flags, without writing to
+ * memory outside the stack page in between. Nothing can change such a loop
+ * except new input, an interrupt, or a device timer, so it is safe to stop
+ * executing it until one of those happens.
+ * <p/>
+ * A 65C02 that executes WAI says so explicitly, and needs no detection;
+ * see {@link #parkUntilInterrupt()}.
+ */
+public class IdleLoopDetector {
+
+    // The longest loop body, in instructions, that will be recognized.
+    private static final int MAX_LOOP_INSTRUCTIONS = 64;
+
+    // How many identical trips around a loop are needed before it is idle.
+    private static final int IDLE_ITERATIONS = 100;
+
+    // The longest time to sleep before checking on the loop again.
+    private static final long MAX_PARK_NANOS = 20000000L;
+
+    // Sleeping for less than this is not worth the bother.
+    private static final long MIN_PARK_NANOS = 100000L;
+
+    private final Cpu cpu;
+    private final Bus bus;
+    private boolean enabled = true;
+
+    // The address the loop is believed to return to, or -1 if not yet known.
+    private int loopPc = -1;
+    private int instructionsInIteration;
+    private int iterations;
+
+    // Machine state the last time the CPU was at loopPc.
+    private int a, x, y, sp, status;
+    private long writeCount;
+
+    // Used to estimate how many cycles the loop would have run while parked.
+    private long firstIterationCycles;
+    private long firstIterationTime;
+
+    private long totalNanosParked;
+
+    public IdleLoopDetector(Cpu cpu, Bus bus) {
+        this.cpu = cpu;
+        this.bus = bus;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        reset();
+    }
+
+    /**
+     * Forget about any loop that was being tracked.
+     */
+    public void reset() {
+        loopPc = -1;
+        iterations = 0;
+        instructionsInIteration = 0;
+    }
+
+    /**
+     * Must be called after each instruction is executed.
+     *
+     * @return True if the CPU is in an idle loop, and the caller may call {@link #park()}.
+     */
+    public boolean instructionExecuted() {
+        if (!enabled) {
+            return false;
+        }
+
+        Cpu.CpuState state = cpu.getCpuState();
+
+        if (loopPc < 0) {
+            // Any jump or branch backwards might be the bottom of a loop.
+            if (state.pc <= state.lastPc) {
+                startIteration(state.pc);
+            }
+            return false;
+        }
+
+        if (state.pc != loopPc) {
+            if (++instructionsInIteration > MAX_LOOP_INSTRUCTIONS) {
+                reset();
+            }
+            return false;
+        }
+
+        if (!sameStateAsLastIteration()) {
+            startIteration(state.pc);
+            return false;
+        }
+
+        instructionsInIteration = 0;
+        return ++iterations >= IDLE_ITERATIONS;
+    }
+
+    /**
+     * Put the calling thread to sleep until the bus signals activity, a device
+     * timer is due, or a short timeout passes. The CPU cycle counter is then
+     * advanced by the number of cycles the idle loop would have taken.
+     *
+     * @return The time spent parked, in nanoseconds.
+     */
+    public long park() {
+        Cpu.CpuState state = cpu.getCpuState();
+        if (state.nmiAsserted || (state.irqAsserted && !state.irqDisableFlag)) {
+            return 0;
+        }
+
+        long timeout = Math.min(MAX_PARK_NANOS, bus.nanosUntilNextDeviceEvent());
+        if (timeout < MIN_PARK_NANOS) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        bus.awaitActivity(timeout);
+        long parked = System.nanoTime() - start;
+
+        // Keep the cycle counter in step with the speed the loop was running at.
+        long loopNanos = start - firstIterationTime;
+        if (loopNanos > 0) {
+            long loopCycles = cpu.getCycleCount() - firstIterationCycles;
+            long idleCycles = (long) ((double) loopCycles * parked / loopNanos);
+            // The number of cycles depends on the host, so a recording must log it.
+            SessionRecorder recorder = bus.getSessionRecorder();
+            if (recorder != null) {
+                recorder.idleCycles(idleCycles);
+            }
+            cpu.addIdleCycles(idleCycles);
+        }
+
+        totalNanosParked += parked;
+        return parked;
+    }
+
+    /**
+     * Put the calling thread to sleep while a 65C02 is halted on a WAI
+     * instruction. The sleep ends when an interrupt is asserted or anything
+     * else signals activity on the bus, or a device timer is due, so that
+     * the caller can poll its input devices and step the CPU again.
+     * <p/>
+     * Unlike {@link #park()}, no cycles are added: a CPU waiting for an
+     * interrupt does no work worth counting.
+     *
+     * @return The time spent parked, in nanoseconds.
+     */
+    public long parkUntilInterrupt() {
+        Cpu.CpuState state = cpu.getCpuState();
+        // WAI ends on any IRQ, whether or not it is masked.
+        if (!state.waitingForInterrupt || state.nmiAsserted || state.irqAsserted) {
+            return 0;
+        }
+
+        long timeout = Math.min(MAX_PARK_NANOS, bus.nanosUntilNextDeviceEvent());
+        if (timeout <= 0) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        bus.awaitActivity(timeout);
+        long parked = System.nanoTime() - start;
+
+        totalNanosParked += parked;
+        return parked;
+    }
+
+    /**
+     * @return The total time spent parked, in nanoseconds.
+     */
+    public long getTotalNanosParked() {
+        return totalNanosParked;
+    }
+
+    private void startIteration(int pc) {
+        loopPc = pc;
+        iterations = 0;
+        instructionsInIteration = 0;
+        saveState();
+        firstIterationCycles = cpu.getCycleCount();
+        firstIterationTime = System.nanoTime();
+    }
+
+    private boolean sameStateAsLastIteration() {
+        return cpu.getAccumulator() == a &&
+               cpu.getXRegister() == x &&
+               cpu.getYRegister() == y &&
+               cpu.getStackPointer() == sp &&
+               cpu.getProcessorStatus() == status &&
+               bus.getWriteCount() == writeCount;
+    }
+
+    private void saveState() {
+        a = cpu.getAccumulator();
+        x = cpu.getXRegister();
+        y = cpu.getYRegister();
+        sp = cpu.getStackPointer();
+        status = cpu.getProcessorStatus();
+        writeCount = bus.getWriteCount();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+/**
+ * The pairs of instructions that the CPU may fuse into a single step when
+ * fusion is enabled. These are the idioms that make up most of the inner
+ * loops of typical 6502 code:
+ * <ul>
+ *     <li>LDA followed by STA, in any addressing modes, as in copy loops
+ *     and <code>LDA (zp),Y / STA (zp),Y</code> block moves</li>
+ *     <li>DEX or DEY followed by BNE, closing a counted loop</li>
+ *     <li>CLC followed by ADC, starting an addition</li>
+ *     <li>INC zp followed by BNE, as in a 16-bit increment</li>
+ * </ul>
+ * A fused step executes both instructions back to back, sharing the work
+ * done once per step: the interrupt poll, the clock delay and the bookkeeping
+ * around them. Each instruction is still executed exactly as it would be
+ * alone, so registers, flags, memory and cycle counts are identical.
+ */
+public class InstructionFusion {
+
+    private static final int[] LDA = {0xa1, 0xa5, 0xa9, 0xad, 0xb1, 0xb5, 0xb9, 0xbd};
+    private static final int[] STA = {0x81, 0x85, 0x8d, 0x91, 0x95, 0x99, 0x9d};
+    private static final int[] ADC = {0x61, 0x65, 0x69, 0x6d, 0x71, 0x75, 0x79, 0x7d};
+
+    private static final int DEX = 0xca;
+    private static final int DEY = 0x88;
+    private static final int BNE = 0xd0;
+    private static final int CLC = 0x18;
+    private static final int INC_ZP = 0xe6;
+
+    // One entry per pair of opcodes, indexed by (first << 8) | second.
+    private static final boolean[] fusable = new boolean[0x10000];
+
+    static {
+        for (int lda : LDA) {
+            for (int sta : STA) {
+                add(lda, sta);
+            }
+        }
+        add(DEX, BNE);
+        add(DEY, BNE);
+        for (int adc : ADC) {
+            add(CLC, adc);
+        }
+        add(INC_ZP, BNE);
+    }
+
+    private InstructionFusion() {
+    }
+
+    private static void add(int first, int second) {
+        fusable[first << 8 | second] = true;
+    }
+
+    /**
+     * @param first  The opcode of the first instruction.
+     * @param second The opcode of the instruction that follows it.
+     * @return True if the pair is one of the idioms that may be fused.
+     */
+    public static boolean canFuse(int first, int second) {
+        return fusable[first << 8 | second];
+    }
+}
@@ -29,7 +29,7 @@ public interface InstructionTable {
      * Enumeration of valid CPU behaviors. These determine what behavior and instruction
      * set will be simulated, depending on desired version of 6502.
      *
-     * TODO: As of version 0.6, this is still not used! All CPUs are "idealized" NMOS 6502 only.
+     * The NMOS behaviors are simulated by {@link Cpu}, and CMOS by {@link Cpu65C02}.
      */
     public enum CpuBehavior {
         /**
@@ -144,6 +144,24 @@ public interface InstructionTable {
             }
         },
 
+        ZPI {
+            public String toString() {
+                return "Zeropage Indirect";
+            }
+        },
+
+        AIX {
+            public String toString() {
+                return "Absolute, X-indexed Indirect";
+            }
+        },
+
+        ZPR {
+            public String toString() {
+                return "Zeropage, Relative";
+            }
+        },
+
         NUL {
             public String toString() {
                 return "NULL";
@@ -306,4 +324,159 @@ public interface InstructionTable {
         2, 5, 0, 0, 0, 4, 6, 0, 2, 4, 0, 0, 0, 4, 7, 0
     };
 
+    // 65C02 opcodes, including the Rockwell and WDC bit manipulation
+    // instructions and WDC's WAI and STP. Every undefined opcode is a NOP.
+
+    /**
+     * 65C02 instruction opcode names.
+     */
+    public static final String[] cmosOpcodeNames = {
+         "BRK",  "ORA",  "NOP",  "NOP",  "TSB",  "ORA",  "ASL", "RMB0",
+         "PHP",  "ORA",  "ASL",  "NOP",  "TSB",  "ORA",  "ASL", "BBR0",
+         "BPL",  "ORA",  "ORA",  "NOP",  "TRB",  "ORA",  "ASL", "RMB1",
+         "CLC",  "ORA",  "INC",  "NOP",  "TRB",  "ORA",  "ASL", "BBR1",
+         "JSR",  "AND",  "NOP",  "NOP",  "BIT",  "AND",  "ROL", "RMB2",
+         "PLP",  "AND",  "ROL",  "NOP",  "BIT",  "AND",  "ROL", "BBR2",
+         "BMI",  "AND",  "AND",  "NOP",  "BIT",  "AND",  "ROL", "RMB3",
+         "SEC",  "AND",  "DEC",  "NOP",  "BIT",  "AND",  "ROL", "BBR3",
+         "RTI",  "EOR",  "NOP",  "NOP",  "NOP",  "EOR",  "LSR", "RMB4",
+         "PHA",  "EOR",  "LSR",  "NOP",  "JMP",  "EOR",  "LSR", "BBR4",
+         "BVC",  "EOR",  "EOR",  "NOP",  "NOP",  "EOR",  "LSR", "RMB5",
+         "CLI",  "EOR",  "PHY",  "NOP",  "NOP",  "EOR",  "LSR", "BBR5",
+         "RTS",  "ADC",  "NOP",  "NOP",  "STZ",  "ADC",  "ROR", "RMB6",
+         "PLA",  "ADC",  "ROR",  "NOP",  "JMP",  "ADC",  "ROR", "BBR6",
+         "BVS",  "ADC",  "ADC",  "NOP",  "STZ",  "ADC",  "ROR", "RMB7",
+         "SEI",  "ADC",  "PLY",  "NOP",  "JMP",  "ADC",  "ROR", "BBR7",
+         "BRA",  "STA",  "NOP",  "NOP",  "STY",  "STA",  "STX", "SMB0",
+         "DEY",  "BIT",  "TXA",  "NOP",  "STY",  "STA",  "STX", "BBS0",
+         "BCC",  "STA",  "STA",  "NOP",  "STY",  "STA",  "STX", "SMB1",
+         "TYA",  "STA",  "TXS",  "NOP",  "STZ",  "STA",  "STZ", "BBS1",
+         "LDY",  "LDA",  "LDX",  "NOP",  "LDY",  "LDA",  "LDX", "SMB2",
+         "TAY",  "LDA",  "TAX",  "NOP",  "LDY",  "LDA",  "LDX", "BBS2",
+         "BCS",  "LDA",  "LDA",  "NOP",  "LDY",  "LDA",  "LDX", "SMB3",
+         "CLV",  "LDA",  "TSX",  "NOP",  "LDY",  "LDA",  "LDX", "BBS3",
+         "CPY",  "CMP",  "NOP",  "NOP",  "CPY",  "CMP",  "DEC", "SMB4",
+         "INY",  "CMP",  "DEX",  "WAI",  "CPY",  "CMP",  "DEC", "BBS4",
+         "BNE",  "CMP",  "CMP",  "NOP",  "NOP",  "CMP",  "DEC", "SMB5",
+         "CLD",  "CMP",  "PHX",  "STP",  "NOP",  "CMP",  "DEC", "BBS5",
+         "CPX",  "SBC",  "NOP",  "NOP",  "CPX",  "SBC",  "INC", "SMB6",
+         "INX",  "SBC",  "NOP",  "NOP",  "CPX",  "SBC",  "INC", "BBS6",
+         "BEQ",  "SBC",  "SBC",  "NOP",  "NOP",  "SBC",  "INC", "SMB7",
+         "SED",  "SBC",  "PLX",  "NOP",  "NOP",  "SBC",  "INC", "BBS7"
+    };
+
+    /**
+     * 65C02 instruction addressing modes.
+     */
+    public static final Mode[] cmosInstructionModes = {
+        Mode.IMP, Mode.XIN, Mode.IMM, Mode.IMP,   // 0x00-0x03
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0x04-0x07
+        Mode.IMP, Mode.IMM, Mode.ACC, Mode.IMP,   // 0x08-0x0b
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0x0c-0x0f
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0x10-0x13
+        Mode.ZPG, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0x14-0x17
+        Mode.IMP, Mode.ABY, Mode.ACC, Mode.IMP,   // 0x18-0x1b
+        Mode.ABS, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0x1c-0x1f
+        Mode.ABS, Mode.XIN, Mode.IMM, Mode.IMP,   // 0x20-0x23
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0x24-0x27
+        Mode.IMP, Mode.IMM, Mode.ACC, Mode.IMP,   // 0x28-0x2b
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0x2c-0x2f
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0x30-0x33
+        Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0x34-0x37
+        Mode.IMP, Mode.ABY, Mode.ACC, Mode.IMP,   // 0x38-0x3b
+        Mode.ABX, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0x3c-0x3f
+        Mode.IMP, Mode.XIN, Mode.IMM, Mode.IMP,   // 0x40-0x43
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0x44-0x47
+        Mode.IMP, Mode.IMM, Mode.ACC, Mode.IMP,   // 0x48-0x4b
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0x4c-0x4f
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0x50-0x53
+        Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0x54-0x57
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0x58-0x5b
+        Mode.ABS, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0x5c-0x5f
+        Mode.IMP, Mode.XIN, Mode.IMM, Mode.IMP,   // 0x60-0x63
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0x64-0x67
+        Mode.IMP, Mode.IMM, Mode.ACC, Mode.IMP,   // 0x68-0x6b
+        Mode.IND, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0x6c-0x6f
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0x70-0x73
+        Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0x74-0x77
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0x78-0x7b
+        Mode.AIX, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0x7c-0x7f
+        Mode.REL, Mode.XIN, Mode.IMM, Mode.IMP,   // 0x80-0x83
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0x84-0x87
+        Mode.IMP, Mode.IMM, Mode.IMP, Mode.IMP,   // 0x88-0x8b
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0x8c-0x8f
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0x90-0x93
+        Mode.ZPX, Mode.ZPX, Mode.ZPY, Mode.ZPG,   // 0x94-0x97
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0x98-0x9b
+        Mode.ABS, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0x9c-0x9f
+        Mode.IMM, Mode.XIN, Mode.IMM, Mode.IMP,   // 0xa0-0xa3
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0xa4-0xa7
+        Mode.IMP, Mode.IMM, Mode.IMP, Mode.IMP,   // 0xa8-0xab
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0xac-0xaf
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0xb0-0xb3
+        Mode.ZPX, Mode.ZPX, Mode.ZPY, Mode.ZPG,   // 0xb4-0xb7
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0xb8-0xbb
+        Mode.ABX, Mode.ABX, Mode.ABY, Mode.ZPR,   // 0xbc-0xbf
+        Mode.IMM, Mode.XIN, Mode.IMM, Mode.IMP,   // 0xc0-0xc3
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0xc4-0xc7
+        Mode.IMP, Mode.IMM, Mode.IMP, Mode.IMP,   // 0xc8-0xcb
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0xcc-0xcf
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0xd0-0xd3
+        Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0xd4-0xd7
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0xd8-0xdb
+        Mode.ABS, Mode.ABX, Mode.ABX, Mode.ZPR,   // 0xdc-0xdf
+        Mode.IMM, Mode.XIN, Mode.IMM, Mode.IMP,   // 0xe0-0xe3
+        Mode.ZPG, Mode.ZPG, Mode.ZPG, Mode.ZPG,   // 0xe4-0xe7
+        Mode.IMP, Mode.IMM, Mode.IMP, Mode.IMP,   // 0xe8-0xeb
+        Mode.ABS, Mode.ABS, Mode.ABS, Mode.ZPR,   // 0xec-0xef
+        Mode.REL, Mode.INY, Mode.ZPI, Mode.IMP,   // 0xf0-0xf3
+        Mode.ZPX, Mode.ZPX, Mode.ZPX, Mode.ZPG,   // 0xf4-0xf7
+        Mode.IMP, Mode.ABY, Mode.IMP, Mode.IMP,   // 0xf8-0xfb
+        Mode.ABS, Mode.ABX, Mode.ABX, Mode.ZPR    // 0xfc-0xff
+    };
+
+    /**
+     * Size, in bytes, required for each 65C02 instruction.
+     */
+    public static final int[] cmosInstructionSizes = {
+        1, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        3, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        1, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        1, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 2, 1, 1, 3, 3, 3, 3,
+        2, 2, 2, 1, 2, 2, 2, 2, 1, 3, 1, 1, 3, 3, 3, 3
+    };
+
+    /**
+     * Number of clock cycles required for each 65C02 instruction
+     */
+    public static final int[] cmosInstructionClocks = {
+        7, 6, 2, 1, 5, 3, 5, 5, 3, 2, 2, 1, 6, 4, 6, 5,
+        2, 5, 5, 1, 5, 4, 6, 5, 2, 4, 2, 1, 6, 4, 6, 5,
+        6, 6, 2, 1, 3, 3, 5, 5, 4, 2, 2, 1, 4, 4, 6, 5,
+        2, 5, 5, 1, 4, 4, 6, 5, 2, 4, 2, 1, 4, 4, 6, 5,
+        6, 6, 2, 1, 3, 3, 5, 5, 3, 2, 2, 1, 3, 4, 6, 5,
+        2, 5, 5, 1, 4, 4, 6, 5, 2, 4, 3, 1, 8, 4, 6, 5,
+        6, 6, 2, 1, 3, 3, 5, 5, 4, 2, 2, 1, 6, 4, 6, 5,
+        2, 5, 5, 1, 4, 4, 6, 5, 2, 4, 4, 1, 6, 4, 6, 5,
+        3, 6, 2, 1, 3, 3, 3, 5, 2, 2, 2, 1, 4, 4, 4, 5,
+        2, 6, 5, 1, 4, 4, 4, 5, 2, 5, 2, 1, 4, 5, 5, 5,
+        2, 6, 2, 1, 3, 3, 3, 5, 2, 2, 2, 1, 4, 4, 4, 5,
+        2, 5, 5, 1, 4, 4, 4, 5, 2, 4, 2, 1, 4, 4, 4, 5,
+        2, 6, 2, 1, 3, 3, 5, 5, 2, 2, 2, 3, 4, 4, 6, 5,
+        2, 5, 5, 1, 4, 4, 6, 5, 2, 4, 3, 3, 4, 4, 7, 5,
+        2, 6, 2, 1, 3, 3, 5, 5, 2, 2, 2, 1, 4, 4, 6, 5,
+        2, 5, 5, 1, 4, 4, 6, 5, 2, 4, 4, 1, 4, 4, 7, 5
+    };
+
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The IRQ and NMI inputs of the CPU, shared between the CPU thread and any
+ * device or UI thread that wants to interrupt it.
+ * <p/>
+ * Each interrupting device may drive its own source line. All IRQ sources
+ * are wired-OR together, so the CPU sees an IRQ for as long as any one of
+ * them is asserted. NMI is edge triggered: a falling edge on the combined
+ * NMI sources latches a pending NMI, which stays pending until the CPU
+ * takes it, however long the line is held low.
+ * <p/>
+ * All of this state lives in a single int, so that raising or clearing a
+ * line is one compare-and-set from any thread, and the CPU can find out
+ * that nothing is pending with one read per instruction.
+ */
+public class InterruptLines {
+
+    /**
+     * The number of IRQ and of NMI sources available.
+     */
+    public static final int SOURCES = 15;
+
+    /**
+     * The source used by callers that do not name one. An IRQ on this source
+     * is acknowledged automatically when the CPU takes it, as devices that
+     * use it never clear the line themselves.
+     */
+    public static final int DEFAULT_SOURCE = 0;
+
+    // Bits 0-14 are IRQ sources, 15-29 NMI sources, and 30 the NMI latch.
+    private static final int IRQ_MASK    = 0x00007fff;
+    private static final int NMI_SHIFT   = 15;
+    private static final int NMI_MASK    = IRQ_MASK << NMI_SHIFT;
+    private static final int NMI_PENDING = 1 << 30;
+
+    private static final AtomicIntegerFieldUpdater<InterruptLines> LINES =
+            AtomicIntegerFieldUpdater.newUpdater(InterruptLines.class, "lines");
+
+    private volatile int lines;
+
+    // The IRQ sources that reach the CPU. See InterruptController.
+    private volatile int irqMask = IRQ_MASK;
+
+    /**
+     * Returns the raw state of all lines. This is zero whenever there is
+     * nothing for the CPU to do, which is the common case.
+     */
+    public int get() {
+        return lines;
+    }
+
+    /**
+     * Replace the state of all lines, for restoring a snapshot.
+     *
+     * @param value A value previously returned by {@link #get()}.
+     */
+    public void set(int value) {
+        lines = value;
+    }
+
+    public boolean isIrqAsserted() {
+        return (lines & irqMask) != 0;
+    }
+
+    /**
+     * @return One bit for each IRQ source that is asserted, masked or not.
+     */
+    public int getIrqRequests() {
+        return lines & IRQ_MASK;
+    }
+
+    /**
+     * Choose which IRQ sources reach the CPU. A masked source may still be
+     * asserted, and is seen as soon as it is unmasked.
+     *
+     * @param mask One bit for each source, set if it is enabled.
+     */
+    public void setIrqMask(int mask) {
+        irqMask = mask & IRQ_MASK;
+    }
+
+    public int getIrqMask() {
+        return irqMask;
+    }
+
+    public boolean isNmiPending() {
+        return (lines & NMI_PENDING) != 0;
+    }
+
+    public void raiseIrq(int source) {
+        setBits(irqBit(source));
+    }
+
+    public void clearIrq(int source) {
+        clearBits(irqBit(source));
+    }
+
+    public void raiseNmi(int source) {
+        int bit = nmiBit(source);
+        int old;
+        int update;
+        do {
+            old = lines;
+            update = old | bit;
+            // Only a high to low transition of the combined line latches an NMI.
+            if ((old & NMI_MASK) == 0) {
+                update |= NMI_PENDING;
+            }
+        } while (!LINES.compareAndSet(this, old, update));
+    }
+
+    public void clearNmi(int source) {
+        clearBits(nmiBit(source));
+    }
+
+    /**
+     * Clear a pending NMI without it being taken, leaving the lines as they are.
+     */
+    public void cancelNmi() {
+        clearBits(NMI_PENDING);
+    }
+
+    /**
+     * Called by the CPU when it begins servicing an NMI.
+     *
+     * @return True if an NMI was pending.
+     */
+    public boolean acknowledgeNmi() {
+        int old;
+        do {
+            old = lines;
+            if ((old & NMI_PENDING) == 0) {
+                return false;
+            }
+        } while (!LINES.compareAndSet(this, old, old & ~NMI_PENDING));
+        return true;
+    }
+
+    /**
+     * Called by the CPU when it begins servicing an IRQ.
+     */
+    public void acknowledgeIrq() {
+        clearBits(irqBit(DEFAULT_SOURCE));
+    }
+
+    private void setBits(int bits) {
+        int old;
+        do {
+            old = lines;
+        } while (!LINES.compareAndSet(this, old, old | bits));
+    }
+
+    private void clearBits(int bits) {
+        int old;
+        do {
+            old = lines;
+        } while (!LINES.compareAndSet(this, old, old & ~bits));
+    }
+
+    private static int irqBit(int source) {
+        checkSource(source);
+        return 1 << source;
+    }
+
+    private static int nmiBit(int source) {
+        checkSource(source);
+        return 1 << (source + NMI_SHIFT);
+    }
+
+    private static void checkSource(int source) {
+        if (source < 0 || source >= SOURCES) {
+            throw new IllegalArgumentException("No such interrupt source: " + source);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.BankedMemory;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.machines.Machine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * A known state of a machine that it can be reset to cheaply and often,
+ * for example between test cases or fuzzing runs.
+ * <p/>
+ * A checkpoint keeps a full {@link MachineSnapshot} as its base, and uses
+ * the dirty page tracking of the {@link Bus} to find out which pages of RAM
+ * the guest has changed since. Resetting, or taking and restoring an
+ * incremental {@link Delta}, only copies those pages, so it costs time in
+ * proportion to what the guest has modified rather than to the size of RAM.
+ * {@link BankedMemory} is handled the same way, a bank at a time, using
+ * the dirty banks it tracks itself.
+ * <p/>
+ * A bus can only track dirty pages for one checkpoint at a time. If
+ * something else clears the dirty pages, the checkpoint notices and falls
+ * back to copying all of RAM.
+ */
+public class MachineCheckpoint {
+
+    /**
+     * The changes a machine has made since its checkpoint: the CPU and
+     * device registers, and the contents of the dirty pages of RAM and
+     * dirty banks of banked memory.
+     */
+    public static class Delta {
+        private final MachineCheckpoint checkpoint;
+        private final long[] pages;
+        private final byte[] registers;
+        private final byte[] pageData;
+        private final long[][] banks;
+        private final byte[] bankData;
+
+        private Delta(MachineCheckpoint checkpoint, long[] pages, byte[] registers, byte[] pageData,
+                      long[][] banks, byte[] bankData) {
+            this.checkpoint = checkpoint;
+            this.pages = pages;
+            this.registers = registers;
+            this.pageData = pageData;
+            this.banks = banks;
+            this.bankData = bankData;
+        }
+
+        /**
+         * @return The number of pages of RAM held by this delta.
+         */
+        public int getPageCount() {
+            int count = 0;
+            for (long bits : pages) {
+                count += Long.bitCount(bits);
+            }
+            return count;
+        }
+
+        /**
+         * @return The approximate size of this delta in bytes.
+         */
+        public int getSize() {
+            int size = pages.length * 8 + registers.length + pageData.length + bankData.length;
+            for (long[] map : banks) {
+                size += map.length * 8;
+            }
+            return size;
+        }
+    }
+
+    private final Bus bus;
+    private final MachineSnapshot base;
+    private final byte[] image;
+
+    // The RAM devices on the bus, and where their contents are in the image.
+    private final List<Memory> ram = new ArrayList<Memory>();
+    private final List<Integer> ramOffsets = new ArrayList<Integer>();
+
+    // Every other device, and where its state is in the image.
+    private final List<Device> others = new ArrayList<Device>();
+    private final List<Integer> otherOffsets = new ArrayList<Integer>();
+    private int registerSize = Cpu.STATE_SIZE;
+
+    // Banked memory, where its selected banks are in the image, and the
+    // dirty bank epoch of each when this checkpoint last cleared it.
+    private final List<BankedMemory> banked = new ArrayList<BankedMemory>();
+    private final List<Integer> bankedOffsets = new ArrayList<Integer>();
+    private final long[] bankedEpochs;
+
+    // The dirty page epoch of the bus when this checkpoint last cleared it.
+    private long epoch;
+
+    public MachineCheckpoint(Machine machine) {
+        this(machine.getBus());
+    }
+
+    /**
+     * Take a checkpoint of the current state of the CPU and all devices
+     * attached to a bus, and start tracking dirty pages from here.
+     */
+    public MachineCheckpoint(Bus bus) {
+        this.bus = bus;
+        this.base = MachineSnapshot.take(bus);
+        this.image = base.getImage();
+
+        SortedSet<Device> devices = bus.getDevices();
+        int[] offsets = base.getStateOffsets(devices);
+        int i = 0;
+        for (Device device : devices) {
+            if (device instanceof Memory && !((Memory) device).isReadOnly()) {
+                ram.add((Memory) device);
+                ramOffsets.add(offsets[i]);
+            } else if (device instanceof BankedMemory) {
+                BankedMemory memory = (BankedMemory) device;
+                banked.add(memory);
+                bankedOffsets.add(offsets[i]);
+                registerSize += memory.getWindowCount() * 4;
+            } else {
+                others.add(device);
+                otherOffsets.add(offsets[i]);
+                registerSize += device.getStateSize();
+            }
+            i++;
+        }
+
+        this.bankedEpochs = new long[banked.size()];
+        for (i = 0; i < banked.size(); i++) {
+            bankedEpochs[i] = banked.get(i).clearDirtyBanks();
+        }
+        this.epoch = bus.clearDirtyPages();
+    }
+
+    /**
+     * @return The full snapshot this checkpoint was taken with.
+     */
+    public MachineSnapshot getBase() {
+        return base;
+    }
+
+    /**
+     * @return The number of pages the guest has changed since the last reset.
+     */
+    public int getDirtyPageCount() {
+        return bus.getDirtyPageEpoch() == epoch ? bus.getDirtyPageCount() : bus.getPageCount();
+    }
+
+    /**
+     * Put the machine back into the state it was in when the checkpoint
+     * was taken. Only the pages of RAM that have been written are copied.
+     */
+    public void reset() {
+        long[] dirty = dirtyPages();
+        for (int word = 0; word < dirty.length; word++) {
+            long bits = dirty[word];
+            while (bits != 0) {
+                int page = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                restoreBasePage(page);
+            }
+        }
+
+        for (int i = 0; i < banked.size(); i++) {
+            BankedMemory memory = banked.get(i);
+            long[] dirtyBanks = dirtyBanks(i);
+            for (int word = 0; word < dirtyBanks.length; word++) {
+                long bits = dirtyBanks[word];
+                while (bits != 0) {
+                    int bank = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    restoreBaseBank(i, bank);
+                }
+            }
+            ByteBuffer windows = ByteBuffer.wrap(image, bankedOffsets.get(i), memory.getWindowCount() * 4);
+            for (int window = 0; window < memory.getWindowCount(); window++) {
+                memory.selectBank(window, windows.getInt() / memory.getWindowSize());
+            }
+            bankedEpochs[i] = memory.clearDirtyBanks();
+        }
+
+        bus.getCpu().restoreState(ByteBuffer.wrap(image, MachineSnapshot.HEADER_SIZE, Cpu.STATE_SIZE));
+        for (int i = 0; i < others.size(); i++) {
+            Device device = others.get(i);
+            device.restoreState(ByteBuffer.wrap(image, otherOffsets.get(i), device.getStateSize()));
+        }
+
+        epoch = bus.clearDirtyPages();
+    }
+
+    /**
+     * Save the changes made since the checkpoint was taken, or last reset.
+     */
+    public Delta takeDelta() {
+        long[] pages = dirtyPages();
+
+        ByteBuffer registers = ByteBuffer.allocate(registerSize);
+        bus.getCpu().saveState(registers);
+        for (Device device : others) {
+            device.saveState(registers);
+        }
+        for (BankedMemory memory : banked) {
+            for (int window = 0; window < memory.getWindowCount(); window++) {
+                registers.putInt(memory.getSelectedBank(window));
+            }
+        }
+
+        ByteBuffer pageData = ByteBuffer.allocate(pageDataSize(pages));
+        for (int word = 0; word < pages.length; word++) {
+            long bits = pages[word];
+            while (bits != 0) {
+                int page = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int pageStart = pageStart(page);
+                for (Memory memory : ram) {
+                    int lo = Math.max(pageStart, memory.startAddress());
+                    int hi = Math.min(pageStart + Bus.PAGE_SIZE - 1, memory.endAddress());
+                    if (lo <= hi) {
+                        pageData.put(memory.getDmaAccess(), lo - memory.startAddress(), hi - lo + 1);
+                    }
+                }
+            }
+        }
+
+        long[][] banks = new long[banked.size()][];
+        int bankDataSize = 0;
+        for (int i = 0; i < banked.size(); i++) {
+            banks[i] = dirtyBanks(i);
+            for (long bits : banks[i]) {
+                bankDataSize += Long.bitCount(bits) * banked.get(i).getWindowSize();
+            }
+        }
+        ByteBuffer bankData = ByteBuffer.allocate(bankDataSize);
+        for (int i = 0; i < banked.size(); i++) {
+            BankedMemory memory = banked.get(i);
+            int bankSize = memory.getWindowSize();
+            for (int word = 0; word < banks[i].length; word++) {
+                long bits = banks[i][word];
+                while (bits != 0) {
+                    int bank = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    bankData.put(memory.getStore(), bank * bankSize, bankSize);
+                }
+            }
+        }
+
+        return new Delta(this, pages, registers.array(), pageData.array(), banks, bankData.array());
+    }
+
+    /**
+     * Put the machine into the state it was in when a delta was taken.
+     * Pages that are dirty now but not in the delta are copied from the
+     * checkpoint, and the pages in the delta are copied from the delta.
+     *
+     * @throws IllegalArgumentException if the delta was taken from another checkpoint.
+     */
+    public void restore(Delta delta) {
+        if (delta.checkpoint != this) {
+            throw new IllegalArgumentException("Delta belongs to a different checkpoint");
+        }
+
+        long[] dirty = dirtyPages();
+        ByteBuffer pageData = ByteBuffer.wrap(delta.pageData);
+        for (int word = 0; word < dirty.length; word++) {
+            long bits = dirty[word] | delta.pages[word];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int page = (word << 6) + bit;
+                if ((delta.pages[word] & (1L << bit)) != 0) {
+                    restoreDeltaPage(page, pageData);
+                } else {
+                    restoreBasePage(page);
+                }
+            }
+        }
+
+        ByteBuffer bankData = ByteBuffer.wrap(delta.bankData);
+        for (int i = 0; i < banked.size(); i++) {
+            BankedMemory memory = banked.get(i);
+            int bankSize = memory.getWindowSize();
+            long[] dirtyBanks = dirtyBanks(i);
+            for (int word = 0; word < dirtyBanks.length; word++) {
+                long bits = dirtyBanks[word] | delta.banks[i][word];
+                while (bits != 0) {
+                    int bit = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    int bank = (word << 6) + bit;
+                    if ((delta.banks[i][word] & (1L << bit)) != 0) {
+                        bankData.get(memory.getStore(), bank * bankSize, bankSize);
+                    } else {
+                        restoreBaseBank(i, bank);
+                    }
+                }
+            }
+        }
+
+        ByteBuffer registers = ByteBuffer.wrap(delta.registers);
+        bus.getCpu().restoreState(registers);
+        for (Device device : others) {
+            device.restoreState(registers);
+        }
+        for (int i = 0; i < banked.size(); i++) {
+            BankedMemory memory = banked.get(i);
+            for (int window = 0; window < memory.getWindowCount(); window++) {
+                memory.selectBank(window, registers.getInt());
+            }
+            bankedEpochs[i] = memory.clearDirtyBanks();
+            memory.setDirtyBanks(delta.banks[i]);
+        }
+
+        epoch = bus.clearDirtyPages();
+        bus.setDirtyPages(delta.pages);
+    }
+
+    /**
+     * The pages changed since the checkpoint, or all of them if the bus has
+     * been tracking dirty pages for something else in the meantime.
+     */
+    private long[] dirtyPages() {
+        if (bus.getDirtyPageEpoch() == epoch) {
+            return bus.getDirtyPages();
+        }
+        long[] all = bus.getDirtyPages();
+        int pageCount = bus.getPageCount();
+        for (int page = 0; page < pageCount; page++) {
+            all[page >>> 6] |= 1L << page;
+        }
+        return all;
+    }
+
+    /**
+     * The banks of a banked memory changed since the checkpoint, or all of
+     * them if its dirty banks have been cleared by something else.
+     */
+    private long[] dirtyBanks(int i) {
+        BankedMemory memory = banked.get(i);
+        long[] dirty = memory.getDirtyBanks();
+        if (memory.getDirtyBankEpoch() != bankedEpochs[i]) {
+            for (int bank = 0; bank < memory.getBankCount(); bank++) {
+                dirty[bank >>> 6] |= 1L << bank;
+            }
+        }
+        return dirty;
+    }
+
+    private void restoreBaseBank(int i, int bank) {
+        BankedMemory memory = banked.get(i);
+        int bankSize = memory.getWindowSize();
+        int storeOffset = bankedOffsets.get(i) + memory.getWindowCount() * 4;
+        System.arraycopy(image, storeOffset + bank * bankSize, memory.getStore(), bank * bankSize, bankSize);
+    }
+
+    private int pageStart(int page) {
+        return bus.startAddress() + (page << Bus.PAGE_SHIFT);
+    }
+
+    private int pageDataSize(long[] pages) {
+        int size = 0;
+        for (int word = 0; word < pages.length; word++) {
+            long bits = pages[word];
+            while (bits != 0) {
+                int page = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int pageStart = pageStart(page);
+                for (Memory memory : ram) {
+                    int lo = Math.max(pageStart, memory.startAddress());
+                    int hi = Math.min(pageStart + Bus.PAGE_SIZE - 1, memory.endAddress());
+                    if (lo <= hi) {
+                        size += hi - lo + 1;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private void restoreBasePage(int page) {
+        int pageStart = pageStart(page);
+        for (int i = 0; i < ram.size(); i++) {
+            Memory memory = ram.get(i);
+            int lo = Math.max(pageStart, memory.startAddress());
+            int hi = Math.min(pageStart + Bus.PAGE_SIZE - 1, memory.endAddress());
+            if (lo <= hi) {
+                int offset = lo - memory.startAddress();
+                System.arraycopy(image, ramOffsets.get(i) + offset, memory.getDmaAccess(), offset, hi - lo + 1);
+                bus.getDecodeCache().invalidate(lo - bus.startAddress(), hi - bus.startAddress());
+            }
+        }
+    }
+
+    private void restoreDeltaPage(int page, ByteBuffer pageData) {
+        int pageStart = pageStart(page);
+        for (Memory memory : ram) {
+            int lo = Math.max(pageStart, memory.startAddress());
+            int hi = Math.min(pageStart + Bus.PAGE_SIZE - 1, memory.endAddress());
+            if (lo <= hi) {
+                pageData.get(memory.getDmaAccess(), lo - memory.startAddress(), hi - lo + 1);
+                bus.getDecodeCache().invalidate(lo - bus.startAddress(), hi - bus.startAddress());
+            }
+        }
+    }
+}
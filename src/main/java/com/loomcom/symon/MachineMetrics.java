@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.SdController;
+import com.loomcom.symon.machines.Machine;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Live statistics for one simulated machine, published as a JMX MBean.
+ * <p/>
+ * The counters themselves are plain fields owned by the CPU and devices,
+ * which only ever increment them. This class reads them on demand, so
+ * keeping the MBean registered costs nothing while nobody is looking.
+ * <p/>
+ * Notable events (resets, breakpoints, slow UI updates and trace log
+ * flushes) are emitted as JMX notifications.
+ */
+public class MachineMetrics extends NotificationBroadcasterSupport implements MachineMetricsMBean {
+
+    public static final String RESET_NOTIFICATION       = "symon.reset";
+    public static final String BREAKPOINT_NOTIFICATION  = "symon.breakpoint";
+    public static final String SLOW_UPDATE_NOTIFICATION = "symon.ui.slowUpdate";
+    public static final String TRACE_FLUSH_NOTIFICATION = "symon.trace.flush";
+
+    public static final String RUN_STATE_STOPPED  = "STOPPED";
+    public static final String RUN_STATE_RUNNING  = "RUNNING";
+    public static final String RUN_STATE_STEPPING = "STEPPING";
+
+    private final static Logger logger = Logger.getLogger(MachineMetrics.class.getName());
+
+    // Gives every registered machine a unique ObjectName
+    private static final AtomicInteger instanceCounter = new AtomicInteger();
+
+    private final Machine machine;
+    private final AtomicLong sequenceNumber = new AtomicLong();
+    private volatile String runState = RUN_STATE_STOPPED;
+    private ObjectName objectName;
+
+    // State for computing the effective clock rate between reads
+    private long lastSampleCycles;
+    private long lastSampleTime;
+
+    public MachineMetrics(Machine machine) {
+        super(new MBeanNotificationInfo[] {
+                new MBeanNotificationInfo(new String[] {
+                        RESET_NOTIFICATION, BREAKPOINT_NOTIFICATION,
+                        SLOW_UPDATE_NOTIFICATION, TRACE_FLUSH_NOTIFICATION},
+                        Notification.class.getName(), "Simulator events")
+        });
+        this.machine = machine;
+        this.lastSampleTime = System.nanoTime();
+    }
+
+    /**
+     * Register this MBean with the platform MBean server. Failures are
+     * logged, since the simulator works fine without management.
+     */
+    public void register() {
+        try {
+            objectName = new ObjectName("com.loomcom.symon:type=Machine,name=" +
+                                        ObjectName.quote(machine.getName()) +
+                                        ",id=" + instanceCounter.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Unable to register machine metrics MBean: " + ex.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Remove this MBean from the platform MBean server, if it was registered.
+     */
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Unable to unregister machine metrics MBean: " + ex.getMessage());
+        }
+        objectName = null;
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public void setRunState(String runState) {
+        this.runState = runState;
+    }
+
+    public String getMachineName() {
+        return machine.getName();
+    }
+
+    public String getRunState() {
+        return runState;
+    }
+
+    public long getInstructionsExecuted() {
+        return machine.getCpu().getInstructionCount();
+    }
+
+    public long getCyclesEmulated() {
+        return machine.getCpu().getCycleCount();
+    }
+
+    public synchronized double getEffectiveMhz() {
+        long cycles = machine.getCpu().getCycleCount();
+        long now = System.nanoTime();
+        long elapsed = now - lastSampleTime;
+        double mhz = elapsed > 0 ? (cycles - lastSampleCycles) * 1000.0 / elapsed : 0.0;
+        lastSampleCycles = cycles;
+        lastSampleTime = now;
+        return mhz;
+    }
+
+    public long getIrqCount() {
+        return machine.getCpu().getIrqCount();
+    }
+
+    public long getNmiCount() {
+        return machine.getCpu().getNmiCount();
+    }
+
+    public long getAciaBytesIn() {
+        Acia acia = machine.getAcia();
+        return acia == null ? 0 : acia.getBytesReceived();
+    }
+
+    public long getAciaBytesOut() {
+        Acia acia = machine.getAcia();
+        return acia == null ? 0 : acia.getBytesTransmitted();
+    }
+
+    public long getSdSectorsRead() {
+        SdController sd = findSdController();
+        return sd == null ? 0 : sd.getSectorsRead();
+    }
+
+    public long getSdSectorsWritten() {
+        SdController sd = findSdController();
+        return sd == null ? 0 : sd.getSectorsWritten();
+    }
+
+    public long getUnmappedReads() {
+        return machine.getBus().getUnmappedReadCount();
+    }
+
+    public long getUnmappedWrites() {
+        return machine.getBus().getUnmappedWriteCount();
+    }
+
+    /**
+     * Report a CPU reset.
+     *
+     * @param isColdReset True if memory was cleared as well.
+     */
+    public void resetPerformed(boolean isColdReset) {
+        emit(RESET_NOTIFICATION, (isColdReset ? "Hard" : "Soft") + " reset", null);
+    }
+
+    /**
+     * Report that the run loop stopped on a breakpoint.
+     *
+     * @param address The address of the instruction that caused the stop.
+     */
+    public void breakpointHit(int address) {
+        emit(BREAKPOINT_NOTIFICATION, String.format("Breakpoint hit at $%04X", address), address);
+    }
+
+    /**
+     * Report a UI update on the Swing event dispatch thread that took too long.
+     *
+     * @param nanos The duration of the update, in nanoseconds.
+     */
+    public void slowUiUpdate(long nanos) {
+        emit(SLOW_UPDATE_NOTIFICATION, "UI update took " + (nanos / 1000000) + " ms", nanos);
+    }
+
+    /**
+     * Report that the trace log was flushed to its window.
+     *
+     * @param nanos The duration of the flush, in nanoseconds.
+     */
+    public void traceFlushed(long nanos) {
+        emit(TRACE_FLUSH_NOTIFICATION, "Trace log flushed in " + (nanos / 1000000) + " ms", nanos);
+    }
+
+    private void emit(String type, String message, Object userData) {
+        Notification n = new Notification(type, this, sequenceNumber.incrementAndGet(),
+                                          System.currentTimeMillis(), message);
+        n.setUserData(userData);
+        sendNotification(n);
+    }
+
+    private SdController findSdController() {
+        for (Device device : machine.getBus().getDevices()) {
+            if (device instanceof SdController) {
+                return (SdController) device;
+            }
+        }
+        return null;
+    }
+}
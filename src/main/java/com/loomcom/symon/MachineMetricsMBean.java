@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+/**
+ * Management interface exposing live statistics of a simulated machine.
+ */
+public interface MachineMetricsMBean {
+
+    public String getMachineName();
+
+    /**
+     * @return The state of the run loop, e.g. "RUNNING" or "STOPPED".
+     */
+    public String getRunState();
+
+    public long getInstructionsExecuted();
+
+    public long getCyclesEmulated();
+
+    /**
+     * @return The emulated clock rate in MHz, averaged over the time since
+     *         this attribute was last read.
+     */
+    public double getEffectiveMhz();
+
+    public long getIrqCount();
+
+    public long getNmiCount();
+
+    public long getAciaBytesIn();
+
+    public long getAciaBytesOut();
+
+    public long getSdSectorsRead();
+
+    public long getSdSectorsWritten();
+
+    /**
+     * @return The number of reads from unmapped addresses, if the bus has
+     *         open bus behavior enabled.
+     */
+    public long getUnmappedReads();
+
+    /**
+     * @return The number of writes to unmapped addresses, if the bus has
+     *         open bus behavior enabled.
+     */
+    public long getUnmappedWrites();
+}
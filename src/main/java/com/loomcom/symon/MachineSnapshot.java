@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.machines.Machine;
+
+import java.nio.ByteBuffer;
+import java.util.SortedSet;
+
+/**
+ * A saved copy of the complete state of a machine: the CPU registers and
+ * interrupt lines, the contents of RAM, and the registers of every device.
+ * <p/>
+ * The image is a compact byte array, so that it can be written to disk as
+ * it is. Taking and restoring a snapshot is mostly bulk array copying, and
+ * only takes microseconds, so a booted machine can be checkpointed once
+ * and reset to that known state as often as needed.
+ * <p/>
+ * A snapshot can only be restored into a machine with the same devices at
+ * the same addresses as the one it was taken from.
+ */
+public class MachineSnapshot {
+
+    private static final int MAGIC   = 0x53594d4e; // "SYMN"
+    private static final int VERSION = 1;
+
+    // Magic, version, and device count
+    static final int HEADER_SIZE = 12;
+    // Start address, end address, and state size
+    private static final int DEVICE_HEADER_SIZE = 12;
+
+    private final byte[] image;
+
+    private MachineSnapshot(byte[] image) {
+        this.image = image;
+    }
+
+    public static MachineSnapshot take(Machine machine) {
+        return take(machine.getBus());
+    }
+
+    /**
+     * Take a snapshot of the CPU and all devices attached to a bus.
+     */
+    public static MachineSnapshot take(Bus bus) {
+        SortedSet<Device> devices = bus.getDevices();
+
+        int size = HEADER_SIZE + Cpu.STATE_SIZE;
+        for (Device device : devices) {
+            size += DEVICE_HEADER_SIZE + device.getStateSize();
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(devices.size());
+        bus.getCpu().saveState(out);
+        for (Device device : devices) {
+            out.putInt(device.startAddress());
+            out.putInt(device.endAddress());
+            out.putInt(device.getStateSize());
+            int start = out.position();
+            device.saveState(out);
+            if (out.position() - start != device.getStateSize()) {
+                throw new IllegalStateException(device + " saved the wrong amount of state");
+            }
+        }
+
+        return new MachineSnapshot(out.array());
+    }
+
+    /**
+     * Wrap a snapshot image, for example one read back from a file. The
+     * image is checked when it is restored.
+     */
+    public static MachineSnapshot fromByteArray(byte[] image) {
+        return new MachineSnapshot(image.clone());
+    }
+
+    /**
+     * @return A copy of the snapshot image.
+     */
+    public byte[] toByteArray() {
+        return image.clone();
+    }
+
+    public int getSize() {
+        return image.length;
+    }
+
+    /**
+     * The raw image, for {@link MachineCheckpoint}. Must not be modified.
+     */
+    byte[] getImage() {
+        return image;
+    }
+
+    /**
+     * Works out where the state of each device starts in the image.
+     *
+     * @param devices The devices on the bus, which must match the snapshot.
+     * @return The offset into the image of each device's state, in order.
+     */
+    int[] getStateOffsets(SortedSet<Device> devices) {
+        checkLayout(ByteBuffer.wrap(image), devices);
+        int[] offsets = new int[devices.size()];
+        int offset = HEADER_SIZE + Cpu.STATE_SIZE;
+        int i = 0;
+        for (Device device : devices) {
+            offset += DEVICE_HEADER_SIZE;
+            offsets[i++] = offset;
+            offset += device.getStateSize();
+        }
+        return offsets;
+    }
+
+    public void restore(Machine machine) {
+        restore(machine.getBus());
+    }
+
+    /**
+     * Put the CPU and all devices on a bus back into the state they were in
+     * when the snapshot was taken. Nothing is changed if the devices on the
+     * bus do not match the snapshot.
+     *
+     * @throws IllegalArgumentException if the snapshot does not fit this bus.
+     */
+    public void restore(Bus bus) {
+        SortedSet<Device> devices = bus.getDevices();
+        ByteBuffer in = ByteBuffer.wrap(image);
+        checkLayout(in, devices);
+
+        in.position(HEADER_SIZE);
+        bus.getCpu().restoreState(in);
+        for (Device device : devices) {
+            in.position(in.position() + DEVICE_HEADER_SIZE);
+            device.restoreState(in);
+        }
+    }
+
+    private void checkLayout(ByteBuffer in, SortedSet<Device> devices) {
+        if (image.length < HEADER_SIZE + Cpu.STATE_SIZE ||
+            in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IllegalArgumentException("Not a machine snapshot");
+        }
+        if (in.getInt() != devices.size()) {
+            throw new IllegalArgumentException("Snapshot was taken with a different set of devices");
+        }
+        in.position(in.position() + Cpu.STATE_SIZE);
+        for (Device device : devices) {
+            if (in.remaining() < DEVICE_HEADER_SIZE ||
+                in.getInt() != device.startAddress() ||
+                in.getInt() != device.endAddress() ||
+                in.getInt() != device.getStateSize() ||
+                in.remaining() < device.getStateSize()) {
+                throw new IllegalArgumentException("Snapshot does not match " + device);
+            }
+            in.position(in.position() + device.getStateSize());
+        }
+    }
+}
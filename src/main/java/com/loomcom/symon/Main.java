@@ -28,6 +28,7 @@ package com.loomcom.symon;
 import com.loomcom.symon.machines.MulticompMachine;
 import com.loomcom.symon.machines.SimpleMachine;
 import com.loomcom.symon.machines.SymonMachine;
+import java.io.File;
 import java.util.Locale;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
@@ -44,6 +45,8 @@ public class Main {
     public static void main(String args[]) throws Exception {
         
         Class machineClass = SymonMachine.class;
+        File hostDirectory = null;
+        boolean expansion = false;
         for(int i = 0; i < args.length; ++i) {
             String arg = args[i].toLowerCase(Locale.ENGLISH);
             if(arg.equals("-machine") && (i+1) < args.length) {
@@ -55,6 +58,12 @@ public class Main {
                 } else if (machine.equals("simple")) {
                     machineClass = SimpleMachine.class;
                 }
+            } else if(arg.equals("-host") && (i+1) < args.length) {
+                // Give the guest access to this directory through host services
+                hostDirectory = new File(args[i+1]);
+            } else if(arg.equals("-expansion")) {
+                // Map the expansion devices: the blitter and interrupt controller
+                expansion = true;
             }
         }
         
@@ -80,7 +89,7 @@ public class Main {
                 }
             }
         
-            final Simulator simulator = new Simulator(machineClass);
+            final Simulator simulator = new Simulator(machineClass, hostDirectory, expansion);
         
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import java.util.Arrays;
+
+/**
+ * Per-address read, write and execute counters, recorded by the Bus
+ * while a heatmap is attached to it.
+ * <p/>
+ * Counts are halved by every call to {@link #decay()}, so addresses that
+ * are no longer being touched fade out of the heatmap over time.
+ * <p/>
+ * The counters are updated by the CPU thread and read (and decayed) by the
+ * Swing thread without any locking. An occasional lost update only makes
+ * the picture a little less precise, which is fine for a display aid.
+ */
+public class MemoryHeatmap {
+
+    private final int[] reads;
+    private final int[] writes;
+    private final int[] executes;
+
+    /**
+     * Create a new heatmap.
+     *
+     * @param size The number of addresses to track, normally the size of the bus.
+     */
+    public MemoryHeatmap(int size) {
+        this.reads = new int[size];
+        this.writes = new int[size];
+        this.executes = new int[size];
+    }
+
+    public int size() {
+        return reads.length;
+    }
+
+    public void countRead(int offset) {
+        reads[offset]++;
+    }
+
+    public void countWrite(int offset) {
+        writes[offset]++;
+    }
+
+    public void countExecute(int offset) {
+        executes[offset]++;
+    }
+
+    public int getReads(int offset) {
+        return reads[offset];
+    }
+
+    public int getWrites(int offset) {
+        return writes[offset];
+    }
+
+    public int getExecutes(int offset) {
+        return executes[offset];
+    }
+
+    /**
+     * Halve every counter.
+     */
+    public void decay() {
+        for (int i = 0; i < reads.length; i++) {
+            reads[i] >>>= 1;
+            writes[i] >>>= 1;
+            executes[i] >>>= 1;
+        }
+    }
+
+    /**
+     * Clear every counter.
+     */
+    public void reset() {
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+        Arrays.fill(executes, 0);
+    }
+}
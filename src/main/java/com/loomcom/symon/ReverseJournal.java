@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.BankedMemory;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * An undo journal that lets the CPU run backwards, one instruction at a
+ * time, for example to step back from a crash to the code that caused it.
+ * <p/>
+ * Before each instruction, the CPU registers and flags, the cycle count
+ * and the interrupt lines are journaled, and
+ * every byte of RAM the instruction overwrites is journaled with its old
+ * value as it is written. Writes to {@link BankedMemory} are journaled by
+ * their position in the backing store, and bank switches through its
+ * control registers with the bank they replace. Undoing an instruction
+ * puts the bytes and banks back in reverse order, then the registers.
+ * <p/>
+ * The journal is kept in a ring buffer of fixed size, so the oldest
+ * instructions are forgotten when the memory budget runs out. Every so
+ * often a full {@link MachineSnapshot} is taken as well, so that a long
+ * step back can restore the nearest snapshot and only undo the rest.
+ * <p/>
+ * I/O registers can't be read without side effects, so writes to devices
+ * other than RAM and banked memory are not journaled, and stepping back only restores device
+ * registers when it passes a snapshot. Resets and memory changes made from
+ * outside the CPU are not journaled either; the journal should be cleared
+ * after them.
+ */
+public class ReverseJournal {
+
+    public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 65536;
+
+    // The smallest budget that leaves room for the longest instruction.
+    private static final long MIN_BUDGET = 64 * 1024;
+
+    // Each instruction is journaled as the number of words of writes, nine
+    // words of registers, cycle count and interrupt lines, one word per
+    // byte written to RAM with its address
+    // and old value, and the number of words of writes again, so the
+    // journal can be walked from either end.
+    private static final int HEADER_WORDS = 10;
+    private static final int RECORD_WORDS = HEADER_WORDS + 1;
+
+    // Banked memory writes and bank switches take two words: the store
+    // offset or old bank, then one of these flags with the index of the
+    // banked memory, and the address and old value, or the window.
+    private static final int BANKED_WRITE = 0x80000000;
+    private static final int BANK_SWITCH = 0x40000000;
+    private static final int MAX_BANKED = 64;
+
+    // Restoring a snapshot costs about as much as undoing this many instructions.
+    private static final int SNAPSHOT_RESTORE_COST = 4096;
+
+    /**
+     * A full snapshot of the machine, taken before a given instruction.
+     */
+    private static class Checkpoint {
+        final long sequence;
+        final long position;
+        final long cycleCount;
+        final MachineSnapshot snapshot;
+
+        Checkpoint(long sequence, long position, long cycleCount, MachineSnapshot snapshot) {
+            this.sequence = sequence;
+            this.position = position;
+            this.cycleCount = cycleCount;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final Bus bus;
+    private final Cpu cpu;
+
+    private final int[] ring;
+    private final int mask;
+
+    // Positions in the ring, counted in words since the journal was created.
+    private long head;
+    private long tail;
+    // The start of the instruction being journaled, or -1 between instructions.
+    private long openRecord = -1;
+    private int openWrites;
+
+    // Instructions are numbered in the order they were journaled.
+    private long firstSequence;
+    private long nextSequence;
+
+    // The banked memories that have been written, numbered for the journal.
+    private final List<BankedMemory> bankedMemories = new ArrayList<BankedMemory>();
+
+    private final LinkedList<Checkpoint> checkpoints = new LinkedList<Checkpoint>();
+    private final int checkpointInterval;
+    private final long checkpointBudget;
+    private long checkpointBytes;
+    private int instructionsSinceCheckpoint;
+
+    private final BitSet breakpoints = new BitSet();
+    private final BitSet watchpoints = new BitSet();
+    private boolean watchpointHit;
+
+    private boolean closed;
+
+    public ReverseJournal(Bus bus) {
+        this(bus, DEFAULT_BUDGET, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Start journaling. The journal attaches itself to the bus and CPU, and
+     * stays attached until it is closed.
+     *
+     * @param bus                The bus to journal, which should not be running.
+     * @param budget             The memory to use, in bytes. A quarter of it is
+     *                           given to snapshots.
+     * @param checkpointInterval The number of instructions between snapshots.
+     */
+    public ReverseJournal(Bus bus, long budget, int checkpointInterval) {
+        if (budget < MIN_BUDGET) {
+            throw new IllegalArgumentException("Budget must be at least " + MIN_BUDGET + " bytes");
+        }
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        this.bus = bus;
+        this.cpu = bus.getCpu();
+        this.ring = new int[Integer.highestOneBit((int) Math.min(budget * 3 / 16, 1 << 30))];
+        this.mask = ring.length - 1;
+        this.checkpointInterval = checkpointInterval;
+        this.checkpointBudget = budget / 4;
+
+        bus.setReverseJournal(this);
+        cpu.setReverseJournal(this);
+    }
+
+    /**
+     * Stop journaling, and detach from the bus and CPU.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        bus.setReverseJournal(null);
+        cpu.setReverseJournal(null);
+        clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Forget everything journaled so far, for example after a reset.
+     */
+    public void clear() {
+        head = 0;
+        tail = 0;
+        openRecord = -1;
+        firstSequence = nextSequence;
+        checkpoints.clear();
+        checkpointBytes = 0;
+        instructionsSinceCheckpoint = 0;
+    }
+
+    /**
+     * @return The number of instructions that can be undone.
+     */
+    public long getInstructionCount() {
+        return nextSequence - firstSequence;
+    }
+
+    /**
+     * @return The number of snapshots held.
+     */
+    public int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * @return The memory used by the ring buffer and snapshots, in bytes.
+     */
+    public long getMemoryUsed() {
+        return (long) ring.length * 4 + checkpointBytes;
+    }
+
+    public void setBreakpoint(int address, boolean enabled) {
+        breakpoints.set(address, enabled);
+    }
+
+    public boolean isBreakpoint(int address) {
+        return breakpoints.get(address);
+    }
+
+    public void setWatchpoint(int address, boolean enabled) {
+        watchpoints.set(address, enabled);
+    }
+
+    public boolean isWatchpoint(int address) {
+        return watchpoints.get(address);
+    }
+
+    /**
+     * @return A copy of the breakpoints, one bit per address.
+     */
+    public BitSet getBreakpoints() {
+        return (BitSet) breakpoints.clone();
+    }
+
+    /**
+     * @return A copy of the watchpoints, one bit per address.
+     */
+    public BitSet getWatchpoints() {
+        return (BitSet) watchpoints.clone();
+    }
+
+    public void clearBreakpointsAndWatchpoints() {
+        breakpoints.clear();
+        watchpoints.clear();
+    }
+
+    /**
+     * Called by the CPU before each instruction.
+     */
+    void instructionStarting() {
+        if (openRecord >= 0) {
+            instructionFinished();
+        }
+        if (++instructionsSinceCheckpoint >= checkpointInterval) {
+            takeCheckpoint();
+        }
+
+        Cpu.CpuState state = cpu.state;
+        openRecord = head;
+        openWrites = 0;
+        put(0);
+        put(state.pc | state.sp << 16 | cpu.getProcessorStatus() << 24);
+        put(state.a | state.x << 8 | state.y << 16 |
+            (state.opTrap ? 0x01000000 : 0) |
+            (state.waitingForInterrupt ? 0x02000000 : 0) |
+            (state.stopped ? 0x04000000 : 0));
+        put(state.lastPc | state.ir << 16 | state.instSize << 24);
+        put(state.args[0] | state.args[1] << 8);
+        put((int) (state.stepCounter >>> 32));
+        put((int) state.stepCounter);
+        long cycles = cpu.getCycleCount();
+        put((int) (cycles >>> 32));
+        put((int) cycles);
+        put(cpu.getInterruptLines().get());
+    }
+
+    /**
+     * Called by the CPU after each instruction.
+     */
+    void instructionFinished() {
+        ring[(int) (openRecord & mask)] = openWrites;
+        put(openWrites);
+        openRecord = -1;
+        nextSequence++;
+    }
+
+    /**
+     * Called by the bus before a byte is written.
+     */
+    void memoryWritten(int address, Device device, int deviceAddress) throws MemoryAccessException {
+        if (openRecord < 0) {
+            return;
+        }
+        if (device instanceof Memory) {
+            if (!((Memory) device).isReadOnly()) {
+                put(address << 8 | device.read(deviceAddress));
+                openWrites++;
+            }
+        } else if (device instanceof BankedMemory) {
+            BankedMemory banked = (BankedMemory) device;
+            int offset = banked.storeOffset(deviceAddress);
+            put(offset);
+            put(BANKED_WRITE | bankedIndex(banked) << 24 | address << 8 | banked.getStore()[offset] & 0xff);
+            openWrites += 2;
+        } else if (device instanceof BankedMemory.ControlRegisters) {
+            BankedMemory banked = ((BankedMemory.ControlRegisters) device).getBankedMemory();
+            int window = deviceAddress >>> 1;
+            put(banked.getSelectedBank(window));
+            put(BANK_SWITCH | bankedIndex(banked) << 24 | window);
+            openWrites += 2;
+        }
+    }
+
+    private int bankedIndex(BankedMemory banked) {
+        int index = bankedMemories.indexOf(banked);
+        if (index < 0) {
+            if (bankedMemories.size() == MAX_BANKED) {
+                throw new IllegalStateException("Too many banked memories to journal");
+            }
+            index = bankedMemories.size();
+            bankedMemories.add(banked);
+        }
+        return index;
+    }
+
+    /**
+     * Run the CPU backwards.
+     *
+     * @param count The number of instructions to undo.
+     * @return The number of instructions undone, which is less than count
+     *         if the journal does not go back that far.
+     */
+    public long stepBack(long count) throws MemoryAccessException {
+        closeOpenRecord();
+        count = Math.min(count, getInstructionCount());
+        long target = nextSequence - count;
+
+        // Start from the first snapshot after the target, if that saves work.
+        Checkpoint nearest = null;
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.sequence >= target) {
+                nearest = checkpoint;
+                break;
+            }
+        }
+        if (nearest != null && nextSequence - nearest.sequence > SNAPSHOT_RESTORE_COST) {
+            restoreCheckpoint(nearest);
+        }
+
+        while (nextSequence > target) {
+            undo();
+        }
+        return count;
+    }
+
+    /**
+     * Run the CPU backwards until it is about to execute an instruction at
+     * a breakpoint, or has just undone a write to a watchpoint, or the
+     * journal runs out.
+     *
+     * @return The number of instructions undone.
+     */
+    public long reverseContinue() throws MemoryAccessException {
+        closeOpenRecord();
+        long undone = 0;
+        while (getInstructionCount() > 0) {
+            watchpointHit = false;
+            undo();
+            undone++;
+            if (watchpointHit || breakpoints.get(cpu.state.pc)) {
+                break;
+            }
+        }
+        return undone;
+    }
+
+    private void closeOpenRecord() {
+        if (openRecord >= 0) {
+            instructionFinished();
+        }
+    }
+
+    /**
+     * Undo the newest instruction in the journal.
+     */
+    private void undo() throws MemoryAccessException {
+        int writes = get(head - 1);
+        long start = head - writes - RECORD_WORDS;
+
+        for (long p = start + HEADER_WORDS + writes - 1; p >= start + HEADER_WORDS; p--) {
+            int entry = get(p);
+            if ((entry & BANK_SWITCH) != 0) {
+                bankedMemories.get((entry >>> 24) & 0x3f).selectBank(entry & 0xffff, get(--p));
+                continue;
+            }
+            int address = (entry >>> 8) & 0xffff;
+            if ((entry & BANKED_WRITE) != 0) {
+                bankedMemories.get((entry >>> 24) & 0x3f).restoreStoreByte(get(--p), entry & 0xff);
+            } else {
+                bus.restoreByte(address, entry & 0xff);
+            }
+            if (watchpoints.get(address)) {
+                watchpointHit = true;
+            }
+        }
+
+        Cpu.CpuState state = cpu.state;
+        int word = get(start + 1);
+        state.pc = word & 0xffff;
+        state.sp = (word >>> 16) & 0xff;
+        state.flagsPending = false;
+        cpu.setProcessorStatus(word >>> 24);
+        word = get(start + 2);
+        state.a = word & 0xff;
+        state.x = (word >>> 8) & 0xff;
+        state.y = (word >>> 16) & 0xff;
+        state.opTrap = (word & 0x01000000) != 0;
+        state.waitingForInterrupt = (word & 0x02000000) != 0;
+        state.stopped = (word & 0x04000000) != 0;
+        word = get(start + 3);
+        state.lastPc = word & 0xffff;
+        state.ir = (word >>> 16) & 0xff;
+        state.instSize = word >>> 24;
+        word = get(start + 4);
+        state.args[0] = word & 0xff;
+        state.args[1] = (word >>> 8) & 0xff;
+        state.stepCounter = (long) get(start + 5) << 32 | (get(start + 6) & 0xffffffffL);
+        cpu.setCycleCount((long) get(start + 7) << 32 | (get(start + 8) & 0xffffffffL));
+        // Including any IRQ the instruction acknowledged as it was taken.
+        cpu.getInterruptLines().set(get(start + 9));
+
+        head = start;
+        nextSequence--;
+        dropCheckpointsAfter(nextSequence);
+    }
+
+    private void takeCheckpoint() {
+        instructionsSinceCheckpoint = 0;
+        MachineSnapshot snapshot = MachineSnapshot.take(bus);
+        checkpoints.add(new Checkpoint(nextSequence, head, cpu.getCycleCount(), snapshot));
+        checkpointBytes += snapshot.getSize();
+        while (checkpointBytes > checkpointBudget && !checkpoints.isEmpty()) {
+            checkpointBytes -= checkpoints.removeFirst().snapshot.getSize();
+        }
+    }
+
+    private void restoreCheckpoint(Checkpoint checkpoint) {
+        checkpoint.snapshot.restore(bus);
+        cpu.setCycleCount(checkpoint.cycleCount);
+        head = checkpoint.position;
+        nextSequence = checkpoint.sequence;
+        dropCheckpointsAfter(nextSequence);
+    }
+
+    private void dropCheckpointsAfter(long sequence) {
+        while (!checkpoints.isEmpty() && checkpoints.getLast().sequence > sequence) {
+            checkpointBytes -= checkpoints.removeLast().snapshot.getSize();
+        }
+    }
+
+    private void put(int word) {
+        if (head - tail >= ring.length) {
+            evictOldest();
+        }
+        ring[(int) (head & mask)] = word;
+        head++;
+    }
+
+    private int get(long position) {
+        return ring[(int) (position & mask)];
+    }
+
+    /**
+     * Forget the oldest instruction, and any snapshots that can no longer
+     * be reached from the journal.
+     */
+    private void evictOldest() {
+        if (tail == openRecord) {
+            throw new IllegalStateException("Instruction does not fit in the journal");
+        }
+        tail += get(tail) + RECORD_WORDS;
+        firstSequence++;
+        Iterator<Checkpoint> it = checkpoints.iterator();
+        while (it.hasNext()) {
+            Checkpoint checkpoint = it.next();
+            if (checkpoint.sequence >= firstSequence) {
+                break;
+            }
+            checkpointBytes -= checkpoint.snapshot.getSize();
+            it.remove();
+        }
+    }
+}
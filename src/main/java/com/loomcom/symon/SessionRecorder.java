@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every input that reaches a machine from outside, so that a
+ * session can be replayed exactly by a {@link SessionReplayer}.
+ * <p/>
+ * The log starts with a {@link MachineSnapshot} of the machine, followed by
+ * one event per input: serial bytes received by the ACIA, characters taken
+ * from its transmit register, SD card sectors read from the image file,
+ * the results of host services calls, interrupts injected from outside
+ * the machine, resets, and cycles skipped while the CPU was parked in an
+ * idle loop. Each event is
+ * stamped with the number of CPU cycles since recording started.
+ * <p/>
+ * Interrupts raised by devices, such as the ACIA receive interrupt, are
+ * not recorded, since replaying the inputs that drive the devices raises
+ * them again at the same point.
+ * <p/>
+ * Events are encoded as a variable length cycle delta, a type byte, and a
+ * small payload, and written through a buffer, so the log grows only with
+ * the amount of input and recording costs next to nothing.
+ * <p/>
+ * Inputs must be delivered between instructions, on the thread running
+ * the CPU, as the simulator does.
+ */
+public class SessionRecorder {
+
+    static final int MAGIC   = 0x53594d52; // "SYMR"
+    static final int VERSION = 1;
+
+    // Event types
+    static final int END         = 0;
+    static final int SERIAL_IN   = 1;
+    static final int SERIAL_OUT  = 2;
+    static final int SD_READ     = 3;
+    static final int IRQ_RAISE   = 4;
+    static final int IRQ_CLEAR   = 5;
+    static final int NMI_RAISE   = 6;
+    static final int NMI_CLEAR   = 7;
+    static final int IDLE_CYCLES = 8;
+    static final int RESET       = 9;
+    static final int HOST_CALL   = 10;
+
+    private final static Logger logger = Logger.getLogger(SessionRecorder.class.getName());
+
+    private final Bus bus;
+    private final Cpu cpu;
+    private final DataOutputStream out;
+    private long lastCycles;
+    private long eventCount;
+    private boolean closed;
+
+    /**
+     * Start recording a machine. The recorder attaches itself to the bus,
+     * and stays attached until it is closed.
+     *
+     * @param machine The machine to record, which should not be running.
+     * @param stream  Where to write the log.
+     */
+    public SessionRecorder(Machine machine, OutputStream stream) throws IOException {
+        this.bus = machine.getBus();
+        this.cpu = machine.getCpu();
+        if (bus.getSessionReplayer() != null) {
+            throw new IllegalStateException("Cannot record while a session is being replayed");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+
+        byte[] snapshot = MachineSnapshot.take(machine).toByteArray();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+
+        this.lastCycles = cpu.getCycleCount();
+        bus.setSessionRecorder(this);
+    }
+
+    /**
+     * A byte arrived at the serial port.
+     */
+    public synchronized void serialIn(int data) {
+        if (begin(SERIAL_IN)) {
+            write(data);
+        }
+    }
+
+    /**
+     * The host took a character from the serial transmit register.
+     */
+    public synchronized void serialOut() {
+        begin(SERIAL_OUT);
+    }
+
+    /**
+     * A sector was read from the SD card image.
+     */
+    public synchronized void sdRead(byte[] sector) {
+        if (begin(SD_READ)) {
+            try {
+                out.writeShort(sector.length);
+                out.write(sector);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * A host services call was completed.
+     *
+     * @param result The result, as passed to {@link SessionReplayer#readHostCall()} on replay.
+     */
+    public synchronized void hostCall(byte[] result) {
+        if (begin(HOST_CALL)) {
+            try {
+                writeVarLong(out, result.length);
+                out.write(result);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * An interrupt line was raised or cleared from outside the machine,
+     * through {@link Bus#injectIrq(int)} and its siblings.
+     *
+     * @param type   One of IRQ_RAISE, IRQ_CLEAR, NMI_RAISE or NMI_CLEAR.
+     * @param source The interrupt source.
+     */
+    synchronized void interrupt(int type, int source) {
+        if (begin(type)) {
+            write(source);
+        }
+    }
+
+    /**
+     * The CPU was reset.
+     *
+     * @param isColdReset True if RAM was cleared as well.
+     */
+    public synchronized void reset(boolean isColdReset) {
+        if (begin(RESET)) {
+            write(isColdReset ? 1 : 0);
+        }
+    }
+
+    /**
+     * Cycles were added to the CPU cycle counter while it was parked in an
+     * idle loop. Must be called before the cycles are added.
+     */
+    public synchronized void idleCycles(long cycles) {
+        if (begin(IDLE_CYCLES)) {
+            try {
+                writeVarLong(out, cycles);
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * @return The number of events recorded so far.
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop recording, and close the log.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        bus.setSessionRecorder(null);
+        try {
+            writeVarLong(out, cpu.getCycleCount() - lastCycles);
+            out.writeByte(END);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the header of an event.
+     *
+     * @return False if the recorder has been closed.
+     */
+    private boolean begin(int type) {
+        if (closed) {
+            return false;
+        }
+        long cycles = cpu.getCycleCount();
+        try {
+            writeVarLong(out, cycles - lastCycles);
+            out.writeByte(type);
+        } catch (IOException ex) {
+            fail(ex);
+            return false;
+        }
+        lastCycles = cycles;
+        eventCount++;
+        return true;
+    }
+
+    private void write(int data) {
+        try {
+            out.writeByte(data);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * A failed write would make the rest of the log useless, so give up on it.
+     */
+    private void fail(IOException ex) {
+        logger.log(Level.WARNING, "Session recording stopped: " + ex.getMessage());
+        closed = true;
+        bus.setSessionRecorder(null);
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Already failed
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
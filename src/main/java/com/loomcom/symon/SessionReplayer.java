@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.Machine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a session log written by a {@link SessionRecorder}, feeding each
+ * recorded input to the machine at exactly the cycle it was recorded at.
+ * <p/>
+ * The machine is first put back into the state it was in when recording
+ * started. After that, {@link #poll()} must be called before every
+ * instruction. While a replay is in progress, the machine takes no input
+ * from anywhere else: the console, the SD card image, and the per-source
+ * interrupt lines are all ignored, and idle loops are not parked, so the
+ * session runs at full speed.
+ */
+public class SessionReplayer {
+
+    /**
+     * Told about output from the replayed session, and when it ends.
+     */
+    public interface Listener {
+        /**
+         * The guest sent a character to the serial port.
+         */
+        public void serialOutput(int data);
+
+        /**
+         * Every event in the log has been replayed.
+         */
+        public void replayFinished();
+    }
+
+    private final static Logger logger = Logger.getLogger(SessionReplayer.class.getName());
+
+    private final Machine machine;
+    private final Bus bus;
+    private final Cpu cpu;
+    private final DataInputStream in;
+    private Listener listener;
+
+    // The cycle count of the CPU when replay started.
+    private final long startCycles;
+
+    // The next event to replay, relative to startCycles.
+    private long nextCycles;
+    private int nextType;
+    private boolean finished;
+    private long eventCount;
+
+    // SD card sectors recorded during the current instruction.
+    private final LinkedList<byte[]> sectors = new LinkedList<byte[]>();
+
+    // Host services results recorded during the current instruction.
+    private final LinkedList<byte[]> hostCalls = new LinkedList<byte[]>();
+
+    /**
+     * Prepare to replay a session. The machine is restored to its state at
+     * the start of the recording, and the replayer attaches itself to the bus.
+     *
+     * @param machine The machine to replay into, which should not be running.
+     *                It must be the same kind of machine the session was recorded on.
+     * @param stream  The session log.
+     * @throws IOException if the log can't be read, or was not written by a {@link SessionRecorder}.
+     */
+    public SessionReplayer(Machine machine, InputStream stream) throws IOException {
+        this.machine = machine;
+        this.bus = machine.getBus();
+        this.cpu = machine.getCpu();
+        if (bus.getSessionRecorder() != null) {
+            throw new IllegalStateException("Cannot replay while a session is being recorded");
+        }
+        this.in = new DataInputStream(new BufferedInputStream(stream, 65536));
+
+        if (in.readInt() != SessionRecorder.MAGIC || in.readInt() != SessionRecorder.VERSION) {
+            throw new IOException("Not a session log");
+        }
+        byte[] snapshot = new byte[in.readInt()];
+        in.readFully(snapshot);
+        try {
+            MachineSnapshot.fromByteArray(snapshot).restore(machine);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Session was recorded on a different machine");
+        }
+
+        // There is no going back past the restored snapshot.
+        ReverseJournal journal = bus.getReverseJournal();
+        if (journal != null) {
+            journal.clear();
+        }
+
+        this.startCycles = cpu.getCycleCount();
+        readNext();
+        bus.setSessionReplayer(this);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The number of events replayed so far.
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Apply every input that is due at the current cycle count. Must be
+     * called before each instruction is executed.
+     */
+    public void poll() throws MemoryAccessException {
+        while (!finished && cpu.getCycleCount() - startCycles >= nextCycles) {
+            if (nextType == SessionRecorder.END) {
+                stop();
+                return;
+            }
+            apply();
+            eventCount++;
+            readNext();
+        }
+    }
+
+    /**
+     * Fill a buffer with the next SD card sector that was read during the
+     * recording, in place of reading the image file.
+     */
+    public void readSdSector(byte[] buffer) {
+        byte[] sector = sectors.poll();
+        if (sector == null) {
+            logger.log(Level.WARNING, "Replay has diverged: no SD card sector was recorded here");
+            Arrays.fill(buffer, (byte) 0);
+            return;
+        }
+        System.arraycopy(sector, 0, buffer, 0, Math.min(sector.length, buffer.length));
+    }
+
+    /**
+     * @return The result of the next host services call made during the
+     *         recording, in place of making the call, or null if there was none.
+     */
+    public byte[] readHostCall() {
+        byte[] result = hostCalls.poll();
+        if (result == null) {
+            logger.log(Level.WARNING, "Replay has diverged: no host services call was recorded here");
+        }
+        return result;
+    }
+
+    /**
+     * Stop replaying, and give the machine back to its usual inputs.
+     */
+    public void stop() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        bus.setSessionReplayer(null);
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Nothing more to read anyway
+        }
+        if (listener != null) {
+            listener.replayFinished();
+        }
+    }
+
+    private void apply() throws MemoryAccessException {
+        InterruptLines lines = cpu.getInterruptLines();
+        try {
+            switch (nextType) {
+                case SessionRecorder.SERIAL_IN:
+                    machine.getAcia().rxWrite(in.readUnsignedByte());
+                    break;
+                case SessionRecorder.SERIAL_OUT:
+                    int data = machine.getAcia().txRead();
+                    if (listener != null) {
+                        listener.serialOutput(data);
+                    }
+                    break;
+                case SessionRecorder.SD_READ:
+                    byte[] sector = new byte[in.readUnsignedShort()];
+                    in.readFully(sector);
+                    sectors.add(sector);
+                    break;
+                case SessionRecorder.HOST_CALL:
+                    byte[] result = new byte[(int) readVarLong(in)];
+                    in.readFully(result);
+                    hostCalls.add(result);
+                    break;
+                case SessionRecorder.IRQ_RAISE:
+                    lines.raiseIrq(in.readUnsignedByte());
+                    break;
+                case SessionRecorder.IRQ_CLEAR:
+                    lines.clearIrq(in.readUnsignedByte());
+                    break;
+                case SessionRecorder.NMI_RAISE:
+                    lines.raiseNmi(in.readUnsignedByte());
+                    break;
+                case SessionRecorder.NMI_CLEAR:
+                    lines.clearNmi(in.readUnsignedByte());
+                    break;
+                case SessionRecorder.IDLE_CYCLES:
+                    cpu.addIdleCycles(readVarLong(in));
+                    break;
+                case SessionRecorder.RESET:
+                    boolean isColdReset = in.readUnsignedByte() != 0;
+                    cpu.reset();
+                    if (isColdReset) {
+                        Memory ram = machine.getRam();
+                        if (ram != null) {
+                            ram.fill(0);
+                        }
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown event type " + nextType);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Session log is damaged: " + ex.getMessage());
+            stop();
+        }
+    }
+
+    private void readNext() {
+        if (finished) {
+            return;
+        }
+        try {
+            nextCycles += readVarLong(in);
+            nextType = in.readUnsignedByte();
+        } catch (EOFException ex) {
+            logger.log(Level.WARNING, "Session log ends without an end marker");
+            nextType = SessionRecorder.END;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to read session log: " + ex.getMessage());
+            nextType = SessionRecorder.END;
+        }
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
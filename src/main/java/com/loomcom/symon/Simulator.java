@@ -23,20 +23,27 @@
 
 package com.loomcom.symon;
 
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.HostServices;
 import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.FifoUnderrunException;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 import com.loomcom.symon.exceptions.SymonException;
+import com.loomcom.symon.loader.BinaryLoader;
+import com.loomcom.symon.loader.ImageLoader;
 import com.loomcom.symon.machines.Machine;
 import com.loomcom.symon.ui.*;
 import com.loomcom.symon.ui.Console;
+import com.loomcom.symon.util.HexUtil;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -66,11 +73,21 @@ public class Simulator {
     //
     private static final int MAX_STEPS_BETWEEN_UPDATES = 20000;
 
+    // UI updates on the event dispatch thread that take longer than this are reported
+    // to the machine metrics MBean.
+    private static final long SLOW_UI_UPDATE_NANOS = 50000000L;
+
     private final static Logger logger = Logger.getLogger(Simulator.class.getName());
 
     // The simulated machine
     private Machine machine;
 
+    // Live statistics for the machine, published over JMX
+    private MachineMetrics metrics;
+
+    // Lets the run loop sleep while the guest is waiting for input
+    private IdleLoopDetector idleLoopDetector;
+
     // Number of CPU steps between CRT repaints.
     // TODO: Dynamically refresh the value at runtime based on performance figures to reach ~ 30fps.
     private long stepsBetweenCrtcRefreshes = 2500;
@@ -130,7 +147,44 @@ public class Simulator {
     private static final String[] STEPS = {"1", "5", "10", "20", "50", "100"};
 
     public Simulator(Class machineClass) throws Exception {
-        this.machine = (Machine) machineClass.getConstructors()[0].newInstance();
+        this(machineClass, null, false);
+    }
+
+    /**
+     * @param machineClass  The machine to emulate.
+     * @param hostDirectory The directory to give the guest access to through
+     *                      host services, or null for none. Only machines
+     *                      with a constructor taking the directory offer them.
+     * @param expansion     Whether to map the machine's expansion devices.
+     *                      Only machines with a constructor taking the
+     *                      directory and this flag offer them.
+     */
+    public Simulator(Class machineClass, File hostDirectory, boolean expansion) throws Exception {
+        this.machine = newMachine(machineClass, hostDirectory, expansion);
+        this.metrics = new MachineMetrics(machine);
+        metrics.register();
+        this.idleLoopDetector = new IdleLoopDetector(machine.getCpu(), machine.getBus());
+    }
+
+    private static Machine newMachine(Class<?> machineClass, File hostDirectory,
+                                      boolean expansion) throws Exception {
+        if (expansion) {
+            try {
+                Constructor<?> constructor = machineClass.getConstructor(File.class, boolean.class);
+                return (Machine) constructor.newInstance(hostDirectory, true);
+            } catch (NoSuchMethodException ex) {
+                logger.log(Level.WARNING, machineClass.getSimpleName() + " does not offer expansion devices.");
+            }
+        }
+        if (hostDirectory != null) {
+            try {
+                Constructor<?> constructor = machineClass.getConstructor(File.class);
+                return (Machine) constructor.newInstance(hostDirectory);
+            } catch (NoSuchMethodException ex) {
+                logger.log(Level.WARNING, machineClass.getSimpleName() + " does not offer host services.");
+            }
+        }
+        return (Machine) machineClass.getConstructor().newInstance();
     }
 
     /**
@@ -148,6 +202,13 @@ public class Simulator {
 
         console.setBorderWidth(CONSOLE_BORDER_WIDTH);
 
+        // Wake up the run loop if it is parked waiting for input.
+        console.addKeyListener(new KeyAdapter() {
+            public void keyTyped(KeyEvent keyEvent) {
+                machine.getBus().signalActivity();
+            }
+        });
+
         // File Chooser
         fileChooser = new JFileChooser(System.getProperty("user.dir"));
         preferences = new PreferencesDialog(mainWindow, true);
@@ -276,6 +337,17 @@ public class Simulator {
         runLoop = null;
     }
 
+    /*
+     * Close any host files the guest left open.
+     */
+    private void closeHostFiles() {
+        for (Device device : machine.getBus().getDevices()) {
+            if (device instanceof HostServices) {
+                ((HostServices) device).closeAll();
+            }
+        }
+    }
+
     /*
      * Perform a reset.
      */
@@ -286,10 +358,30 @@ public class Simulator {
             runLoop = null;
         }
 
+        // A reset is an input like any other, but it also ends a replay.
+        SessionRecorder recorder = machine.getBus().getSessionRecorder();
+        if (recorder != null) {
+            recorder.reset(isColdReset);
+        }
+        SessionReplayer replayer = machine.getBus().getSessionReplayer();
+        if (replayer != null) {
+            replayer.stop();
+        }
+
+        // There is no going back past a reset.
+        ReverseJournal journal = machine.getBus().getReverseJournal();
+        if (journal != null) {
+            journal.clear();
+        }
+
+        closeHostFiles();
+
         try {
             logger.log(Level.INFO, "Reset requested. Resetting CPU.");
             // Reset CPU
             machine.getCpu().reset();
+            idleLoopDetector.reset();
+            metrics.resetPerformed(isColdReset);
             // Clear the console.
             console.reset();
             // Reset the trace log.
@@ -305,8 +397,7 @@ public class Simulator {
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     // Now update the state
-                    statusPane.updateState();
-                    memoryWindow.updateState();
+                    updateUiState();
                 }
             });
         } catch (MemoryAccessException ex) {
@@ -319,35 +410,104 @@ public class Simulator {
      */
     private void handleStep(int numSteps) {
         try {
+            metrics.setRunState(MachineMetrics.RUN_STATE_STEPPING);
             for (int i = 0; i < numSteps; i++) {
                 step();
             }
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     if (traceLog.isVisible()) {
-                        traceLog.refresh();
+                        refreshTraceLog();
                     }
-                    statusPane.updateState();
-                    memoryWindow.updateState();
+                    updateUiState();
                 }
             });
         } catch (SymonException ex) {
             logger.log(Level.SEVERE, "Exception during simulator step: " + ex.getMessage());
             ex.printStackTrace();
+        } finally {
+            metrics.setRunState(MachineMetrics.RUN_STATE_STOPPED);
         }
     }
 
+    /**
+     * Run the CPU backwards, using the undo journal.
+     *
+     * @param numSteps     The number of instructions to undo.
+     * @param toBreakpoint If true, keep going until a reverse breakpoint or
+     *                     watchpoint is reached, instead.
+     */
+    private void handleStepBack(long numSteps, boolean toBreakpoint) {
+        ReverseJournal journal = machine.getBus().getReverseJournal();
+        if (journal == null) {
+            return;
+        }
+        if (machine.getBus().getSessionRecorder() != null || machine.getBus().getSessionReplayer() != null) {
+            logger.log(Level.WARNING, "Can't step back while a session is being recorded or replayed.");
+            return;
+        }
+        try {
+            long undone = toBreakpoint ? journal.reverseContinue() : journal.stepBack(numSteps);
+            logger.log(Level.INFO, String.format("Stepped back %d instructions to $%04X.",
+                                                 undone, machine.getCpu().getProgramCounter()));
+            idleLoopDetector.reset();
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    updateUiState();
+                    if (videoWindow != null && videoWindow.isVisible()) {
+                        videoWindow.repaint();
+                    }
+                }
+            });
+        } catch (MemoryAccessException ex) {
+            logger.log(Level.SEVERE, "Exception during simulator step back: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Refresh the status pane and memory window. Must be called on the Swing
+     * event dispatch thread. Unusually slow updates are reported to the metrics MBean.
+     */
+    private void updateUiState() {
+        long start = System.nanoTime();
+        statusPane.updateState();
+        memoryWindow.updateState();
+        long elapsed = System.nanoTime() - start;
+        if (elapsed > SLOW_UI_UPDATE_NANOS) {
+            metrics.slowUiUpdate(elapsed);
+        }
+    }
+
+    /**
+     * Redraw the trace log window, and report how long it took.
+     */
+    private void refreshTraceLog() {
+        long start = System.nanoTime();
+        traceLog.refresh();
+        metrics.traceFlushed(System.nanoTime() - start);
+    }
+
     /**
      * Perform a single step of the simulated system.
      */
     private void step() throws MemoryAccessException {
+        // A session being replayed supplies all input, at the cycles it was recorded at.
+        SessionReplayer replayer = machine.getBus().getSessionReplayer();
+        if (replayer != null) {
+            replayer.poll();
+        }
+
+        long instructionCount = machine.getCpu().getInstructionCount();
         machine.getCpu().step();
 
-        traceLog.append(machine.getCpu().getCpuState());
+        // A CPU waiting on WAI or halted by STP has nothing new to trace.
+        if (machine.getCpu().getInstructionCount() != instructionCount) {
+            traceLog.append(machine.getCpu().getCpuState());
+        }
 
         // Read from the ACIA and immediately update the console if there's
         // output ready.
-        if (machine.getAcia() != null && machine.getAcia().hasTxChar()) {
+        if (replayer == null && machine.getAcia() != null && machine.getAcia().hasTxChar()) {
             // This is thread-safe
             console.print(Character.toString((char) machine.getAcia().txRead()));
             console.repaint();
@@ -355,7 +515,7 @@ public class Simulator {
 
         // If a key has been pressed, fill the ACIA.
         try {
-            if (machine.getAcia() != null && console.hasInput()) {
+            if (replayer == null && machine.getAcia() != null && console.hasInput()) {
                 machine.getAcia().rxWrite((int) console.readInputChar());
             }
         } catch (FifoUnderrunException ex) {
@@ -376,8 +536,7 @@ public class Simulator {
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
                     // Now update the state
-                    statusPane.updateState();
-                    memoryWindow.updateState();
+                    updateUiState();
                 }
             });
             stepsSinceLastUpdate = 0;
@@ -386,23 +545,37 @@ public class Simulator {
     }
 
     /**
-     * Load a program into memory at the simulatorDidStart address.
+     * Load a program into memory, and point the CPU at its entry point. A
+     * raw binary is loaded at the program start address preference.
+     *
+     * @return The address the program will start at.
      */
-    private void loadProgram(byte[] program, int startAddress) throws MemoryAccessException {
-        int addr = startAddress, i;
-        for (i = 0; i < program.length; i++) {
-            machine.getBus().write(addr++, program[i] & 0xff);
+    private int loadProgram(File file, ImageLoader loader) throws IOException, MemoryAccessException {
+        ImageLoader.Result result;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            result = loader.load(in, ImageLoader.busTarget(machine.getBus()));
+        } finally {
+            in.close();
         }
+        int startAddress = result.getStartAddress(preferences.getProgramStartAddress());
 
-        logger.log(Level.INFO, "Loaded " + i + " bytes at address 0x" +
+        logger.log(Level.INFO, "Loaded " + result.getByteCount() + " bytes in " +
+                               result.getSegmentCount() + " segments from " +
+                               loader.getFormatName() + " file, starting at address 0x" +
                                Integer.toString(startAddress, 16));
 
         // After loading, be sure to reset and
         // Reset (but don't clear memory, naturally)
         machine.getCpu().reset();
 
+        ReverseJournal journal = machine.getBus().getReverseJournal();
+        if (journal != null) {
+            journal.clear();
+        }
+
         // Reset the stack program counter
-        machine.getCpu().setProgramCounter(preferences.getProgramStartAddress());
+        machine.getCpu().setProgramCounter(startAddress);
 
         // Immediately update the UI.
         SwingUtilities.invokeLater(new Runnable() {
@@ -412,6 +585,8 @@ public class Simulator {
                 memoryWindow.updateState();
             }
         });
+
+        return startAddress;
     }
 
 
@@ -427,11 +602,13 @@ public class Simulator {
 
         public void requestStop() {
             isRunning = false;
+            machine.getBus().signalActivity();
         }
 
         public void run() {
             logger.log(Level.INFO, "Starting main run loop.");
             isRunning = true;
+            metrics.setRunState(MachineMetrics.RUN_STATE_RUNNING);
 
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
@@ -447,6 +624,13 @@ public class Simulator {
             try {
                 do {
                     step();
+                    // A session being replayed runs at full speed, without parking.
+                    boolean replaying = machine.getBus().getSessionReplayer() != null;
+                    if (!replaying && machine.getCpu().isWaitingForInterrupt()) {
+                        idleLoopDetector.parkUntilInterrupt();
+                    } else if (!replaying && idleLoopDetector.instructionExecuted()) {
+                        idleLoopDetector.park();
+                    }
                 } while (shouldContinue());
             } catch (SymonException ex) {
                 logger.log(Level.SEVERE, "Exception in main simulator run thread. Exiting run.");
@@ -455,13 +639,12 @@ public class Simulator {
 
             SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
-                    statusPane.updateState();
-                    memoryWindow.updateState();
+                    updateUiState();
                     runStopButton.setText("Run");
                     stepButton.setEnabled(true);
                     stepCountBox.setEnabled(true);
                     if (traceLog.isVisible()) {
-                        traceLog.refresh();
+                        refreshTraceLog();
                     }
                     menuBar.simulatorDidStop();
                     traceLog.simulatorDidStop();
@@ -469,6 +652,7 @@ public class Simulator {
             });
 
             isRunning = false;
+            metrics.setRunState(MachineMetrics.RUN_STATE_STOPPED);
         }
 
         /**
@@ -477,7 +661,19 @@ public class Simulator {
          * @return True if the run loop should proceed to the next step.
          */
         private boolean shouldContinue() {
-            return isRunning && !(preferences.getHaltOnBreak() && machine.getCpu().getInstruction() == 0x00);
+            if (!isRunning) {
+                return false;
+            }
+            if (machine.getCpu().isStopped()) {
+                logger.log(Level.INFO, String.format("CPU stopped by STP at $%04X.",
+                                                     machine.getCpu().getCpuState().lastPc));
+                return false;
+            }
+            if (preferences.getHaltOnBreak() && machine.getCpu().getInstruction() == 0x00) {
+                metrics.breakpointHit(machine.getCpu().getCpuState().lastPc);
+                return false;
+            }
+            return true;
         }
     }
 
@@ -494,35 +690,29 @@ public class Simulator {
                 if (retVal == JFileChooser.APPROVE_OPTION) {
                     File f = fileChooser.getSelectedFile();
                     if (f.canRead()) {
-                        long fileSize = f.length();
+                        ImageLoader loader = ImageLoader.forFile(f, preferences.getProgramStartAddress());
 
-                        if (fileSize > machine.getMemorySize()) {
+                        if (loader instanceof BinaryLoader && f.length() > machine.getMemorySize()) {
                             throw new IOException("File will not fit in " +
                                     "available memory ($" +
                                     Integer.toString(machine.getMemorySize(), 16) +
                                     " bytes)");
                         } else {
-                            byte[] program = new byte[(int) fileSize];
-                            int i = 0;
-                            FileInputStream fis = new FileInputStream(f);
-                            BufferedInputStream bis = new BufferedInputStream(fis);
-                            DataInputStream dis = new DataInputStream(bis);
-                            while (dis.available() != 0) {
-                                program[i++] = dis.readByte();
-                            }
-
                             SwingUtilities.invokeLater(new Runnable() {
                                 public void run() {
                                     console.reset();
                                 }
                             });
 
-                            // Now load the program at the starting address.
-                            loadProgram(program, preferences.getProgramStartAddress());
+                            // Loaded memory is not part of a recording.
+                            stopRecording();
+
+                            // Now load the program, and start at its entry point.
+                            int startAddress = loadProgram(f, loader);
                             // TODO: "Don't Show Again" checkbox
                             JOptionPane.showMessageDialog(mainWindow,
                                     "Loaded Successfully At " +
-                                            String.format("$%04X", preferences.getProgramStartAddress()),
+                                            String.format("$%04X", startAddress),
                                     "OK",
                                     JOptionPane.PLAIN_MESSAGE);
                         }
@@ -557,6 +747,9 @@ public class Simulator {
                             throw new IOException("ROM file must be exactly " + String.valueOf(machine.getRomSize()) + " bytes.");
                         } else {
                             
+                            // A new ROM is not part of a recording.
+                            stopRecording();
+
                             // Load the new ROM image
                             Memory rom = Memory.makeROM(machine.getRomBase(), machine.getRomBase() + machine.getRomSize() - 1, romFile);
                             machine.setRom(rom);
@@ -588,6 +781,93 @@ public class Simulator {
         }
     }
 
+    class RecordSessionAction extends AbstractAction {
+        public RecordSessionAction() {
+            super("Record Session...", null);
+            putValue(SHORT_DESCRIPTION, "Record all input to the machine, for replaying later");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_E);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            if (machine.getBus().getSessionRecorder() != null) {
+                stopRecording();
+                return;
+            }
+            try {
+                int retVal = fileChooser.showSaveDialog(mainWindow);
+                if (retVal == JFileChooser.APPROVE_OPTION) {
+                    File f = fileChooser.getSelectedFile();
+                    new SessionRecorder(machine, new FileOutputStream(f));
+                    logger.log(Level.INFO, "Recording session to " + f);
+                    menuBar.recordingDidChange();
+                }
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Unable to record session: " + ex.getMessage());
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    class ReplaySessionAction extends AbstractAction {
+        public ReplaySessionAction() {
+            super("Replay Session...", null);
+            putValue(SHORT_DESCRIPTION, "Replay a recorded session");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_Y);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            try {
+                int retVal = fileChooser.showOpenDialog(mainWindow);
+                if (retVal == JFileChooser.APPROVE_OPTION) {
+                    File f = fileChooser.getSelectedFile();
+                    SessionReplayer replayer = new SessionReplayer(machine, new FileInputStream(f));
+                    replayer.setListener(new SessionReplayer.Listener() {
+                        public void serialOutput(int data) {
+                            console.print(Character.toString((char) data));
+                            console.repaint();
+                        }
+
+                        public void replayFinished() {
+                            logger.log(Level.INFO, "Session replay finished.");
+                            SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    menuBar.recordingDidChange();
+                                }
+                            });
+                        }
+                    });
+                    logger.log(Level.INFO, "Replaying session from " + f);
+                    console.reset();
+                    idleLoopDetector.reset();
+                    menuBar.recordingDidChange();
+                    updateUiState();
+                }
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Unable to replay session: " + ex.getMessage());
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Stop recording the session, if one is being recorded.
+     */
+    private void stopRecording() {
+        SessionRecorder recorder = machine.getBus().getSessionRecorder();
+        if (recorder == null) {
+            return;
+        }
+        try {
+            recorder.close();
+            logger.log(Level.INFO, "Recorded " + recorder.getEventCount() + " session events.");
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Unable to finish session recording: " + ex.getMessage());
+        }
+        if (menuBar != null) {
+            menuBar.recordingDidChange();
+        }
+    }
+
     class ShowPrefsAction extends AbstractAction {
         public ShowPrefsAction() {
             super("Preferences...", null);
@@ -612,6 +892,9 @@ public class Simulator {
                 runLoop.requestStop();
             }
 
+            stopRecording();
+            closeHostFiles();
+            metrics.unregister();
             memoryWindow.dispose();
             traceLog.dispose();
             if(videoWindow != null) {
@@ -638,6 +921,8 @@ public class Simulator {
                 runLoop.requestStop();
                 runLoop.interrupt();
             }
+            stopRecording();
+            closeHostFiles();
             System.exit(0);
         }
     }
@@ -672,7 +957,7 @@ public class Simulator {
                 if (traceLog.isVisible()) {
                     traceLog.setVisible(false);
                 } else {
-                    traceLog.refresh();
+                    refreshTraceLog();
                     traceLog.setVisible(true);
                 }
             }
@@ -713,10 +998,108 @@ public class Simulator {
         }
     }
 
+    class ToggleReverseDebuggingAction extends AbstractAction {
+        public ToggleReverseDebuggingAction() {
+            super("Reverse Debugging", null);
+            putValue(SHORT_DESCRIPTION, "Keep an undo journal, so that the CPU can step backwards");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            ReverseJournal journal = machine.getBus().getReverseJournal();
+            if (journal != null) {
+                journal.close();
+                logger.log(Level.INFO, "Reverse debugging disabled.");
+            } else {
+                new ReverseJournal(machine.getBus());
+                logger.log(Level.INFO, "Reverse debugging enabled.");
+            }
+            menuBar.reverseDebuggingDidChange();
+        }
+    }
+
+    class StepBackAction extends AbstractAction {
+        public StepBackAction() {
+            super("Step Back", null);
+            putValue(SHORT_DESCRIPTION, "Undo the selected number of steps");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_B);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            handleStepBack(stepsPerClick, false);
+        }
+    }
+
+    class RunBackAction extends AbstractAction {
+        public RunBackAction() {
+            super("Run Back to Breakpoint", null);
+            putValue(SHORT_DESCRIPTION, "Run backwards to a reverse breakpoint or watchpoint");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_K);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            handleStepBack(0, true);
+        }
+    }
+
+    class EditAddressesAction extends AbstractAction {
+        private final boolean watchpoints;
+
+        public EditAddressesAction(boolean watchpoints) {
+            super(watchpoints ? "Reverse Watchpoints..." : "Reverse Breakpoints...", null);
+            putValue(SHORT_DESCRIPTION, watchpoints ?
+                    "Set the memory addresses that stop a reverse run when written" :
+                    "Set the instruction addresses that stop a reverse run");
+            this.watchpoints = watchpoints;
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            ReverseJournal journal = machine.getBus().getReverseJournal();
+            if (journal == null) {
+                return;
+            }
+            BitSet current = watchpoints ? journal.getWatchpoints() : journal.getBreakpoints();
+            StringBuilder sb = new StringBuilder();
+            for (int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i + 1)) {
+                sb.append(sb.length() == 0 ? "" : " ").append(HexUtil.wordToHex(i));
+            }
+            String input = (String) JOptionPane.showInputDialog(mainWindow,
+                    "Hex addresses, separated by spaces:", (String) getValue(NAME),
+                    JOptionPane.PLAIN_MESSAGE, null, null, sb.toString());
+            if (input == null) {
+                return;
+            }
+            BitSet addresses = new BitSet();
+            try {
+                for (String token : input.trim().split("[\\s,]+")) {
+                    if (token.length() > 0) {
+                        addresses.set(Integer.parseInt(token.replace("$", ""), 16) & 0xffff);
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(mainWindow, "Not a hex address: " + ex.getMessage(),
+                                              "Failure", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            for (int i = 0; i <= 0xffff; i++) {
+                if (watchpoints) {
+                    journal.setWatchpoint(i, addresses.get(i));
+                } else {
+                    journal.setBreakpoint(i, addresses.get(i));
+                }
+            }
+        }
+    }
+
     class SimulatorMenu extends JMenuBar {
         // Menu Items
         private JMenuItem loadProgramItem;
         private JMenuItem loadRomItem;
+        private JMenuItem recordSessionItem;
+        private JMenuItem replaySessionItem;
+        private JMenuItem stepBackItem;
+        private JMenuItem runBackItem;
+        private JMenuItem breakpointsItem;
+        private JMenuItem watchpointsItem;
 
         /**
          * Create a new SimulatorMenu instance.
@@ -733,6 +1116,11 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(false);
             }
+            replaySessionItem.setEnabled(false);
+            // Recording can be stopped, but not started, while running.
+            recordSessionItem.setEnabled(machine.getBus().getSessionRecorder() != null);
+            stepBackItem.setEnabled(false);
+            runBackItem.setEnabled(false);
         }
 
         /**
@@ -743,6 +1131,32 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(true);
             }
+            recordingDidChange();
+            reverseDebuggingDidChange();
+        }
+
+        /**
+         * Update the reverse debugging items after the journal is enabled or disabled.
+         */
+        public void reverseDebuggingDidChange() {
+            boolean enabled = machine.getBus().getReverseJournal() != null;
+            boolean running = runLoop != null && runLoop.isRunning();
+            stepBackItem.setEnabled(enabled && !running);
+            runBackItem.setEnabled(enabled && !running);
+            breakpointsItem.setEnabled(enabled);
+            watchpointsItem.setEnabled(enabled);
+        }
+
+        /**
+         * Update the session items after a recording or replay starts or stops.
+         */
+        public void recordingDidChange() {
+            boolean recording = machine.getBus().getSessionRecorder() != null;
+            boolean replaying = machine.getBus().getSessionReplayer() != null;
+            boolean running = runLoop != null && runLoop.isRunning();
+            recordSessionItem.setText(recording ? "Stop Recording" : "Record Session...");
+            recordSessionItem.setEnabled(recording || (!replaying && !running));
+            replaySessionItem.setEnabled(!recording && !replaying && !running);
         }
 
         private void initMenu() {
@@ -762,6 +1176,12 @@ public class Simulator {
                 fileMenu.add(loadRomItem);
             }
 
+            recordSessionItem = new JMenuItem(new RecordSessionAction());
+            fileMenu.add(recordSessionItem);
+
+            replaySessionItem = new JMenuItem(new ReplaySessionAction());
+            fileMenu.add(replaySessionItem);
+
             JMenuItem prefsItem = new JMenuItem(new ShowPrefsAction());
             fileMenu.add(prefsItem);
 
@@ -825,6 +1245,29 @@ public class Simulator {
             }
 
             add(viewMenu);
+
+            /*
+             * Debug Menu
+             */
+
+            JMenu debugMenu = new JMenu("Debug");
+
+            debugMenu.add(new JCheckBoxMenuItem(new ToggleReverseDebuggingAction()));
+
+            stepBackItem = new JMenuItem(new StepBackAction());
+            debugMenu.add(stepBackItem);
+
+            runBackItem = new JMenuItem(new RunBackAction());
+            debugMenu.add(runBackItem);
+
+            breakpointsItem = new JMenuItem(new EditAddressesAction(false));
+            debugMenu.add(breakpointsItem);
+
+            watchpointsItem = new JMenuItem(new EditAddressesAction(true));
+            debugMenu.add(watchpointsItem);
+
+            add(debugMenu);
+            reverseDebuggingDidChange();
         }
 
         private void makeFontSizeMenuItem(int size, JMenu fontSubMenu, ButtonGroup group) {
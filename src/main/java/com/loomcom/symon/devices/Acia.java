@@ -23,8 +23,12 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.InterruptLines;
+import com.loomcom.symon.SessionRecorder;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Abstract base class for ACIAS such as the 6551 and 6580
@@ -42,6 +46,14 @@ public abstract class Acia extends Device {
     boolean receiveIrqEnabled = false;
     boolean transmitIrqEnabled = false;
     boolean overrun = false;
+
+    /**
+     * The IRQ source this ACIA drives. With the default source the CPU
+     * acknowledges the interrupt itself; with its own source the line
+     * stays asserted until the guest reads the status or data register.
+     */
+    final int irqSource;
+    boolean irqAsserted = false;
     
 	long lastTxWrite   = 0;
     long lastRxRead    = 0;
@@ -56,12 +68,23 @@ public abstract class Acia extends Device {
 
     boolean rxFull  = false;
     boolean txEmpty = true;
+
+    /**
+     * Traffic counters, for monitoring.
+     */
+    long bytesReceived    = 0;
+    long bytesTransmitted = 0;
 	
 	
     public Acia(int address, int size, String name) throws MemoryRangeException {
+        this(address, size, name, InterruptLines.DEFAULT_SOURCE);
+    }
+
+    public Acia(int address, int size, String name, int irqSource) throws MemoryRangeException {
         super(address, address + size - 1, name);
         this.name = name;
         this.baseAddress = address;
+        this.irqSource = irqSource;
     }
 
 
@@ -106,10 +129,28 @@ public abstract class Acia extends Device {
         return name + "@" + String.format("%04X", baseAddress);
     }
 
+    /**
+     * @return The IRQ source this ACIA drives.
+     */
+    public int getIrqSource() {
+        return irqSource;
+    }
+
+    /**
+     * Reads the status register on behalf of the guest, which acknowledges
+     * the interrupt.
+     */
+    synchronized int statusRead() {
+        int stat = statusReg();
+        acknowledgeIrq();
+        return stat;
+    }
+
     public synchronized int rxRead() {
         lastRxRead = System.nanoTime();
         overrun = false;
         rxFull = false;
+        acknowledgeIrq();
         return rxChar;
     }
 
@@ -119,9 +160,15 @@ public abstract class Acia extends Device {
         }
         
         rxFull = true;
+        bytesReceived++;
+
+        SessionRecorder recorder = getBus() == null ? null : getBus().getSessionRecorder();
+        if (recorder != null) {
+            recorder.serialIn(data);
+        }
 
         if (receiveIrqEnabled) {
-            getBus().assertIrq();
+            raiseIrq();
         }
 
         rxChar = data;
@@ -130,8 +177,13 @@ public abstract class Acia extends Device {
     public synchronized int txRead() {
         txEmpty = true;
 
+        SessionRecorder recorder = getBus() == null ? null : getBus().getSessionRecorder();
+        if (recorder != null) {
+            recorder.serialOut();
+        }
+
         if (transmitIrqEnabled) {
-            getBus().assertIrq();
+            raiseIrq();
         }
 
         return txChar;
@@ -141,6 +193,103 @@ public abstract class Acia extends Device {
         lastTxWrite = System.nanoTime();
         txChar = data;
         txEmpty = false;
+        bytesTransmitted++;
+        acknowledgeIrq();
+    }
+
+    private void raiseIrq() {
+        if (irqSource == InterruptLines.DEFAULT_SOURCE) {
+            getBus().assertIrq();
+        } else if (!irqAsserted) {
+            irqAsserted = true;
+            getBus().assertIrq(irqSource);
+        }
+    }
+
+    void acknowledgeIrq() {
+        if (irqAsserted) {
+            irqAsserted = false;
+            getBus().clearIrq(irqSource);
+        }
+    }
+
+    /**
+     * Returns true if the simulated baud rate delay since the given time has
+     * passed. The delay is measured in host time, so it is skipped while a
+     * session is being recorded or replayed, to keep the session repeatable.
+     *
+     * @param lastAccess The System.nanoTime() of the last read or write.
+     */
+    boolean baudRateDelayElapsed(long lastAccess) {
+        if (baudRateDelay == 0) {
+            return true;
+        }
+        if (getBus() != null &&
+            (getBus().getSessionRecorder() != null || getBus().getSessionReplayer() != null)) {
+            return true;
+        }
+        return System.nanoTime() >= lastAccess + baudRateDelay;
+    }
+
+    /**
+     * The status register only reports a received character, or an empty
+     * transmit register, once the simulated baud rate delay has passed.
+     */
+    @Override
+    public synchronized long nanosUntilNextEvent(long now) {
+        long next = Long.MAX_VALUE;
+        if (rxFull && lastRxRead + baudRateDelay > now) {
+            next = lastRxRead + baudRateDelay - now;
+        }
+        if (txEmpty && lastTxWrite + baudRateDelay > now) {
+            next = Math.min(next, lastTxWrite + baudRateDelay - now);
+        }
+        return next;
+    }
+
+    // Size of the state common to all ACIAs
+    static final int ACIA_STATE_SIZE = 7;
+
+    @Override
+    public int getStateSize() {
+        return ACIA_STATE_SIZE;
+    }
+
+    /**
+     * Saves the data registers, flags and baud rate. Subclasses with
+     * registers of their own add them after these.
+     */
+    @Override
+    public synchronized void saveState(ByteBuffer out) {
+        out.put((byte) rxChar);
+        out.put((byte) txChar);
+        out.put((byte) ((rxFull ? 0x01 : 0) |
+                        (txEmpty ? 0x02 : 0) |
+                        (overrun ? 0x04 : 0) |
+                        (receiveIrqEnabled ? 0x08 : 0) |
+                        (transmitIrqEnabled ? 0x10 : 0) |
+                        (irqAsserted ? 0x20 : 0)));
+        out.putInt(baudRate);
+    }
+
+    /**
+     * Restores the saved state. Any baud rate delay that was running when
+     * the snapshot was taken is treated as having expired.
+     */
+    @Override
+    public synchronized void restoreState(ByteBuffer in) {
+        rxChar = in.get() & 0xff;
+        txChar = in.get() & 0xff;
+        int flags = in.get();
+        rxFull = (flags & 0x01) != 0;
+        txEmpty = (flags & 0x02) != 0;
+        overrun = (flags & 0x04) != 0;
+        receiveIrqEnabled = (flags & 0x08) != 0;
+        transmitIrqEnabled = (flags & 0x10) != 0;
+        irqAsserted = (flags & 0x20) != 0;
+        setBaudRate(in.getInt());
+        lastRxRead = 0;
+        lastTxWrite = 0;
     }
 
     /**
@@ -157,4 +306,18 @@ public abstract class Acia extends Device {
         return rxFull;
     }
 
+    /**
+     * @return The number of bytes received from the host side (console) so far.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return The number of bytes transmitted by the guest so far.
+     */
+    public long getBytesTransmitted() {
+        return bytesTransmitted;
+    }
+
 }
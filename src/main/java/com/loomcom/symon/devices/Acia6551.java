@@ -23,13 +23,17 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.InterruptLines;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * This is a simulation of the MOS 6551 ACIA, with limited
- * functionality.  Interrupts are not supported.
+ * functionality. Receive and transmit interrupts are supported, but
+ * not reported in the status register.
  * <p/>
  * Unlike a 16550 UART, the 6551 ACIA has only one-byte transmit and
  * receive buffers. It is the programmer's responsibility to check the
@@ -54,7 +58,16 @@ public class Acia6551 extends Acia {
 
 
     public Acia6551(int address) throws MemoryRangeException {
-        super(address, ACIA_SIZE, "ACIA");
+        this(address, InterruptLines.DEFAULT_SOURCE);
+    }
+
+    /**
+     * @param address   The address of the first register.
+     * @param irqSource The IRQ source to drive, held until the guest reads
+     *                  the status or data register.
+     */
+    public Acia6551(int address, int irqSource) throws MemoryRangeException {
+        super(address, ACIA_SIZE, "ACIA", irqSource);
     }
 
     @Override
@@ -63,7 +76,7 @@ public class Acia6551 extends Acia {
             case DATA_REG:
                 return rxRead();
             case STAT_REG:
-                return statusReg();
+                return statusRead();
             case CMND_REG:
                 return commandRegister;
             case CTRL_REG:
@@ -183,10 +196,10 @@ public class Acia6551 extends Acia {
     public int statusReg() {
         // TODO: Parity Error, Framing Error, DTR, DSR, and Interrupt flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (rxFull && baudRateDelayElapsed(lastRxRead)) {
             stat |= 0x08;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (txEmpty && baudRateDelayElapsed(lastTxWrite)) {
             stat |= 0x10;
         }
         if (overrun) {
@@ -196,6 +209,25 @@ public class Acia6551 extends Acia {
     }
 
 
+    @Override
+    public int getStateSize() {
+        return super.getStateSize() + 2;
+    }
+
+    @Override
+    public synchronized void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte) commandRegister);
+        out.put((byte) controlRegister);
+    }
+
+    @Override
+    public synchronized void restoreState(ByteBuffer in) {
+        super.restoreState(in);
+        commandRegister = in.get() & 0xff;
+        controlRegister = in.get() & 0xff;
+    }
+
     private synchronized void reset() {
         txChar = 0;
         txEmpty = true;
@@ -203,6 +235,7 @@ public class Acia6551 extends Acia {
         rxFull = false;
         receiveIrqEnabled = false;
         transmitIrqEnabled = false;
+        acknowledgeIrq();
     }
 
 }
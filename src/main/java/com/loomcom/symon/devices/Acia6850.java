@@ -24,13 +24,17 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.InterruptLines;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * This is a simulation of the Motorola 6850 ACIA, with limited
- * functionality.  Interrupts are not supported.
+ * functionality. Receive and transmit interrupts are supported, but
+ * not reported in the status register.
  * <p/>
  * Unlike a 16550 UART, the 6850 ACIA has only one-byte transmit and
  * receive buffers. It is the programmer's responsibility to check the
@@ -56,7 +60,16 @@ public class Acia6850 extends Acia {
 
 
     public Acia6850(int address) throws MemoryRangeException {
-        super(address, ACIA_SIZE, "ACIA6850");
+        this(address, InterruptLines.DEFAULT_SOURCE);
+    }
+
+    /**
+     * @param address   The address of the first register.
+     * @param irqSource The IRQ source to drive, held until the guest reads
+     *                  the status or data register.
+     */
+    public Acia6850(int address, int irqSource) throws MemoryRangeException {
+        super(address, ACIA_SIZE, "ACIA6850", irqSource);
         setBaudRate(2400);
     }
 
@@ -66,7 +79,7 @@ public class Acia6850 extends Acia {
             case RX_REG:
                 return rxRead();
             case STAT_REG:
-                return statusReg();
+                return statusRead();
 
             default:
                 throw new MemoryAccessException("No register.");
@@ -110,10 +123,10 @@ public class Acia6850 extends Acia {
     public int statusReg() {
         // TODO: Parity Error, Framing Error, DTR, DSR, and Interrupt flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (rxFull && baudRateDelayElapsed(lastRxRead)) {
             stat |= 0x01;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (txEmpty && baudRateDelayElapsed(lastTxWrite)) {
             stat |= 0x02;
         }
         if (overrun) {
@@ -124,10 +137,28 @@ public class Acia6850 extends Acia {
     }
 
 
+    @Override
+    public int getStateSize() {
+        return super.getStateSize() + 1;
+    }
+
+    @Override
+    public synchronized void saveState(ByteBuffer out) {
+        super.saveState(out);
+        out.put((byte) commandRegister);
+    }
+
+    @Override
+    public synchronized void restoreState(ByteBuffer in) {
+        super.restoreState(in);
+        commandRegister = in.get() & 0xff;
+    }
+
     private synchronized void reset() {
         overrun = false;
         rxFull = false;
         txEmpty = true;
+        acknowledgeIrq();
     }
 
 }
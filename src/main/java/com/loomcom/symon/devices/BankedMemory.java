@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * RAM larger than the address space, seen through windows that can each
+ * be pointed at any bank of a large backing store, as with the memory
+ * management units of 6502 machines with more than 64 KB.
+ * <p/>
+ * The address range of this device is divided into windows of 4 KB, 8 KB
+ * or any other power of two. Each window shows one bank of the backing
+ * store, chosen by the program through the control registers returned by
+ * {@link #createControlRegisters(int)}, or by the simulator through
+ * {@link #selectBank(int, int)}. Switching banks only changes one entry in
+ * a page table, so software that pages memory in and out on every call
+ * costs no more than any other write.
+ * <p/>
+ * Writes mark the banks they change as dirty, as the bus does for pages
+ * of RAM, so that a {@link com.loomcom.symon.MachineCheckpoint} only has
+ * to copy the banks the guest has changed.
+ */
+public class BankedMemory extends Device {
+
+    private final byte[] store;
+    private final int windowShift;
+    private final int windowMask;
+    private final int bankCount;
+
+    // The offset into the store of the bank shown in each window.
+    private final int[] windowBase;
+
+    // One bit per bank written since the dirty banks were last cleared.
+    private final long[] dirtyBanks;
+    // Counts the times the dirty banks have been cleared.
+    private long dirtyBankEpoch;
+
+    /**
+     * @param startAddress The first address of the first window.
+     * @param endAddress   The last address of the last window.
+     * @param windowSize   The size of each window and bank, a power of two.
+     * @param storeSize    The size of the backing store, a multiple of the window size.
+     */
+    public BankedMemory(int startAddress, int endAddress, int windowSize, int storeSize)
+            throws MemoryRangeException {
+        super(startAddress, endAddress, "Banked Memory");
+        if (windowSize <= 0 || (windowSize & (windowSize - 1)) != 0) {
+            throw new MemoryRangeException("Window size must be a power of two.");
+        }
+        if (size % windowSize != 0) {
+            throw new MemoryRangeException("Address range must be a whole number of windows.");
+        }
+        if (storeSize < size || storeSize % windowSize != 0) {
+            throw new MemoryRangeException("Backing store must be a whole number of banks, at least as large as the windows.");
+        }
+        this.store = new byte[storeSize];
+        this.windowShift = Integer.numberOfTrailingZeros(windowSize);
+        this.windowMask = windowSize - 1;
+        this.bankCount = storeSize / windowSize;
+        this.windowBase = new int[size / windowSize];
+        this.dirtyBanks = new long[(bankCount + 63) >>> 6];
+
+        // Start out with the first banks in order, like plain RAM.
+        for (int window = 0; window < windowBase.length; window++) {
+            windowBase[window] = window << windowShift;
+        }
+    }
+
+    public int getWindowCount() {
+        return windowBase.length;
+    }
+
+    public int getWindowSize() {
+        return windowMask + 1;
+    }
+
+    public int getBankCount() {
+        return bankCount;
+    }
+
+    /**
+     * Show a bank of the backing store in a window.
+     *
+     * @param window The window, counting from the start of this device.
+     * @param bank   The bank. Only as many low bits as needed to number the
+     *               banks are used, as if the upper address lines were
+     *               not connected.
+     */
+    public void selectBank(int window, int bank) {
+        windowBase[window] = (bank % bankCount) << windowShift;
+    }
+
+    /**
+     * @return The bank shown in a window.
+     */
+    public int getSelectedBank(int window) {
+        return windowBase[window] >>> windowShift;
+    }
+
+    /**
+     * @return The whole backing store, for loading and inspecting it directly.
+     *         Changes made to it directly should be reported with
+     *         {@link #markBankDirty(int)}.
+     */
+    public byte[] getStore() {
+        return store;
+    }
+
+    /**
+     * @return The position in the store of the byte at an address in the
+     *         windows, with the banks currently selected.
+     */
+    public int storeOffset(int address) {
+        return windowBase[address >>> windowShift] + (address & windowMask);
+    }
+
+    /**
+     * Put back a byte of the store, as it was before a write, and mark its
+     * bank dirty.
+     */
+    public void restoreStoreByte(int offset, int value) {
+        store[offset] = (byte) value;
+        dirtyBanks[offset >>> (windowShift + 6)] |= 1L << (offset >>> windowShift);
+    }
+
+    /**
+     * @return true if the bank has been written since the dirty banks were
+     *         last cleared.
+     */
+    public boolean isBankDirty(int bank) {
+        return (dirtyBanks[bank >>> 6] & (1L << bank)) != 0;
+    }
+
+    /**
+     * Mark a bank as dirty that was changed without going through the bus.
+     */
+    public void markBankDirty(int bank) {
+        dirtyBanks[bank >>> 6] |= 1L << bank;
+    }
+
+    /**
+     * @return A copy of the dirty bank bitmap, with one bit for each bank.
+     */
+    public long[] getDirtyBanks() {
+        return dirtyBanks.clone();
+    }
+
+    /**
+     * Replace the dirty bank bitmap, for example after restoring a delta
+     * that still differs from its checkpoint.
+     */
+    public void setDirtyBanks(long[] banks) {
+        System.arraycopy(banks, 0, dirtyBanks, 0, dirtyBanks.length);
+    }
+
+    /**
+     * Start tracking dirty banks afresh.
+     *
+     * @return The new dirty bank epoch. See {@link #getDirtyBankEpoch()}.
+     */
+    public long clearDirtyBanks() {
+        Arrays.fill(dirtyBanks, 0L);
+        return ++dirtyBankEpoch;
+    }
+
+    /**
+     * Returns the number of times the dirty banks have been cleared, so that
+     * anything relying on them being relative to a particular point in time
+     * can tell when someone else has cleared them.
+     */
+    public long getDirtyBankEpoch() {
+        return dirtyBankEpoch;
+    }
+
+    public int read(int address) throws MemoryAccessException {
+        return store[windowBase[address >>> windowShift] + (address & windowMask)] & 0xff;
+    }
+
+    @Override
+    public int peek(int address) throws MemoryAccessException {
+        return read(address);
+    }
+
+    public void write(int address, int data) throws MemoryAccessException {
+        int offset = windowBase[address >>> windowShift] + (address & windowMask);
+        store[offset] = (byte) data;
+        dirtyBanks[offset >>> (windowShift + 6)] |= 1L << (offset >>> windowShift);
+    }
+
+    @Override
+    public void readBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        while (length > 0) {
+            int chunk = Math.min(length, windowMask + 1 - (address & windowMask));
+            System.arraycopy(store, windowBase[address >>> windowShift] + (address & windowMask),
+                             buffer, offset, chunk);
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public void writeBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        while (length > 0) {
+            int chunk = Math.min(length, windowMask + 1 - (address & windowMask));
+            int base = windowBase[address >>> windowShift];
+            System.arraycopy(buffer, offset, store, base + (address & windowMask), chunk);
+            markBankDirty(base >>> windowShift);
+            address += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Create the registers a program uses to switch banks. There are two
+     * registers per window: the low and the high byte of the bank number.
+     * Each write takes effect immediately.
+     *
+     * @param startAddress The address of the first register.
+     * @return A device to add to the bus.
+     */
+    public Device createControlRegisters(int startAddress) throws MemoryRangeException {
+        return new ControlRegisters(startAddress);
+    }
+
+    @Override
+    public int getStateSize() {
+        return windowBase.length * 4 + store.length;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        for (int base : windowBase) {
+            out.putInt(base);
+        }
+        out.put(store);
+    }
+
+    /**
+     * Restores the selected banks and the whole store, which marks every
+     * bank dirty.
+     */
+    @Override
+    public void restoreState(ByteBuffer in) {
+        for (int window = 0; window < windowBase.length; window++) {
+            windowBase[window] = in.getInt();
+        }
+        in.get(store);
+        for (int bank = 0; bank < bankCount; bank++) {
+            markBankDirty(bank);
+        }
+    }
+
+    public String toString() {
+        return "Banked Memory: " + getMemoryRange().toString();
+    }
+
+    /**
+     * The registers created by {@link #createControlRegisters(int)}. The
+     * registers of window n are at offsets 2n and 2n + 1.
+     */
+    public class ControlRegisters extends Device {
+        private ControlRegisters(int startAddress) throws MemoryRangeException {
+            super(startAddress, startAddress + windowBase.length * 2 - 1, "MMU");
+        }
+
+        /**
+         * @return The banked memory whose windows these registers switch.
+         */
+        public BankedMemory getBankedMemory() {
+            return BankedMemory.this;
+        }
+
+        public int read(int address) throws MemoryAccessException {
+            int bank = getSelectedBank(address >>> 1);
+            return (address & 1) == 0 ? bank & 0xff : bank >>> 8;
+        }
+
+        @Override
+        public int peek(int address) throws MemoryAccessException {
+            return read(address);
+        }
+
+        public void write(int address, int data) throws MemoryAccessException {
+            int window = address >>> 1;
+            int bank = getSelectedBank(window);
+            if ((address & 1) == 0) {
+                bank = (bank & 0xff00) | (data & 0xff);
+            } else {
+                bank = (bank & 0x00ff) | ((data & 0xff) << 8);
+            }
+            selectBank(window, bank);
+        }
+
+        public String toString() {
+            return "MMU: " + getMemoryRange().toString();
+        }
+    }
+}
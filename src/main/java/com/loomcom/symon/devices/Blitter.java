@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A memory copy and fill coprocessor. Guest software sets the source,
+ * destination and length, and writes a command to the control register.
+ * The whole transfer is done before the next instruction, as block copies
+ * through the bus, so scrolling a screen costs one store instead of
+ * thousands of instructions.
+ * <p/>
+ * Registers:
+ * <pre>
+ *   +0,+1   Source address, low byte first
+ *   +2,+3   Destination address
+ *   +4,+5   Length
+ *   +6      Fill value
+ *   +7      Write: control. Bits 0-1 choose the mode, and bit 7 asks for
+ *           an IRQ when the transfer is done.
+ *           Read: status. Bit 7 is set when a transfer is done, and bit 6
+ *           if it failed. Reading the status clears both, and the IRQ.
+ * </pre>
+ * Both copy modes take the lowest source and destination addresses.
+ * COPY_UP moves the lowest byte first, and COPY_DOWN the highest, so
+ * overlapping blocks behave as they would with a loop in that direction.
+ */
+public class Blitter extends Device {
+
+    public static final int DEVICE_SIZE = 8;
+
+    // Registers
+    public static final int SOURCE = 0;
+    public static final int DESTINATION = 2;
+    public static final int LENGTH = 4;
+    public static final int FILL_VALUE = 6;
+    public static final int CONTROL = 7;
+
+    // Modes
+    public static final int COPY_UP = 0;
+    public static final int COPY_DOWN = 1;
+    public static final int FILL = 2;
+
+    public static final int CONTROL_IRQ = 0x80;
+
+    public static final int STATUS_DONE = 0x80;
+    public static final int STATUS_ERROR = 0x40;
+
+    private final int irqSource;
+    private final byte[] registers = new byte[DEVICE_SIZE];
+    private final byte[] buffer = new byte[0x10000];
+    private int status;
+    private boolean irqAsserted;
+
+    // Counter for monitoring
+    private long bytesMoved;
+
+    /**
+     * @param address   The address of the first register.
+     * @param irqSource The interrupt source to raise when a transfer is done.
+     */
+    public Blitter(int address, int irqSource) throws MemoryRangeException {
+        super(address, address + DEVICE_SIZE - 1, "Blitter");
+        this.irqSource = irqSource;
+    }
+
+    public int read(int address) throws MemoryAccessException {
+        if (address != CONTROL) {
+            return registers[address] & 0xff;
+        }
+        int result = status;
+        status = 0;
+        if (irqAsserted) {
+            irqAsserted = false;
+            getBus().clearIrq(irqSource);
+        }
+        return result;
+    }
+
+    public void write(int address, int data) throws MemoryAccessException {
+        registers[address] = (byte) data;
+        if (address == CONTROL) {
+            start(data & 0xff);
+        }
+    }
+
+    /**
+     * @return The number of bytes copied or filled so far.
+     */
+    public long getBytesMoved() {
+        return bytesMoved;
+    }
+
+    private void start(int control) {
+        int source = getWord(SOURCE);
+        int destination = getWord(DESTINATION);
+        int length = getWord(LENGTH);
+        Bus bus = getBus();
+
+        status = STATUS_DONE;
+        try {
+            switch (control & 0x03) {
+                case COPY_UP:
+                    if (destination > source && destination < source + length) {
+                        // Each byte is copied onto one still to be read.
+                        for (int i = 0; i < length; i++) {
+                            bus.write(destination + i, bus.read(source + i));
+                        }
+                    } else {
+                        copy(bus, source, destination, length);
+                    }
+                    break;
+                case COPY_DOWN:
+                    if (destination < source && destination + length > source) {
+                        for (int i = length - 1; i >= 0; i--) {
+                            bus.write(destination + i, bus.read(source + i));
+                        }
+                    } else {
+                        copy(bus, source, destination, length);
+                    }
+                    break;
+                case FILL:
+                    Arrays.fill(buffer, 0, length, registers[FILL_VALUE]);
+                    bus.writeBlock(destination, buffer, 0, length);
+                    break;
+                default:
+                    status |= STATUS_ERROR;
+                    break;
+            }
+            if ((status & STATUS_ERROR) == 0) {
+                bytesMoved += length;
+            }
+        } catch (MemoryAccessException ex) {
+            status |= STATUS_ERROR;
+        }
+
+        if ((control & CONTROL_IRQ) != 0 && !irqAsserted) {
+            irqAsserted = true;
+            bus.assertIrq(irqSource);
+        }
+    }
+
+    private void copy(Bus bus, int source, int destination, int length) throws MemoryAccessException {
+        bus.readBlock(source, buffer, 0, length);
+        bus.writeBlock(destination, buffer, 0, length);
+    }
+
+    private int getWord(int register) {
+        return (registers[register] & 0xff) | (registers[register + 1] & 0xff) << 8;
+    }
+
+    @Override
+    public int getStateSize() {
+        return DEVICE_SIZE + 2;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.put(registers);
+        out.put((byte) status);
+        out.put((byte) (irqAsserted ? 1 : 0));
+    }
+
+    /**
+     * The interrupt lines are restored with the CPU, so only the flag that
+     * says this device is driving its line is restored here.
+     */
+    @Override
+    public void restoreState(ByteBuffer in) {
+        in.get(registers);
+        status = in.get() & 0xff;
+        irqAsserted = in.get() != 0;
+    }
+
+    public String toString() {
+        return "Blitter: " + getMemoryRange().toString();
+    }
+}
@@ -27,6 +27,7 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
 
@@ -203,6 +204,52 @@ public class Crtc extends Device {
         return cursorSkew;
     }
 
+    @Override
+    public int getStateSize() {
+        return 16;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.put((byte) currentRegister);
+        out.put((byte) horizontalDisplayed);
+        out.put((byte) verticalDisplayed);
+        out.put((byte) scanLinesPerRow);
+        out.put((byte) cursorStartLine);
+        out.put((byte) cursorStopLine);
+        out.putShort((short) cursorBlinkRate);
+        out.putShort((short) startAddress);
+        out.putShort((short) cursorPosition);
+        out.putShort((short) pageSize);
+        out.put((byte) ((cursorEnabled ? 0x01 : 0) |
+                        (rowColumnAddressing ? 0x02 : 0) |
+                        (displayEnableSkew ? 0x04 : 0) |
+                        (cursorSkew ? 0x08 : 0)));
+        out.put((byte) 0);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        currentRegister = in.get() & 0xff;
+        horizontalDisplayed = in.get() & 0xff;
+        verticalDisplayed = in.get() & 0xff;
+        scanLinesPerRow = in.get() & 0xff;
+        cursorStartLine = in.get() & 0xff;
+        cursorStopLine = in.get() & 0xff;
+        cursorBlinkRate = in.getShort() & 0xffff;
+        startAddress = in.getShort() & 0xffff;
+        cursorPosition = in.getShort() & 0xffff;
+        pageSize = in.getShort() & 0xffff;
+        int flags = in.get();
+        cursorEnabled = (flags & 0x01) != 0;
+        rowColumnAddressing = (flags & 0x02) != 0;
+        displayEnableSkew = (flags & 0x04) != 0;
+        cursorSkew = (flags & 0x08) != 0;
+        in.get();
+
+        notifyListeners();
+    }
+
     private void setCurrentRegister(int registerNumber) {
         this.currentRegister = registerNumber;
     }
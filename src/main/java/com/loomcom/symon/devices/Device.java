@@ -28,8 +28,11 @@ import com.loomcom.symon.MemoryRange;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A memory-mapped IO Device.
@@ -58,16 +61,17 @@ public abstract class Device implements Comparable<Device> {
     private Bus bus;
 
     /**
-     * Listeners to notify on update.
+     * Listeners to notify on update. This is read on every change, and
+     * written only when a listener is registered.
      */
-    private Set<DeviceChangeListener> deviceChangeListeners;
+    private List<ListenerRegistration> deviceChangeListeners;
 
     public Device(int startAddress, int endAddress, String name)
             throws MemoryRangeException {
         this.memoryRange = new MemoryRange(startAddress, endAddress);
         this.size = endAddress - startAddress + 1;
         this.name = name;
-        this.deviceChangeListeners = new HashSet<DeviceChangeListener>();
+        this.deviceChangeListeners = new CopyOnWriteArrayList<ListenerRegistration>();
     }
 
     public Device(int startAddress, int endAddress) throws MemoryRangeException {
@@ -81,6 +85,38 @@ public abstract class Device implements Comparable<Device> {
 
     public abstract String toString();
 
+    /**
+     * Copy a block of bytes out of this device. Devices backed by an array
+     * should override this with a single copy; the default reads one byte
+     * at a time.
+     *
+     * @param address The first address to read, relative to the start of this device.
+     * @param buffer  The array to copy into.
+     * @param offset  The position in the array of the first byte.
+     * @param length  The number of bytes to copy.
+     */
+    public void readBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] = (byte) read(address + i);
+        }
+    }
+
+    /**
+     * Copy a block of bytes into this device. Devices backed by an array
+     * should override this with a single copy; the default writes one byte
+     * at a time.
+     *
+     * @param address The first address to write, relative to the start of this device.
+     * @param buffer  The array to copy from.
+     * @param offset  The position in the array of the first byte.
+     * @param length  The number of bytes to copy.
+     */
+    public void writeBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        for (int i = 0; i < length; i++) {
+            write(address + i, buffer[offset + i] & 0xff);
+        }
+    }
+
     public Bus getBus() {
         return this.bus;
     }
@@ -113,13 +149,112 @@ public abstract class Device implements Comparable<Device> {
         return size;
     }
 
+    /**
+     * Read a register without changing the state of the device, for memory
+     * viewers and debuggers. Devices whose reads have side effects, such
+     * as clearing a status flag, can't be peeked at, which is the default.
+     */
+    public int peek(int address) throws MemoryAccessException {
+        throw new MemoryAccessException("Cannot peek at " + getName() + " without side effects.");
+    }
+
+    /**
+     * Returns how long until this device next changes state on its own,
+     * without being accessed by the CPU. Devices with internal timers should
+     * override this, so that a CPU parked in an idle loop is woken in time.
+     *
+     * @param now The current value of System.nanoTime().
+     * @return The time in nanoseconds, or Long.MAX_VALUE if no event is pending.
+     */
+    public long nanosUntilNextEvent(long now) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the number of bytes written by {@link #saveState(ByteBuffer)}.
+     * Devices with no internal state need not override this, or the
+     * save and restore methods.
+     */
+    public int getStateSize() {
+        return 0;
+    }
+
+    /**
+     * Save the internal state of this device, for a machine snapshot.
+     *
+     * @param out The buffer to write exactly {@link #getStateSize()} bytes into.
+     */
+    public void saveState(ByteBuffer out) {
+    }
+
+    /**
+     * Restore the internal state saved by {@link #saveState(ByteBuffer)}.
+     *
+     * @param in The buffer to read the saved state from.
+     */
+    public void restoreState(ByteBuffer in) {
+    }
+
+    /**
+     * Register a listener to be called on the thread that changes the
+     * device, usually the CPU thread, every time it changes.
+     */
     public void registerListener(DeviceChangeListener listener) {
-        deviceChangeListeners.add(listener);
+        registerListener(listener, null);
+    }
+
+    /**
+     * Register a listener to be called on an executor. Changes made while
+     * a call is already waiting to run are coalesced into that call, so a
+     * device that changes many times in a row costs the thread changing
+     * it no more than a flag check, and the listener is called once.
+     *
+     * @param listener The listener.
+     * @param executor The executor to call it on, or null to call it at once.
+     */
+    public void registerListener(DeviceChangeListener listener, Executor executor) {
+        unregisterListener(listener);
+        deviceChangeListeners.add(new ListenerRegistration(listener, executor));
+    }
+
+    public void unregisterListener(DeviceChangeListener listener) {
+        for (ListenerRegistration registration : deviceChangeListeners) {
+            if (registration.listener == listener) {
+                deviceChangeListeners.remove(registration);
+            }
+        }
     }
 
     public void notifyListeners() {
-        for (DeviceChangeListener l : deviceChangeListeners) {
-            l.deviceStateChanged();
+        for (ListenerRegistration registration : deviceChangeListeners) {
+            registration.deviceStateChanged();
+        }
+    }
+
+    private static class ListenerRegistration implements Runnable {
+        private final DeviceChangeListener listener;
+        private final Executor executor;
+
+        // True while a call is waiting to run on the executor.
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        ListenerRegistration(DeviceChangeListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void deviceStateChanged() {
+            if (executor == null) {
+                listener.deviceStateChanged();
+            } else if (pending.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            // Cleared first, so that a change made during the call is not lost.
+            pending.set(false);
+            listener.deviceStateChanged();
         }
     }
 
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.SessionRecorder;
+import com.loomcom.symon.SessionReplayer;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A device with no real counterpart, through which guest programs can
+ * read and write files on the host, in a directory chosen by the host.
+ * <p/>
+ * The guest fills in the registers and writes a command. The whole
+ * transfer happens at once, as a single block copy between the file and
+ * memory, so a guest can move up to 64 KB per command instead of
+ * reading it a byte at a time, as it would through the
+ * {@link SdController}.
+ * <p/>
+ * Registers:
+ * <pre>
+ *   +0      Command (write to start it)
+ *   +1      Status of the last command
+ *   +2      File handle
+ *   +4,+5   Memory address, low byte first
+ *   +6,+7   Length
+ *   +8..+11 File position, for SEEK, and after READ, WRITE and SEEK
+ *   +12,+13 Number of bytes transferred by the last command
+ * </pre>
+ * OPEN_READ and OPEN_WRITE take the name of the file as a zero-terminated
+ * string at the memory address, of at most the length given, and return
+ * a handle. Names may not lead out of the host directory.
+ * <p/>
+ * Open files are not part of a machine snapshot, and are closed when one
+ * is restored or the machine is reset. The results of each command are
+ * recorded in a session log, and replayed from it without touching the
+ * host directory.
+ */
+public class HostServices extends Device {
+
+    public static final int DEVICE_SIZE = 16;
+
+    // Registers
+    public static final int COMMAND = 0;
+    public static final int STATUS = 1;
+    public static final int HANDLE = 2;
+    public static final int ADDRESS = 4;
+    public static final int LENGTH = 6;
+    public static final int POSITION = 8;
+    public static final int TRANSFERRED = 12;
+
+    // Commands
+    public static final int OPEN_READ = 1;
+    public static final int OPEN_WRITE = 2;
+    public static final int CLOSE = 3;
+    public static final int READ = 4;
+    public static final int WRITE = 5;
+    public static final int SEEK = 6;
+
+    // Status codes
+    public static final int OK = 0;
+    public static final int END_OF_FILE = 1;
+    public static final int BAD_COMMAND = 2;
+    public static final int BAD_HANDLE = 3;
+    public static final int NO_FREE_HANDLE = 4;
+    public static final int BAD_NAME = 5;
+    public static final int NOT_FOUND = 6;
+    public static final int BAD_ADDRESS = 7;
+    public static final int IO_ERROR = 8;
+
+    private static final int MAX_FILES = 8;
+    private static final int MAX_LENGTH = 0x10000;
+
+    private final static Logger logger = Logger.getLogger(HostServices.class.getName());
+
+    private final File root;
+    private final RandomAccessFile[] files = new RandomAccessFile[MAX_FILES];
+    private final byte[] registers = new byte[DEVICE_SIZE];
+    private final byte[] buffer = new byte[MAX_LENGTH];
+
+    // Counters for monitoring
+    private long commandCount;
+    private long bytesTransferred;
+
+    /**
+     * @param address The address of the first register.
+     * @param root    The host directory that guest file names are relative to.
+     */
+    public HostServices(int address, File root) throws MemoryRangeException {
+        super(address, address + DEVICE_SIZE - 1, "Host Services");
+        this.root = root;
+    }
+
+    public int read(int address) throws MemoryAccessException {
+        return registers[address] & 0xff;
+    }
+
+    public void write(int address, int data) throws MemoryAccessException {
+        registers[address] = (byte) data;
+        if (address == COMMAND) {
+            execute(data & 0xff);
+        }
+    }
+
+    /**
+     * @return The number of commands the guest has run.
+     */
+    public long getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * @return The number of bytes read and written for the guest.
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Close every open file.
+     */
+    public void closeAll() {
+        for (int handle = 0; handle < files.length; handle++) {
+            close(handle);
+        }
+    }
+
+    private void execute(int command) throws MemoryAccessException {
+        commandCount++;
+        Bus bus = getBus();
+        SessionReplayer replayer = bus == null ? null : bus.getSessionReplayer();
+        if (replayer != null) {
+            replay(command, replayer.readHostCall());
+            return;
+        }
+
+        int handle = registers[HANDLE] & 0xff;
+        int address = getWord(ADDRESS);
+        int length = getWord(LENGTH);
+        int transferred = 0;
+        int status;
+        try {
+            switch (command) {
+                case OPEN_READ:
+                case OPEN_WRITE:
+                    status = open(command == OPEN_WRITE, address, length);
+                    break;
+                case CLOSE:
+                    status = isOpen(handle) ? OK : BAD_HANDLE;
+                    close(handle);
+                    break;
+                case READ:
+                    if (!isOpen(handle)) {
+                        status = BAD_HANDLE;
+                        break;
+                    }
+                    if (length == 0) {
+                        status = OK;
+                        break;
+                    }
+                    long start = files[handle].getFilePointer();
+                    int n = files[handle].read(buffer, 0, length);
+                    if (n <= 0) {
+                        status = END_OF_FILE;
+                        break;
+                    }
+                    try {
+                        bus.writeBlock(address, buffer, 0, n);
+                    } catch (MemoryAccessException ex) {
+                        // Leave the file where POSITION says it is.
+                        files[handle].seek(start);
+                        throw ex;
+                    }
+                    transferred = n;
+                    status = OK;
+                    break;
+                case WRITE:
+                    if (!isOpen(handle)) {
+                        status = BAD_HANDLE;
+                        break;
+                    }
+                    bus.readBlock(address, buffer, 0, length);
+                    files[handle].write(buffer, 0, length);
+                    transferred = length;
+                    status = OK;
+                    break;
+                case SEEK:
+                    if (!isOpen(handle)) {
+                        status = BAD_HANDLE;
+                        break;
+                    }
+                    files[handle].seek(getLong(POSITION));
+                    status = OK;
+                    break;
+                default:
+                    status = BAD_COMMAND;
+            }
+            if (status == OK && (command == READ || command == WRITE || command == SEEK)) {
+                setLong(POSITION, files[handle].getFilePointer());
+            }
+        } catch (MemoryAccessException ex) {
+            status = BAD_ADDRESS;
+            transferred = 0;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Host services I/O error: " + ex.getMessage());
+            status = IO_ERROR;
+            transferred = 0;
+        }
+
+        registers[STATUS] = (byte) status;
+        setWord(TRANSFERRED, transferred);
+        bytesTransferred += transferred;
+
+        SessionRecorder recorder = bus == null ? null : bus.getSessionRecorder();
+        if (recorder != null) {
+            int dataLength = command == READ ? transferred : 0;
+            byte[] result = new byte[8 + dataLength];
+            result[0] = registers[STATUS];
+            result[1] = registers[HANDLE];
+            System.arraycopy(registers, POSITION, result, 2, 4);
+            result[6] = registers[TRANSFERRED];
+            result[7] = registers[TRANSFERRED + 1];
+            System.arraycopy(buffer, 0, result, 8, dataLength);
+            recorder.hostCall(result);
+        }
+    }
+
+    /**
+     * Apply the recorded result of a command, instead of running it.
+     */
+    private void replay(int command, byte[] result) throws MemoryAccessException {
+        if (result == null) {
+            registers[STATUS] = (byte) IO_ERROR;
+            setWord(TRANSFERRED, 0);
+            return;
+        }
+        registers[STATUS] = result[0];
+        registers[HANDLE] = result[1];
+        System.arraycopy(result, 2, registers, POSITION, 4);
+        registers[TRANSFERRED] = result[6];
+        registers[TRANSFERRED + 1] = result[7];
+        if (command == READ && result.length > 8) {
+            getBus().writeBlock(getWord(ADDRESS), result, 8, result.length - 8);
+        }
+        bytesTransferred += getWord(TRANSFERRED);
+    }
+
+    private int open(boolean forWriting, int address, int length) throws IOException, MemoryAccessException {
+        int handle = 0;
+        while (handle < files.length && files[handle] != null) {
+            handle++;
+        }
+        if (handle == files.length) {
+            return NO_FREE_HANDLE;
+        }
+
+        int max = Math.min(length, 255);
+        getBus().readBlock(address, buffer, 0, max);
+        int nameLength = 0;
+        while (nameLength < max && buffer[nameLength] != 0) {
+            nameLength++;
+        }
+        if (nameLength == 0 || nameLength == max) {
+            return BAD_NAME;
+        }
+        String name = new String(buffer, 0, nameLength, "US-ASCII");
+
+        File file = new File(root, name).getCanonicalFile();
+        if (!file.getPath().startsWith(root.getCanonicalPath() + File.separator)) {
+            return BAD_NAME;
+        }
+        if (forWriting) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            files[handle] = raf;
+        } else {
+            if (!file.isFile()) {
+                return NOT_FOUND;
+            }
+            files[handle] = new RandomAccessFile(file, "r");
+        }
+        registers[HANDLE] = (byte) handle;
+        setLong(POSITION, 0);
+        return OK;
+    }
+
+    private boolean isOpen(int handle) {
+        return handle < files.length && files[handle] != null;
+    }
+
+    private void close(int handle) {
+        if (!isOpen(handle)) {
+            return;
+        }
+        try {
+            files[handle].close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not close host file: " + ex.getMessage());
+        }
+        files[handle] = null;
+    }
+
+    private int getWord(int register) {
+        return (registers[register] & 0xff) | (registers[register + 1] & 0xff) << 8;
+    }
+
+    private void setWord(int register, int value) {
+        registers[register] = (byte) value;
+        registers[register + 1] = (byte) (value >>> 8);
+    }
+
+    private long getLong(int register) {
+        return (getWord(register) | (long) getWord(register + 2) << 16) & 0xffffffffL;
+    }
+
+    private void setLong(int register, long value) {
+        setWord(register, (int) value);
+        setWord(register + 2, (int) (value >>> 16));
+    }
+
+    /**
+     * Only the registers are saved. Open files are not, and restoring
+     * closes them, so a handle from another point in time reads as
+     * BAD_HANDLE instead of reaching the wrong file.
+     */
+    @Override
+    public int getStateSize() {
+        return DEVICE_SIZE;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.put(registers);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        closeAll();
+        in.get(registers);
+    }
+
+    public String toString() {
+        return "Host Services: " + getMemoryRange().toString();
+    }
+}
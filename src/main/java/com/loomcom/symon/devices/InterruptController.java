@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.InterruptLines;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A prioritized interrupt controller. It sits between the IRQ sources of
+ * the {@link InterruptLines} and the CPU: the guest can mask each source,
+ * give it a priority, and find the source to service by reading a single
+ * vector register, instead of polling every device.
+ * <p/>
+ * Registers:
+ * <pre>
+ *   +0,+1   Requests: one bit per source that is asserted, masked or not
+ *   +2,+3   Mask: one bit per source that may interrupt the CPU (all by default)
+ *   +4      Read: vector, twice the number of the highest priority source
+ *           that is asserted and not masked, or $FF if there is none.
+ *           Write: clear the request of the source with that vector, for
+ *           sources that are not cleared by their device.
+ *   +8..+15 Priorities, four bits per source, the even source in the low
+ *           half of each byte. The highest priority wins, and of equal
+ *           priorities the lowest numbered source.
+ * </pre>
+ * The vector is a ready-made index into a table of handler addresses, so
+ * an interrupt handler can dispatch with
+ * <code>LDX vector / JMP (table,X)</code> on a 65C02.
+ */
+public class InterruptController extends Device {
+
+    public static final int DEVICE_SIZE = 16;
+
+    // Registers
+    public static final int REQUESTS = 0;
+    public static final int MASK = 2;
+    public static final int VECTOR = 4;
+    public static final int PRIORITIES = 8;
+
+    public static final int NO_VECTOR = 0xff;
+
+    private final InterruptLines lines;
+    private final int[] priorities = new int[InterruptLines.SOURCES];
+
+    /**
+     * @param address The address of the first register.
+     * @param lines   The interrupt lines of the CPU.
+     */
+    public InterruptController(int address, InterruptLines lines) throws MemoryRangeException {
+        super(address, address + DEVICE_SIZE - 1, "Interrupt Controller");
+        this.lines = lines;
+    }
+
+    public int read(int address) throws MemoryAccessException {
+        switch (address) {
+            case REQUESTS:
+                return lines.getIrqRequests() & 0xff;
+            case REQUESTS + 1:
+                return lines.getIrqRequests() >>> 8;
+            case MASK:
+                return lines.getIrqMask() & 0xff;
+            case MASK + 1:
+                return lines.getIrqMask() >>> 8;
+            case VECTOR:
+                return getVector();
+            default:
+                if (address >= PRIORITIES) {
+                    int source = (address - PRIORITIES) * 2;
+                    int priority = priorities[source];
+                    if (source + 1 < priorities.length) {
+                        priority |= priorities[source + 1] << 4;
+                    }
+                    return priority;
+                }
+                return 0;
+        }
+    }
+
+    public void write(int address, int data) throws MemoryAccessException {
+        switch (address) {
+            case MASK:
+                lines.setIrqMask((lines.getIrqMask() & 0xff00) | data);
+                break;
+            case MASK + 1:
+                lines.setIrqMask((lines.getIrqMask() & 0x00ff) | data << 8);
+                break;
+            case VECTOR:
+                int source = (data & 0xff) >>> 1;
+                if (source < InterruptLines.SOURCES) {
+                    lines.clearIrq(source);
+                }
+                break;
+            default:
+                if (address >= PRIORITIES) {
+                    int even = (address - PRIORITIES) * 2;
+                    priorities[even] = data & 0x0f;
+                    if (even + 1 < priorities.length) {
+                        priorities[even + 1] = (data >>> 4) & 0x0f;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return Twice the number of the source to service next, or {@link #NO_VECTOR}.
+     */
+    public int getVector() {
+        int pending = lines.getIrqRequests() & lines.getIrqMask();
+        if (pending == 0) {
+            return NO_VECTOR;
+        }
+        int best = -1;
+        for (int source = 0; source < priorities.length; source++) {
+            if ((pending & (1 << source)) != 0 && (best < 0 || priorities[source] > priorities[best])) {
+                best = source;
+            }
+        }
+        return best * 2;
+    }
+
+    /**
+     * The requests themselves are restored with the CPU, so only the mask
+     * and priorities are saved here.
+     */
+    @Override
+    public int getStateSize() {
+        return 2 + priorities.length;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putShort((short) lines.getIrqMask());
+        for (int priority : priorities) {
+            out.put((byte) priority);
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        lines.setIrqMask(in.getShort());
+        for (int source = 0; source < priorities.length; source++) {
+            priorities[source] = in.get();
+        }
+    }
+
+    public String toString() {
+        return "Interrupt Controller: " + getMemoryRange().toString();
+    }
+}
@@ -24,6 +24,7 @@
 package com.loomcom.symon.devices;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import com.loomcom.symon.exceptions.*;
@@ -33,7 +34,10 @@ import javax.swing.*;
 public class Memory extends Device {
 
     private boolean readOnly;
-    private int[] mem;
+    private byte[] mem;
+
+    // True if mem is a ROM image from the RomStore, used by other machines too.
+    private boolean shared;
 
     /* Initialize all locations to 0x00 (BRK) */
     private static final int DEFAULT_FILL = 0x00;
@@ -42,7 +46,7 @@ public class Memory extends Device {
             throws MemoryRangeException {
         super(startAddress, endAddress, (readOnly ? "RO Memory" : "RW Memory"));
         this.readOnly = readOnly;
-        this.mem = new int[this.size];
+        this.mem = new byte[this.size];
         this.fill(DEFAULT_FILL);
     }
 
@@ -50,10 +54,22 @@ public class Memory extends Device {
         this(startAddress, endAddress, false);
     }
 
+    private Memory(int startAddress, int endAddress, byte[] image) throws MemoryRangeException {
+        super(startAddress, endAddress, "RO Memory");
+        this.readOnly = true;
+        this.mem = image;
+        this.shared = true;
+    }
+
+    /**
+     * Make read-only memory from a ROM file. The contents are shared with
+     * every other ROM made from the same file, through the {@link RomStore}.
+     */
     public static Memory makeROM(int startAddress, int endAddress, File f) throws MemoryRangeException, IOException {
-        Memory memory = new Memory(startAddress, endAddress, true);
-        memory.loadFromFile(f);
-        return memory;
+        if (endAddress < startAddress) {
+            throw new MemoryRangeException("End address must be greater than start address.");
+        }
+        return new Memory(startAddress, endAddress, RomStore.get(f, endAddress - startAddress + 1));
     }
 
     public static Memory makeRAM(int startAddress, int endAddress) throws MemoryRangeException {
@@ -65,7 +81,7 @@ public class Memory extends Device {
         if (readOnly) {
             throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
         } else {
-            this.mem[address] = data;
+            this.mem[address] = (byte) data;
         }
     }
 
@@ -83,13 +99,14 @@ public class Memory extends Device {
             if (fileSize > mem.length) {
                 throw new MemoryRangeException("File will not fit in available memory.");
             } else {
-                int i = 0;
-                FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis);
-                DataInputStream dis = new DataInputStream(bis);
-                while (dis.available() != 0) {
-                    mem[i++] = dis.readUnsignedByte();
+                unshare();
+                DataInputStream dis = new DataInputStream(new FileInputStream(file));
+                try {
+                    dis.readFully(mem, 0, (int) fileSize);
+                } finally {
+                    dis.close();
                 }
+                markDirty();
             }
         } else {
             throw new IOException("Cannot open file " + file);
@@ -98,18 +115,98 @@ public class Memory extends Device {
     }
 
     public int read(int address) throws MemoryAccessException {
-        return this.mem[address];
+        return this.mem[address] & 0xff;
+    }
+
+    @Override
+    public int peek(int address) throws MemoryAccessException {
+        return this.mem[address] & 0xff;
+    }
+
+    @Override
+    public void readBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        System.arraycopy(mem, address, buffer, offset, length);
+    }
+
+    @Override
+    public void writeBlock(int address, byte[] buffer, int offset, int length) throws MemoryAccessException {
+        if (readOnly) {
+            throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
+        }
+        System.arraycopy(buffer, offset, mem, address, length);
     }
 
     public void fill(int val) {
-        Arrays.fill(this.mem, val);
+        unshare();
+        Arrays.fill(this.mem, (byte) val);
+        markDirty();
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return True if the contents are a ROM image shared with other machines.
+     */
+    public boolean isShared() {
+        return shared;
     }
 
     public String toString() {
         return "Memory: " + getMemoryRange().toString();
     }
 
-    public int[] getDmaAccess() {
+    /**
+     * @return The array holding the contents. If the memory is shared, the
+     *         array must not be written.
+     */
+    public byte[] getDmaAccess() {
         return mem;
     }
+
+    /**
+     * Read-only memory cannot be changed by the CPU, so only the contents
+     * of RAM are saved.
+     */
+    @Override
+    public int getStateSize() {
+        return readOnly ? 0 : mem.length;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        if (!readOnly) {
+            out.put(mem);
+        }
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        if (!readOnly) {
+            in.get(mem);
+            markDirty();
+        }
+    }
+
+    /**
+     * Give this memory contents of its own before changing them, if they
+     * are shared with other machines.
+     */
+    private void unshare() {
+        if (shared) {
+            mem = mem.clone();
+            shared = false;
+        }
+    }
+
+    /**
+     * Tell the bus that the whole of this memory may have changed, after
+     * writing to it directly rather than through the bus.
+     */
+    private void markDirty() {
+        if (getBus() != null) {
+            getBus().markDirty(startAddress(), endAddress());
+        }
+    }
 }
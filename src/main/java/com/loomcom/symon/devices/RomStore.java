@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ROM images shared by every machine in the JVM. Each ROM file is mapped
+ * and read once, and machines that load the same file, or another file
+ * with the same contents, are given the same array. Read-only
+ * {@link Memory} devices use the array directly, so a hundred machines
+ * running the same ROM hold one copy of it.
+ * <p/>
+ * A file is read again only if its length or modification time changes.
+ */
+public class RomStore {
+
+    private static class Entry {
+        long length;
+        long lastModified;
+        byte[] image;
+    }
+
+    // Images by canonical path and size, and by content hash and size.
+    private static final Map<String, Entry> byPath = new HashMap<String, Entry>();
+    private static final Map<String, byte[]> byHash = new HashMap<String, byte[]>();
+
+    private static long fileReads;
+
+    private RomStore() {
+    }
+
+    /**
+     * Get the shared image of a ROM file. The array must not be written.
+     *
+     * @param file The ROM file.
+     * @param size The size of the ROM. A shorter file is padded with zeros.
+     * @return The image, exactly size bytes long.
+     * @throws MemoryRangeException if the file is larger than the ROM.
+     * @throws IOException if the file read fails.
+     */
+    public static synchronized byte[] get(File file, int size) throws MemoryRangeException, IOException {
+        if (!file.canRead()) {
+            throw new IOException("Cannot open file " + file);
+        }
+        long length = file.length();
+        if (length > size) {
+            throw new MemoryRangeException("File will not fit in available memory.");
+        }
+
+        String key = file.getCanonicalPath() + "#" + size;
+        Entry entry = byPath.get(key);
+        if (entry != null && entry.length == length && entry.lastModified == file.lastModified()) {
+            return entry.image;
+        }
+
+        byte[] image = new byte[size];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapped.get(image, 0, (int) length);
+        } finally {
+            raf.close();
+        }
+        fileReads++;
+
+        String hash = hash(image);
+        byte[] shared = byHash.get(hash);
+        if (shared == null) {
+            byHash.put(hash, image);
+            shared = image;
+        }
+
+        entry = new Entry();
+        entry.length = length;
+        entry.lastModified = file.lastModified();
+        entry.image = shared;
+        byPath.put(key, entry);
+        return shared;
+    }
+
+    /**
+     * @return The number of distinct images held.
+     */
+    public static synchronized int getImageCount() {
+        return byHash.size();
+    }
+
+    /**
+     * @return The number of times a ROM file has been read.
+     */
+    public static synchronized long getFileReads() {
+        return fileReads;
+    }
+
+    /**
+     * Forget every image. Machines that already use one keep it.
+     */
+    public static synchronized void clear() {
+        byPath.clear();
+        byHash.clear();
+    }
+
+    private static String hash(byte[] image) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] sum = digest.digest(image);
+            StringBuilder sb = new StringBuilder(sum.length * 2 + 8);
+            for (byte b : sum) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.append('#').append(image.length).toString();
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -25,12 +25,15 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.SessionRecorder;
+import com.loomcom.symon.SessionReplayer;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +64,10 @@ public class SdController extends Device {
     private final byte[] writeBuffer = new byte[SECTOR_SIZE];
     private int readPosition = 0;
     private int writePosition = 0;
+
+    // Counters for monitoring
+    private long sectorsRead = 0;
+    private long sectorsWritten = 0;
    
     
     public SdController(int address) throws MemoryRangeException {
@@ -115,8 +122,15 @@ public class SdController extends Device {
     private void prepareRead() {
         this.status = Status.READ;
         this.readPosition = 0;
+        this.sectorsRead++;
         computePosition();
-        
+
+        SessionReplayer replayer = getBus() == null ? null : getBus().getSessionReplayer();
+        if (replayer != null) {
+            replayer.readSdSector(readBuffer);
+            return;
+        }
+
         if(sdImageFile != null) {
             try {
                 FileInputStream fis = new FileInputStream(sdImageFile);
@@ -129,7 +143,12 @@ public class SdController extends Device {
             } catch (IOException ex) {
                 logger.log(Level.WARNING, "could not fill read buffer from SD image file", ex);
             }
-        }        
+        }
+
+        SessionRecorder recorder = getBus() == null ? null : getBus().getSessionRecorder();
+        if (recorder != null) {
+            recorder.sdRead(readBuffer);
+        }
     }
     
     private void prepareWrite() {
@@ -161,7 +180,8 @@ public class SdController extends Device {
         writeBuffer[writePosition++] = (byte) data;
         
         if(writePosition >= SECTOR_SIZE) {
-            if(sdImageFile != null) {
+            // A replayed session must not change the real SD card image.
+            if(sdImageFile != null && getBus().getSessionReplayer() == null) {
                 try {
                     RandomAccessFile raf = new RandomAccessFile(sdImageFile, "rw");
                     raf.skipBytes(this.position);
@@ -172,6 +192,7 @@ public class SdController extends Device {
                 }
             }
             
+            this.sectorsWritten++;
             this.status = Status.IDLE;
         }
         
@@ -204,6 +225,57 @@ public class SdController extends Device {
         }
     }
 
+    /**
+     * @return The number of sectors the guest has read so far.
+     */
+    public long getSectorsRead() {
+        return sectorsRead;
+    }
+
+    /**
+     * @return The number of sectors the guest has written so far.
+     */
+    public long getSectorsWritten() {
+        return sectorsWritten;
+    }
+
+    /**
+     * The snapshot covers the controller registers and sector buffers. The
+     * contents of the SD card image are not part of it.
+     */
+    @Override
+    public int getStateSize() {
+        return 5 + 4 + 2 + 2 + 2 * SECTOR_SIZE;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.put((byte) lba0);
+        out.put((byte) lba1);
+        out.put((byte) lba2);
+        out.put((byte) command);
+        out.put((byte) status.ordinal());
+        out.putInt(position);
+        out.putShort((short) readPosition);
+        out.putShort((short) writePosition);
+        out.put(readBuffer);
+        out.put(writeBuffer);
+    }
+
+    @Override
+    public void restoreState(ByteBuffer in) {
+        lba0 = in.get() & 0xff;
+        lba1 = in.get() & 0xff;
+        lba2 = in.get() & 0xff;
+        command = in.get() & 0xff;
+        status = Status.values()[in.get()];
+        position = in.getInt();
+        readPosition = in.getShort();
+        writePosition = in.getShort();
+        in.get(readBuffer);
+        in.get(writeBuffer);
+    }
+
     @Override
     public String toString() {
         return getName() + "@" + String.format("%04X", this.getMemoryRange().startAddress);
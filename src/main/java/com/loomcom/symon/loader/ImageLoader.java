@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.loader;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads a program image into memory. Subclasses parse one file format
+ * each. The file is read as a stream, never all at once, and the bytes
+ * are gathered into contiguous runs that are written with one block copy
+ * each, so that images of several megabytes load quickly.
+ */
+public abstract class ImageLoader {
+
+    /**
+     * Where the loaded bytes go.
+     */
+    public interface Target {
+        public void writeBlock(int address, byte[] data, int offset, int length) throws MemoryAccessException;
+    }
+
+    /**
+     * What was loaded.
+     */
+    public static class Result {
+        private int entryPoint = -1;
+        private int lowAddress = -1;
+        private int highAddress = -1;
+        private long byteCount;
+        private int segmentCount;
+
+        public boolean hasEntryPoint() {
+            return entryPoint >= 0;
+        }
+
+        /**
+         * @return The entry point given in the image, or -1 if there was none.
+         */
+        public int getEntryPoint() {
+            return entryPoint;
+        }
+
+        /**
+         * @return The lowest address loaded, or -1 if the image was empty.
+         */
+        public int getLowAddress() {
+            return lowAddress;
+        }
+
+        /**
+         * @return The highest address loaded, or -1 if the image was empty.
+         */
+        public int getHighAddress() {
+            return highAddress;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * @return The number of contiguous runs of bytes loaded.
+         */
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+
+        /**
+         * @param defaultAddress The address to return if the image gives no clue.
+         * @return The address to start the program at: the entry point if
+         *         there is one, otherwise the lowest address loaded.
+         */
+        public int getStartAddress(int defaultAddress) {
+            if (entryPoint >= 0) {
+                return entryPoint;
+            }
+            return lowAddress >= 0 ? lowAddress : defaultAddress;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 0x10000;
+
+    private Target target;
+    private Result result;
+    private byte[] chunk;
+    private int chunkAddress;
+    private int chunkLength;
+    private int nextAddress;
+
+    /**
+     * @return The name of the file format, for messages.
+     */
+    public abstract String getFormatName();
+
+    /**
+     * Read the image from the stream, and pass what it contains to
+     * {@link #emit(int, byte[], int, int)} and {@link #setEntryPoint(int)}.
+     */
+    protected abstract void parse(InputStream in) throws IOException, MemoryAccessException;
+
+    /**
+     * Load an image.
+     *
+     * @param in     The stream to read the image from. It is not closed.
+     * @param target Where to write the bytes loaded.
+     * @return What was loaded.
+     */
+    public Result load(InputStream in, Target target) throws IOException, MemoryAccessException {
+        this.target = target;
+        this.result = new Result();
+        this.chunk = new byte[CHUNK_SIZE];
+        this.chunkLength = 0;
+        this.nextAddress = -1;
+        try {
+            parse(in);
+            flush();
+            return result;
+        } finally {
+            this.target = null;
+            this.chunk = null;
+        }
+    }
+
+    /**
+     * Load bytes at an address. Runs of bytes at consecutive addresses are
+     * gathered up and written together.
+     */
+    protected void emit(int address, byte[] data, int offset, int length) throws MemoryAccessException {
+        if (length <= 0) {
+            return;
+        }
+        if (address != nextAddress) {
+            result.segmentCount++;
+        }
+        if (result.lowAddress < 0 || address < result.lowAddress) {
+            result.lowAddress = address;
+        }
+        if (address + length - 1 > result.highAddress) {
+            result.highAddress = address + length - 1;
+        }
+        result.byteCount += length;
+        nextAddress = address + length;
+
+        while (length > 0) {
+            if (chunkLength == chunk.length || (chunkLength > 0 && address != chunkAddress + chunkLength)) {
+                flush();
+            }
+            if (chunkLength == 0) {
+                chunkAddress = address;
+            }
+            int n = Math.min(length, chunk.length - chunkLength);
+            System.arraycopy(data, offset, chunk, chunkLength, n);
+            chunkLength += n;
+            address += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Load the next length bytes of the stream at an address.
+     *
+     * @param length The number of bytes, or -1 to read to the end of the stream.
+     */
+    protected void copy(InputStream in, int address, long length) throws IOException, MemoryAccessException {
+        byte[] buffer = new byte[8192];
+        while (length != 0) {
+            int n = in.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(length, buffer.length));
+            if (n < 0) {
+                if (length < 0) {
+                    return;
+                }
+                throw new EOFException("Unexpected end of " + getFormatName() + " file.");
+            }
+            emit(address, buffer, 0, n);
+            address += n;
+            if (length > 0) {
+                length -= n;
+            }
+        }
+    }
+
+    protected void setEntryPoint(int address) {
+        result.entryPoint = address;
+    }
+
+    private void flush() throws MemoryAccessException {
+        if (chunkLength > 0) {
+            target.writeBlock(chunkAddress, chunk, 0, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Parse two hex digits from a line of text.
+     *
+     * @param line       The line.
+     * @param position   The position of the first digit.
+     * @param lineNumber The line number, for messages.
+     */
+    protected static int hexByte(String line, int position, int lineNumber) throws IOException {
+        if (position + 2 > line.length()) {
+            throw new IOException("Line " + lineNumber + ": record is too short.");
+        }
+        int hi = Character.digit(line.charAt(position), 16);
+        int lo = Character.digit(line.charAt(position + 1), 16);
+        if (hi < 0 || lo < 0) {
+            throw new IOException("Line " + lineNumber + ": bad hex digit at column " + (position + 1) + ".");
+        }
+        return hi << 4 | lo;
+    }
+
+    /**
+     * Write loaded bytes to a bus.
+     */
+    public static Target busTarget(final Bus bus) {
+        return new Target() {
+            public void writeBlock(int address, byte[] data, int offset, int length) throws MemoryAccessException {
+                bus.writeBlock(address, data, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Choose a loader for a file by its extension. A file with no extension
+     * is recognized by its contents: an o65 header, or a first line that is
+     * a whole, valid Intel HEX or S-record record. Anything else, including
+     * every .bin and .rom file, is taken to be a raw binary.
+     *
+     * @param file           The file.
+     * @param defaultAddress The address to load a raw binary at.
+     */
+    public static ImageLoader forFile(File file, int defaultAddress) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".hex") || name.endsWith(".ihx") || name.endsWith(".ihex")) {
+            return new IntelHexLoader();
+        }
+        if (name.endsWith(".srec") || name.endsWith(".s19") || name.endsWith(".s28") ||
+            name.endsWith(".s37") || name.endsWith(".mot")) {
+            return new SRecordLoader();
+        }
+        if (name.endsWith(".prg")) {
+            return new PrgLoader();
+        }
+        if (name.endsWith(".o65")) {
+            return new O65Loader();
+        }
+        if (name.lastIndexOf('.') > 0) {
+            return new BinaryLoader(defaultAddress);
+        }
+
+        // Long enough for the longest record of either text format.
+        byte[] head = new byte[600];
+        int n = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int r;
+            while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) {
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        if (n >= 5 && O65Loader.isMagic(head)) {
+            return new O65Loader();
+        }
+        int lineEnd = 0;
+        while (lineEnd < n && head[lineEnd] != '\n' && head[lineEnd] != '\r') {
+            lineEnd++;
+        }
+        if (lineEnd < n || n < head.length) {
+            String line = new String(head, 0, lineEnd, "ISO-8859-1").trim();
+            if (IntelHexLoader.isRecord(line)) {
+                return new IntelHexLoader();
+            }
+            if (SRecordLoader.isRecord(line)) {
+                return new SRecordLoader();
+            }
+        }
+        return new BinaryLoader(defaultAddress);
+    }
+
+    /**
+     * Load a file in any supported format onto a bus.
+     *
+     * @param file           The file.
+     * @param bus            The bus to load it onto.
+     * @param defaultAddress The address to load a raw binary at.
+     * @return What was loaded.
+     */
+    public static Result load(File file, Bus bus, int defaultAddress) throws IOException, MemoryAccessException {
+        ImageLoader loader = forFile(file, defaultAddress);
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return loader.load(in, busTarget(bus));
+        } finally {
+            in.close();
+        }
+    }
+}
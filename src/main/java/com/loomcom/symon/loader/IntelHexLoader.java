@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.loader;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Loads an Intel HEX file. Extended segment and extended linear address
+ * records are supported, so images may be larger than 64 KB, and a start
+ * address record sets the entry point.
+ */
+public class IntelHexLoader extends ImageLoader {
+
+    private static final int DATA = 0x00;
+    private static final int END_OF_FILE = 0x01;
+    private static final int EXTENDED_SEGMENT_ADDRESS = 0x02;
+    private static final int START_SEGMENT_ADDRESS = 0x03;
+    private static final int EXTENDED_LINEAR_ADDRESS = 0x04;
+    private static final int START_LINEAR_ADDRESS = 0x05;
+
+    public String getFormatName() {
+        return "Intel HEX";
+    }
+
+    protected void parse(InputStream in) throws IOException, MemoryAccessException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        byte[] data = new byte[255];
+        int base = 0;
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if (line.charAt(0) != ':') {
+                throw new IOException("Line " + lineNumber + ": record does not start with ':'.");
+            }
+
+            int count = hexByte(line, 1, lineNumber);
+            int address = hexByte(line, 3, lineNumber) << 8 | hexByte(line, 5, lineNumber);
+            int type = hexByte(line, 7, lineNumber);
+            int sum = count + (address >>> 8) + (address & 0xff) + type;
+            for (int i = 0; i < count; i++) {
+                int b = hexByte(line, 9 + i * 2, lineNumber);
+                data[i] = (byte) b;
+                sum += b;
+            }
+            sum += hexByte(line, 9 + count * 2, lineNumber);
+            if ((sum & 0xff) != 0) {
+                throw new IOException("Line " + lineNumber + ": bad checksum.");
+            }
+
+            switch (type) {
+                case DATA:
+                    emit(base + address, data, 0, count);
+                    break;
+                case END_OF_FILE:
+                    return;
+                case EXTENDED_SEGMENT_ADDRESS:
+                    base = word(data, 0) << 4;
+                    break;
+                case START_SEGMENT_ADDRESS:
+                    setEntryPoint((word(data, 0) << 4) + word(data, 2));
+                    break;
+                case EXTENDED_LINEAR_ADDRESS:
+                    base = word(data, 0) << 16;
+                    break;
+                case START_LINEAR_ADDRESS:
+                    setEntryPoint(word(data, 0) << 16 | word(data, 2));
+                    break;
+                default:
+                    throw new IOException("Line " + lineNumber + ": unknown record type " + type + ".");
+            }
+        }
+    }
+
+    /**
+     * @return true if a line of text is a whole, well formed record with a
+     *         correct checksum, for telling an Intel HEX file by its contents.
+     */
+    static boolean isRecord(String line) {
+        if (line.length() < 11 || line.charAt(0) != ':' || (line.length() & 1) == 0) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 1; i < line.length(); i += 2) {
+            int hi = Character.digit(line.charAt(i), 16);
+            int lo = Character.digit(line.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            sum += hi << 4 | lo;
+        }
+        int count = Character.digit(line.charAt(1), 16) << 4 | Character.digit(line.charAt(2), 16);
+        return line.length() == 11 + count * 2 && (sum & 0xff) == 0;
+    }
+
+    private static int word(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+    }
+}
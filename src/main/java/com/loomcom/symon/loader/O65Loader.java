@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.loader;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads an executable in the o65 relocatable format of the xa assembler.
+ * The text and data segments are loaded at the addresses they were
+ * assembled for, so the relocation tables that follow them are not needed,
+ * and the entry point is the start of the text segment. Object files,
+ * which still need linking, are rejected.
+ */
+public class O65Loader extends ImageLoader {
+
+    private static final byte[] MAGIC = {0x01, 0x00, 'o', '6', '5'};
+
+    private static final int MODE_SIZE_32 = 0x2000;
+    private static final int MODE_OBJECT = 0x1000;
+
+    static boolean isMagic(byte[] bytes) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getFormatName() {
+        return "o65";
+    }
+
+    protected void parse(InputStream in) throws IOException, MemoryAccessException {
+        byte[] magic = new byte[MAGIC.length];
+        for (int i = 0; i < magic.length; i++) {
+            magic[i] = (byte) readByte(in);
+        }
+        if (!isMagic(magic)) {
+            throw new IOException("Not an o65 file.");
+        }
+        readByte(in);   // version
+        int mode = readWord(in, false);
+        if ((mode & MODE_OBJECT) != 0) {
+            throw new IOException("o65 object files must be linked before loading.");
+        }
+        boolean size32 = (mode & MODE_SIZE_32) != 0;
+
+        int textBase = readWord(in, size32);
+        int textLength = readWord(in, size32);
+        int dataBase = readWord(in, size32);
+        int dataLength = readWord(in, size32);
+        readWord(in, size32);   // bss base
+        readWord(in, size32);   // bss length
+        readWord(in, size32);   // zero page base
+        readWord(in, size32);   // zero page length
+        readWord(in, size32);   // stack size
+
+        // Header options, each a length byte that counts itself, ended by zero.
+        int optionLength;
+        while ((optionLength = readByte(in)) != 0) {
+            for (int i = 1; i < optionLength; i++) {
+                readByte(in);
+            }
+        }
+
+        copy(in, textBase, textLength);
+        copy(in, dataBase, dataLength);
+        setEntryPoint(textBase);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of o65 file.");
+        }
+        return b;
+    }
+
+    private static int readWord(InputStream in, boolean size32) throws IOException {
+        int word = readByte(in) | readByte(in) << 8;
+        if (size32) {
+            word |= readByte(in) << 16 | readByte(in) << 24;
+        }
+        return word;
+    }
+}
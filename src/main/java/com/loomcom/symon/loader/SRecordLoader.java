@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.loader;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Loads a Motorola S-record file, with 16, 24 or 32 bit addresses. The
+ * termination record sets the entry point, except that an address of 0,
+ * which tools write when there is no entry point, is ignored unless the
+ * image loads something at 0.
+ */
+public class SRecordLoader extends ImageLoader {
+
+    public String getFormatName() {
+        return "S-record";
+    }
+
+    protected void parse(InputStream in) throws IOException, MemoryAccessException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        byte[] data = new byte[255];
+        int lineNumber = 0;
+        boolean loadsAtZero = false;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if (line.length() < 2 || line.charAt(0) != 'S') {
+                throw new IOException("Line " + lineNumber + ": record does not start with 'S'.");
+            }
+
+            int type = Character.digit(line.charAt(1), 10);
+            int addressSize;
+            switch (type) {
+                case 0:
+                case 1:
+                case 5:
+                case 9:
+                    addressSize = 2;
+                    break;
+                case 2:
+                case 6:
+                case 8:
+                    addressSize = 3;
+                    break;
+                case 3:
+                case 7:
+                    addressSize = 4;
+                    break;
+                default:
+                    throw new IOException("Line " + lineNumber + ": unknown record type.");
+            }
+
+            int count = hexByte(line, 2, lineNumber);
+            if (count < addressSize + 1) {
+                throw new IOException("Line " + lineNumber + ": record is too short.");
+            }
+            int sum = count;
+            int address = 0;
+            for (int i = 0; i < addressSize; i++) {
+                int b = hexByte(line, 4 + i * 2, lineNumber);
+                address = address << 8 | b;
+                sum += b;
+            }
+            int dataLength = count - addressSize - 1;
+            int dataStart = 4 + addressSize * 2;
+            for (int i = 0; i < dataLength; i++) {
+                int b = hexByte(line, dataStart + i * 2, lineNumber);
+                data[i] = (byte) b;
+                sum += b;
+            }
+            if ((~sum & 0xff) != hexByte(line, dataStart + dataLength * 2, lineNumber)) {
+                throw new IOException("Line " + lineNumber + ": bad checksum.");
+            }
+
+            switch (type) {
+                case 1:
+                case 2:
+                case 3:
+                    emit(address, data, 0, dataLength);
+                    loadsAtZero |= address == 0 && dataLength > 0;
+                    break;
+                case 7:
+                case 8:
+                case 9:
+                    if (address != 0 || loadsAtZero) {
+                        setEntryPoint(address);
+                    }
+                    return;
+                default:
+                    // Header and record counts carry nothing to load.
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if a line of text is a whole, well formed record with a
+     *         correct checksum, for telling an S-record file by its contents.
+     */
+    static boolean isRecord(String line) {
+        if (line.length() < 10 || line.charAt(0) != 'S' || (line.length() & 1) != 0) {
+            return false;
+        }
+        int type = Character.digit(line.charAt(1), 10);
+        if (type < 0 || type == 4) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 2; i < line.length(); i += 2) {
+            int hi = Character.digit(line.charAt(i), 16);
+            int lo = Character.digit(line.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            sum += hi << 4 | lo;
+        }
+        int count = Character.digit(line.charAt(2), 16) << 4 | Character.digit(line.charAt(3), 16);
+        return line.length() == 4 + count * 2 && (sum & 0xff) == 0xff;
+    }
+}
@@ -49,8 +49,9 @@ public class MulticompMachine implements Machine {
     private static final int MEMORY_BASE = 0x0000;
     private static final int MEMORY_SIZE = 0xE000;
 
-    // ACIA at $FFD0-$FFD1
+    // ACIA at $FFD0-$FFD1, interrupting on IRQ source 1
     private static final int ACIA_BASE = 0xFFD0;
+    private static final int ACIA_IRQ = 1;
 
     // SD controller at $FFD8-$FFDF
     private static final int SD_BASE = 0xFFD8;
@@ -73,7 +74,7 @@ public class MulticompMachine implements Machine {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu();
         this.ram = new Memory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false);
-        this.acia = new Acia6850(ACIA_BASE);
+        this.acia = new Acia6850(ACIA_BASE, ACIA_IRQ);
         this.acia.setBaudRate(0);
         this.sdController = new SdController(SD_BASE);
 
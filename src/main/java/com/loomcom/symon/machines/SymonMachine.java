@@ -48,12 +48,24 @@ public class SymonMachine implements Machine {
 
     private static final int PIA_BASE = 0x8000;
 
-    // ACIA at $8800-$8803
+    // ACIA at $8800-$8803, interrupting on IRQ source 2
     private static final int ACIA_BASE = 0x8800;
+    private static final int ACIA_IRQ = 2;
 
     // CRTC at $9000-$9001
     private static final int CRTC_BASE = 0x9000;
 
+    // Host services at $A000-$A00F, if a host directory is given
+    private static final int HOST_SERVICES_BASE = 0xA000;
+
+    // Blitter at $A010-$A017, interrupting on IRQ source 1, if expansion
+    // devices are requested
+    private static final int BLITTER_BASE = 0xA010;
+    private static final int BLITTER_IRQ = 1;
+
+    // Interrupt controller at $A020-$A02F, if expansion devices are requested
+    private static final int INTERRUPT_CONTROLLER_BASE = 0xA020;
+
     // 16KB ROM at $C000-$FFFF
     private static final int ROM_BASE = 0xC000;
     private static final int ROM_SIZE = 0x4000;
@@ -70,11 +82,30 @@ public class SymonMachine implements Machine {
 
 
     public SymonMachine() throws Exception {
+        this(null);
+    }
+
+    /**
+     * @param hostDirectory The directory to give guest programs access to
+     *                      through host services, or null to leave them
+     *                      out of the memory map.
+     */
+    public SymonMachine(File hostDirectory) throws Exception {
+        this(hostDirectory, false);
+    }
+
+    /**
+     * @param hostDirectory The directory to give guest programs access to
+     *                      through host services, or null to leave them
+     *                      out of the memory map.
+     * @param expansion     Whether to map the expansion devices as well.
+     */
+    public SymonMachine(File hostDirectory, boolean expansion) throws Exception {
         this.bus = new Bus(BUS_BOTTOM, BUS_TOP);
         this.cpu = new Cpu();
         this.ram = new Memory(MEMORY_BASE, MEMORY_BASE + MEMORY_SIZE - 1, false);
         this.pia = new Via6522(PIA_BASE);
-        this.acia = new Acia6551(ACIA_BASE);
+        this.acia = new Acia6551(ACIA_BASE, ACIA_IRQ);
         this.crtc = new Crtc(CRTC_BASE, ram);
 
         bus.addCpu(cpu);
@@ -82,6 +113,13 @@ public class SymonMachine implements Machine {
         bus.addDevice(pia);
         bus.addDevice(acia);
         bus.addDevice(crtc);
+        if (hostDirectory != null) {
+            bus.addDevice(new HostServices(HOST_SERVICES_BASE, hostDirectory));
+        }
+        if (expansion) {
+            bus.addDevice(new Blitter(BLITTER_BASE, BLITTER_IRQ));
+            bus.addDevice(new InterruptController(INTERRUPT_CONTROLLER_BASE, cpu.getInterruptLines()));
+        }
         
         // TODO: Make this configurable, of course.
         File romImage = new File("rom.bin");
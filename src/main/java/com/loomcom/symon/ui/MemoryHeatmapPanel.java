@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.MemoryHeatmap;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws a whole-address-space view of a MemoryHeatmap, one pixel per address.
+ * Each row of pixels is one page of memory, so page $00 is the top row and
+ * page $FF is the bottom row.
+ * <p/>
+ * Writes are drawn in red, instruction fetches in green, and reads in blue.
+ */
+public class MemoryHeatmapPanel extends JPanel {
+
+    private static final int PAGE_SIZE = 256;
+
+    private final MemoryHeatmap heatmap;
+    private final BufferedImage image;
+    private final int[] pixels;
+
+    public MemoryHeatmapPanel(MemoryHeatmap heatmap) {
+        this.heatmap = heatmap;
+        int rows = (heatmap.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+        this.image = new BufferedImage(PAGE_SIZE, rows, BufferedImage.TYPE_INT_RGB);
+        this.pixels = new int[PAGE_SIZE * rows];
+        setPreferredSize(new Dimension(PAGE_SIZE, rows));
+        setToolTipText("");
+    }
+
+    /**
+     * Returns the page number shown at the given y coordinate.
+     */
+    public int pageAt(int y) {
+        return Math.max(0, Math.min(image.getHeight() - 1, y));
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int address = pageAt(e.getY()) * PAGE_SIZE + Math.max(0, Math.min(PAGE_SIZE - 1, e.getX()));
+        if (address >= heatmap.size()) {
+            return null;
+        }
+        return String.format("$%04X  R:%d W:%d X:%d", address, heatmap.getReads(address),
+                             heatmap.getWrites(address), heatmap.getExecutes(address));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        for (int i = 0; i < heatmap.size(); i++) {
+            pixels[i] = heatColor(heatmap.getReads(i), heatmap.getWrites(i), heatmap.getExecutes(i));
+        }
+        image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        g.drawImage(image, 0, 0, null);
+    }
+
+    /**
+     * Returns the RGB color for an address with the given access counts.
+     * The channels are log-scaled, so that a handful of accesses is still
+     * visible next to a tight loop touching an address a million times a second.
+     */
+    static int heatColor(int reads, int writes, int executes) {
+        return (intensity(writes) << 16) | (intensity(executes) << 8) | intensity(reads);
+    }
+
+    /**
+     * Returns the background color for an address with the given access counts,
+     * or null if the address has not been touched.
+     */
+    static Color heatBackground(int reads, int writes, int executes) {
+        if (reads == 0 && writes == 0 && executes == 0) {
+            return null;
+        }
+        // Blend halfway towards white so that the table text remains readable.
+        int rgb = heatColor(reads, writes, executes);
+        return new Color((255 + ((rgb >> 16) & 0xff)) / 2,
+                         (255 + ((rgb >> 8) & 0xff)) / 2,
+                         (255 + (rgb & 0xff)) / 2);
+    }
+
+    private static int intensity(int count) {
+        if (count == 0) {
+            return 0;
+        }
+        // 1 access gives a dim but visible 64, 2^24 accesses saturates.
+        return Math.min(255, 56 + (32 - Integer.numberOfLeadingZeros(count)) * 8);
+    }
+}
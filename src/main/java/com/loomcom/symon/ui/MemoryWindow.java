@@ -24,6 +24,7 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.Bus;
+import com.loomcom.symon.MemoryHeatmap;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.util.HexUtil;
 
@@ -36,6 +37,8 @@ import javax.swing.text.JTextComponent;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.util.EventObject;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -51,6 +54,14 @@ public class MemoryWindow extends JFrame implements ActionListener {
     private JTextField pageNumberTextField;
     private JButton previousPageButton;
     private JButton nextPageButton;
+    private JCheckBox heatmapCheckBox;
+
+    private Bus bus;
+
+    // The access heatmap, and the whole-memory view of it. Null while the heatmap is off.
+    private MemoryHeatmap heatmap;
+    private MemoryHeatmapPanel heatmapPanel;
+    private Timer heatmapTimer;
 
     private static final Dimension MINIMUM_SIZE = new Dimension(320, 600);
 
@@ -66,6 +77,9 @@ public class MemoryWindow extends JFrame implements ActionListener {
     private static final int ASCII_COL_START = 9;
     private static final int ASCII_COL_END = 16;
 
+    // How often the heatmap is decayed and repainted, in milliseconds
+    private static final int HEATMAP_DECAY_INTERVAL = 250;
+
     /**
      * Initialize a new MemoryWindow frame with the specified Bus.
      * The MemoryWindow frame will not be visible.
@@ -73,6 +87,7 @@ public class MemoryWindow extends JFrame implements ActionListener {
      * @param bus The Bus the memory window will query for data.
      */
     public MemoryWindow(Bus bus) {
+        this.bus = bus;
         this.memoryTableModel = new MemoryTableModel(bus);
         createUi();
     }
@@ -150,6 +165,20 @@ public class MemoryWindow extends JFrame implements ActionListener {
         nextPageButton.addActionListener(this);
         previousPageButton.addActionListener(this);
 
+        heatmapCheckBox = new JCheckBox("Heatmap");
+        heatmapCheckBox.setToolTipText("Color memory by reads (blue), writes (red) and instruction fetches (green)");
+        heatmapCheckBox.addActionListener(this);
+
+        heatmapTimer = new Timer(HEATMAP_DECAY_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (heatmap != null) {
+                    heatmap.decay();
+                    heatmapPanel.repaint();
+                    memoryTable.repaint();
+                }
+            }
+        });
+
         updateControls();
 
         JPanel controlPanel = new JPanel();
@@ -161,6 +190,7 @@ public class MemoryWindow extends JFrame implements ActionListener {
         controlPanel.add(pageNumberLabel);
         controlPanel.add(pageNumberTextField);
         controlPanel.add(nextPageButton);
+        controlPanel.add(heatmapCheckBox);
 
         JScrollPane scrollPane = new JScrollPane(memoryTable);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
@@ -213,9 +243,56 @@ public class MemoryWindow extends JFrame implements ActionListener {
                         pageNumberInput);
             }
             updateControls();
+        } else if (e.getSource() == heatmapCheckBox) {
+            setHeatmapEnabled(heatmapCheckBox.isSelected());
         }
     }
 
+    /**
+     * Turn the memory access heatmap on or off. While it is on, the Bus counts
+     * every access, the table cells are tinted by how often they are touched,
+     * and a map of the whole address space is shown next to the table.
+     *
+     * @param enabled True to start counting accesses, false to stop.
+     */
+    public void setHeatmapEnabled(boolean enabled) {
+        if (enabled == (heatmap != null)) {
+            return;
+        }
+
+        if (enabled) {
+            heatmap = new MemoryHeatmap(bus.endAddress() - bus.startAddress() + 1);
+            heatmapPanel = new MemoryHeatmapPanel(heatmap);
+            heatmapPanel.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    // Jump to the clicked page
+                    setPageNumber(heatmapPanel.pageAt(e.getY()) & 0xff);
+                    updateControls();
+                    updateState();
+                }
+            });
+            getContentPane().add(heatmapPanel, BorderLayout.EAST);
+            bus.setHeatmap(heatmap);
+            heatmapTimer.start();
+        } else {
+            heatmapTimer.stop();
+            bus.setHeatmap(null);
+            getContentPane().remove(heatmapPanel);
+            heatmap = null;
+            heatmapPanel = null;
+        }
+
+        heatmapCheckBox.setSelected(enabled);
+        pack();
+    }
+
+    @Override
+    public void dispose() {
+        setHeatmapEnabled(false);
+        super.dispose();
+    }
+
     /**
      * Refresh the view of memory
      */
@@ -260,6 +337,15 @@ public class MemoryWindow extends JFrame implements ActionListener {
             if (isSelected) {
                 cell.setBackground(Color.LIGHT_GRAY);
                 cell.setForeground(Color.BLACK);
+            } else {
+                Color heat = null;
+                if (heatmap != null && col > 0) {
+                    int offset = memoryTableModel.heatmapOffset(row, col);
+                    heat = MemoryHeatmapPanel.heatBackground(heatmap.getReads(offset),
+                                                             heatmap.getWrites(offset),
+                                                             heatmap.getExecutes(offset));
+                }
+                cell.setBackground(heat != null ? heat : table.getBackground());
             }
 
             return cell;
@@ -328,10 +414,10 @@ public class MemoryWindow extends JFrame implements ActionListener {
                     return HexUtil.wordToHex(fullAddress(row, 1));
                 } else if (column < 9) {
                     // Display hex value of the data
-                    return HexUtil.byteToHex(bus.read(fullAddress(row, column)));
+                    return HexUtil.byteToHex(bus.peek(fullAddress(row, column)));
                 } else {
                     // Display the ASCII equivalent (if printable)
-                    return HexUtil.byteToAscii(bus.read(fullAddress(row, column - 8)));
+                    return HexUtil.byteToAscii(bus.peek(fullAddress(row, column - 8)));
                 }
             } catch (MemoryAccessException ex) {
                 return "??";
@@ -357,6 +443,14 @@ public class MemoryWindow extends JFrame implements ActionListener {
             }
         }
 
+        /**
+         * Returns the heatmap offset of the address shown in a hex or ASCII cell.
+         */
+        public int heatmapOffset(int row, int column) {
+            int dataColumn = column < ASCII_COL_START ? column : column - 8;
+            return fullAddress(row, dataColumn) - bus.startAddress();
+        }
+
         private int fullAddress(int row, int column) {
             int pageAddress = ((row * 8) + (column - 1)) & 0xff;
             return (pageNumber << 8) | pageAddress;
@@ -33,6 +33,7 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -55,7 +56,9 @@ import static java.lang.System.*;
  * It may be convenient to think of this as the View (in the MVC
  * pattern sense) to the Crtc's Model and Controller. Whenever the CRTC
  * updates state in a way that may require the view to update, it calls
- * the <tt>deviceStateChange</tt> callback on this Window.
+ * the <tt>deviceStateChange</tt> callback on this Window. The call is made
+ * on the Swing event thread, once for any number of changes made since
+ * the last one, so a program reprogramming the CRTC does not wait on Swing.
  */
 public class VideoWindow extends JFrame implements DeviceChangeListener {
 
@@ -64,6 +67,12 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
     private static final int CHAR_WIDTH = 8;
     private static final int CHAR_HEIGHT = 8;
 
+    private static final Executor SWING_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            SwingUtilities.invokeLater(command);
+        }
+    };
+
     private final int scaleX, scaleY;
     private final boolean shouldScale;
 
@@ -134,8 +143,6 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
     }
 
     public VideoWindow(Crtc crtc, int scaleX, int scaleY) throws IOException {
-        crtc.registerListener(this);
-
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
         this.crtc = crtc;
         this.charRom = loadCharRom("/ascii.rom");
@@ -162,10 +169,11 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
         createAndShowUi();
 
+        crtc.registerListener(this, SWING_EXECUTOR);
     }
 
     /**
-     * Called by the CRTC on state change.
+     * Called on the Swing event thread after the CRTC changes state.
      */
     public void deviceStateChanged() {
 
@@ -24,6 +24,44 @@ public class AciaTest {
         verify(mockBus, atLeastOnce()).assertIrq();
     }
 
+    @Test
+    public void shouldHoldOwnIrqSourceUntilStatusRead() throws Exception {
+        Bus mockBus = mock(Bus.class);
+
+        Acia acia = new Acia6551(0x000, 2);
+        acia.setBus(mockBus);
+
+        // Disable TX IRQ, Enable RX IRQ
+        acia.write(2, 0x00);
+
+        acia.rxWrite('a');
+        acia.rxWrite('b');
+
+        verify(mockBus, times(1)).assertIrq(2);
+        verify(mockBus, never()).assertIrq();
+        verify(mockBus, never()).clearIrq(2);
+
+        acia.read(1);
+
+        verify(mockBus, times(1)).clearIrq(2);
+    }
+
+    @Test
+    public void shouldClearOwnIrqSourceOnDataRead() throws Exception {
+        Bus mockBus = mock(Bus.class);
+
+        Acia acia = new Acia6551(0x000, 2);
+        acia.setBus(mockBus);
+
+        // Disable TX IRQ, Enable RX IRQ
+        acia.write(2, 0x00);
+
+        acia.rxWrite('a');
+        assertEquals('a', acia.read(0));
+
+        verify(mockBus, times(1)).clearIrq(2);
+    }
+
     @Test
     public void shouldNotTriggerInterruptOnRxFullIfRxIrqNotEnabled() throws Exception {
         Bus mockBus = mock(Bus.class);
@@ -0,0 +1,190 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.BankedMemory;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import junit.framework.TestCase;
+
+public class BankedMemoryTest extends TestCase {
+
+    private static final int STORE_SIZE = 1024 * 1024;
+
+    private Bus bus;
+    private Cpu cpu;
+    private BankedMemory banked;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        banked = new BankedMemory(0x8000, 0xbfff, 0x1000, STORE_SIZE);
+        bus.addDevice(banked);
+        bus.addDevice(banked.createControlRegisters(0xc000));
+        cpu.setProgramCounter(0x0200);
+    }
+
+    public void testWindowsStartOutAsPlainRam() throws Exception {
+        assertEquals(4, banked.getWindowCount());
+        assertEquals(256, banked.getBankCount());
+        for (int window = 0; window < 4; window++) {
+            assertEquals(window, banked.getSelectedBank(window));
+        }
+        bus.write(0x9234, 0x5a);
+        assertEquals(0x5a, banked.getStore()[0x1234]);
+    }
+
+    public void testSwitchingBanks() throws Exception {
+        bus.write(0x8010, 0x11);
+        banked.selectBank(0, 200);
+        assertEquals(0x00, bus.read(0x8010));
+        bus.write(0x8010, 0x22);
+        assertEquals(0x22, banked.getStore()[200 * 0x1000 + 0x10]);
+
+        // The same bank can be shown in two windows at once.
+        banked.selectBank(3, 200);
+        assertEquals(0x22, bus.read(0xb010));
+
+        banked.selectBank(0, 0);
+        assertEquals(0x11, bus.read(0x8010));
+    }
+
+    public void testProgramSwitchesBanksThroughRegisters() throws Exception {
+        bus.loadProgram(0xa9, 0x80,         // LDA #$80
+                        0x8d, 0x02, 0xc0,   // STA $C002   (window 1, bank low byte)
+                        0xa9, 0x99,         // LDA #$99
+                        0x8d, 0x00, 0x90);  // STA $9000
+        cpu.step(4);
+        assertEquals(0x80, banked.getSelectedBank(1));
+        assertEquals(0x80, bus.read(0xc002));
+        assertEquals(0x00, bus.read(0xc003));
+        assertEquals((byte) 0x99, banked.getStore()[0x80 * 0x1000]);
+    }
+
+    public void testBankNumbersWrap() throws Exception {
+        bus.write(0xc001, 0x01);            // window 0, bank $100
+        assertEquals(0, banked.getSelectedBank(0));
+        banked.selectBank(2, 257);
+        assertEquals(1, banked.getSelectedBank(2));
+    }
+
+    public void testSnapshotIncludesBanks() throws Exception {
+        banked.selectBank(1, 77);
+        bus.write(0x9000, 0x42);
+        MachineSnapshot snapshot = MachineSnapshot.take(bus);
+
+        banked.selectBank(1, 1);
+        bus.write(0x9000, 0x00);
+        snapshot.restore(bus);
+
+        assertEquals(77, banked.getSelectedBank(1));
+        assertEquals(0x42, bus.read(0x9000));
+    }
+
+    public void testBadGeometryIsRejected() throws Exception {
+        try {
+            new BankedMemory(0x8000, 0xbfff, 0x1800, STORE_SIZE);
+            fail("Window size must be a power of two");
+        } catch (MemoryRangeException expected) {
+        }
+        try {
+            new BankedMemory(0x8000, 0xbfff, 0x1000, 0x2000);
+            fail("Store must be at least as large as the windows");
+        } catch (MemoryRangeException expected) {
+        }
+    }
+
+    public void testAddingAndRemovingDevicesOnlyRemapsTheirRange() throws Exception {
+        Memory overlay = new Memory(0x8800, 0x88ff);
+        bus.addDevice(overlay);
+        bus.write(0x8800, 0x33);
+        assertEquals(0x33, bus.read(0x8800));
+        assertEquals(0x00, banked.getStore()[0x0800]);
+
+        bus.removeDevice(overlay);
+        bus.write(0x8800, 0x44);
+        assertEquals(0x44, banked.getStore()[0x0800]);
+        assertEquals(0x33, overlay.read(0));
+
+        // The rest of the map is untouched.
+        assertFalse(bus.isComplete());
+        bus.write(0x1234, 0x55);
+        assertEquals(0x55, bus.read(0x1234));
+        assertEquals(0x00, bus.read(0xc000));
+    }
+
+    public void testBlockTransfersFollowTheSelectedBanks() throws Exception {
+        banked.selectBank(1, 7);
+        byte[] data = new byte[0x20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+        // Straddles the boundary between windows 0 and 1.
+        bus.writeBlock(0x8ff0, data, 0, data.length);
+        assertEquals(0x01, banked.getStore()[0x0ff0]);
+        assertEquals(0x11, banked.getStore()[7 * 0x1000]);
+
+        byte[] copy = new byte[data.length];
+        bus.readBlock(0x8ff0, copy, 0, copy.length);
+        assertTrue(java.util.Arrays.equals(data, copy));
+    }
+
+    public void testCheckpointOnlyCopiesDirtyBanks() throws Exception {
+        bus.write(0x8010, 0x11);
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+
+        banked.selectBank(0, 200);
+        bus.write(0x8010, 0x22);
+        assertTrue(banked.isBankDirty(200));
+        assertFalse(banked.isBankDirty(0));
+        banked.getStore()[0x0010] = 0x33;   // a direct change, not reported
+
+        MachineCheckpoint.Delta delta = checkpoint.takeDelta();
+        assertTrue(delta.getSize() < 2 * banked.getWindowSize());
+
+        checkpoint.reset();
+        assertEquals(0, banked.getSelectedBank(0));
+        assertEquals(0x00, banked.getStore()[200 * 0x1000 + 0x10]);
+        assertEquals(0x33, banked.getStore()[0x0010]);
+
+        checkpoint.restore(delta);
+        assertEquals(200, banked.getSelectedBank(0));
+        assertEquals(0x22, bus.read(0x8010));
+        assertTrue(banked.isBankDirty(200));
+    }
+
+    public void testCheckpointCopiesAllBanksIfTrackingIsLost() throws Exception {
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+        bus.write(0x9000, 0x44);
+        banked.clearDirtyBanks();
+        checkpoint.reset();
+        assertEquals(0x00, bus.read(0x9000));
+    }
+
+    public void testStepBackUndoesBankedWritesAndSwitches() throws Exception {
+        bus.write(0x9000, 0x55);
+        bus.loadProgram(0xa9, 0x80,         // LDA #$80
+                        0x8d, 0x02, 0xc0,   // STA $C002   (window 1, bank low byte)
+                        0xa9, 0x99,         // LDA #$99
+                        0x8d, 0x00, 0x90,   // STA $9000
+                        0xa9, 0x01,         // LDA #$01
+                        0x8d, 0x02, 0xc0,   // STA $C002
+                        0x8d, 0x00, 0x90);  // STA $9000
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(7);
+        assertEquals(0x01, bus.read(0x9000));
+        assertEquals((byte) 0x99, banked.getStore()[0x80 * 0x1000]);
+
+        assertEquals(3, journal.stepBack(3));
+        assertEquals(0x80, banked.getSelectedBank(1));
+        assertEquals(0x99, bus.read(0x9000));
+        assertEquals(0x55, banked.getStore()[0x1000]);
+
+        assertEquals(4, journal.stepBack(4));
+        assertEquals(1, banked.getSelectedBank(1));
+        assertEquals(0x55, bus.read(0x9000));
+        assertEquals(0x00, banked.getStore()[0x80 * 0x1000]);
+        assertEquals(0x0200, cpu.getProgramCounter());
+        journal.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.loomcom.symon;
+
+import junit.framework.TestCase;
+
+/**
+ * Exhaustively checks the decimal mode lookup tables against the
+ * branching implementations that Cpu used before the tables existed.
+ */
+public class BcdTablesTest extends TestCase {
+
+    // Reference results: bits 0-7 hold the result, bits 8-15 the status flags.
+
+    private static int referenceAdc(int acc, int operand, boolean carry) {
+        int l, h, result;
+        l = (acc & 0x0f) + (operand & 0x0f) + (carry ? 1 : 0);
+        if ((l & 0xff) > 9) l += 6;
+        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+        if ((h & 0xff) > 9) h += 6;
+        result = (l & 0x0f) | (h << 4);
+        result &= 0xff;
+        return result | flags(h > 15, result == 0);
+    }
+
+    private static int referenceSbc(int acc, int operand, boolean carry) {
+        int l, h, result;
+        l = (acc & 0x0f) - (operand & 0x0f) - (carry ? 0 : 1);
+        if ((l & 0x10) != 0) l -= 6;
+        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+        if ((h & 0x10) != 0) h -= 6;
+        result = (l & 0x0f) | (h << 4);
+        return (result & 0xff) | flags((h & 0xff) < 15, result == 0);
+    }
+
+    private static int flags(boolean carry, boolean zero) {
+        return ((carry ? Cpu.P_CARRY : 0) | (zero ? Cpu.P_ZERO : 0)) << 8;
+    }
+
+    public void testNmosTablesMatchReference() {
+        BcdTables tables = BcdTables.forBehavior(InstructionTable.CpuBehavior.NMOS_WITH_INDIRECT_JMP_BUG);
+        for (int c = 0; c < 2; c++) {
+            for (int acc = 0; acc < 0x100; acc++) {
+                for (int operand = 0; operand < 0x100; operand++) {
+                    boolean carry = c != 0;
+                    assertEquals(referenceAdc(acc, operand, carry), tables.adc(acc, operand, carry));
+                    assertEquals(referenceSbc(acc, operand, carry), tables.sbc(acc, operand, carry));
+                }
+            }
+        }
+    }
+
+    public void testCmosTablesSetNegativeAndZeroFromResult() {
+        BcdTables tables = BcdTables.forBehavior(InstructionTable.CpuBehavior.CMOS);
+        for (int c = 0; c < 2; c++) {
+            for (int acc = 0; acc < 0x100; acc++) {
+                for (int operand = 0; operand < 0x100; operand++) {
+                    boolean carry = c != 0;
+                    assertEquals(cmos(referenceAdc(acc, operand, carry)), tables.adc(acc, operand, carry));
+                    assertEquals(cmos(referenceSbc(acc, operand, carry)), tables.sbc(acc, operand, carry));
+                }
+            }
+        }
+    }
+
+    // The 65C02 sets N and Z from the result byte.
+    private static int cmos(int reference) {
+        int flags = (reference >> 8) & ~(Cpu.P_NEGATIVE | Cpu.P_ZERO);
+        if ((reference & 0x80) != 0) {
+            flags |= Cpu.P_NEGATIVE;
+        }
+        if ((reference & 0xff) == 0) {
+            flags |= Cpu.P_ZERO;
+        }
+        return (flags << 8) | (reference & 0xff);
+    }
+
+    public void testAllNmosBehaviorsShareTables() {
+        assertSame(BcdTables.forBehavior(InstructionTable.CpuBehavior.NMOS_WITH_ROR_BUG),
+                   BcdTables.forBehavior(InstructionTable.CpuBehavior.NMOS_WITHOUT_INDIRECT_JMP_BUG));
+    }
+
+    public void testDecodesEntries() {
+        BcdTables tables = BcdTables.forBehavior(InstructionTable.CpuBehavior.NMOS_WITH_INDIRECT_JMP_BUG);
+        // 99 + 01 = 00, carry set
+        int entry = tables.adc(0x99, 0x01, false);
+        assertEquals(0x00, BcdTables.result(entry));
+        assertEquals(Cpu.P_CARRY | Cpu.P_ZERO, BcdTables.flags(entry));
+        // 10 - 01 = 09, no borrow
+        entry = tables.sbc(0x10, 0x01, true);
+        assertEquals(0x09, BcdTables.result(entry));
+        assertEquals(Cpu.P_CARRY, BcdTables.flags(entry));
+    }
+}
@@ -0,0 +1,176 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Blitter;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public class BlitterTest extends TestCase {
+
+    private static final int BASE = 0xa010;
+
+    private Bus bus;
+    private Cpu cpu;
+    private Blitter blitter;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        blitter = new Blitter(BASE, 1);
+        bus.addDevice(blitter);
+        for (int i = 0; i < 0x100; i++) {
+            bus.write(0x1000 + i, i);
+        }
+    }
+
+    private void setWord(int register, int value) throws Exception {
+        bus.write(BASE + register, value & 0xff);
+        bus.write(BASE + register + 1, value >>> 8);
+    }
+
+    private int run(int source, int destination, int length, int control) throws Exception {
+        setWord(Blitter.SOURCE, source);
+        setWord(Blitter.DESTINATION, destination);
+        setWord(Blitter.LENGTH, length);
+        bus.write(BASE + Blitter.CONTROL, control);
+        return bus.read(BASE + Blitter.CONTROL);
+    }
+
+    public void testCopy() throws Exception {
+        assertEquals(Blitter.STATUS_DONE, run(0x1000, 0x2000, 0x100, Blitter.COPY_UP));
+        for (int i = 0; i < 0x100; i++) {
+            assertEquals(i, bus.read(0x2000 + i));
+        }
+        assertEquals(0, bus.read(BASE + Blitter.CONTROL));
+        assertEquals(0x100, blitter.getBytesMoved());
+    }
+
+    public void testOverlappingCopiesFollowTheirDirection() throws Exception {
+        // Scrolling down by one line: a move to lower addresses.
+        run(0x1010, 0x1000, 0xf0, Blitter.COPY_UP);
+        assertEquals(0x10, bus.read(0x1000));
+        assertEquals(0xff, bus.read(0x10ef));
+
+        // Moving up with COPY_DOWN keeps the source intact as it goes.
+        run(0x1000, 0x1001, 0x10, Blitter.COPY_DOWN);
+        assertEquals(0x10, bus.read(0x1001));
+        assertEquals(0x1f, bus.read(0x1010));
+
+        // Moving up with COPY_UP repeats the first byte, as a loop would.
+        run(0x1000, 0x1001, 0x10, Blitter.COPY_UP);
+        assertEquals(0x10, bus.read(0x1010));
+    }
+
+    public void testFill() throws Exception {
+        bus.write(BASE + Blitter.FILL_VALUE, 0x20);
+        assertEquals(Blitter.STATUS_DONE, run(0, 0x3000, 0x800, Blitter.FILL));
+        assertEquals(0x20, bus.read(0x3000));
+        assertEquals(0x20, bus.read(0x37ff));
+        assertEquals(0x00, bus.read(0x3800));
+    }
+
+    public void testTransferOffTheMapFails() throws Exception {
+        assertEquals(Blitter.STATUS_DONE | Blitter.STATUS_ERROR, run(0x1000, 0x7f80, 0x100, Blitter.COPY_UP));
+        assertEquals(0, blitter.getBytesMoved());
+    }
+
+    public void testIrqOnCompletion() throws Exception {
+        setWord(Blitter.LENGTH, 0x10);
+        setWord(Blitter.SOURCE, 0x1000);
+        setWord(Blitter.DESTINATION, 0x2000);
+        bus.write(BASE + Blitter.CONTROL, Blitter.COPY_UP | Blitter.CONTROL_IRQ);
+        assertTrue(cpu.getInterruptLines().isIrqAsserted());
+        assertEquals(Blitter.STATUS_DONE, bus.read(BASE + Blitter.CONTROL));
+        assertFalse(cpu.getInterruptLines().isIrqAsserted());
+    }
+
+    public void testGuestProgramScrollsWithOneStore() throws Exception {
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0xa9, 0x00,         // LDA #$00
+                        0x8d, 0x10, 0xa0,   // STA $A010   source low
+                        0x8d, 0x12, 0xa0,   // STA $A012   destination low
+                        0x8d, 0x14, 0xa0,   // STA $A014   length low
+                        0xa9, 0x10,         // LDA #$10
+                        0x8d, 0x11, 0xa0,   // STA $A011   source high
+                        0xa9, 0x40,         // LDA #$40
+                        0x8d, 0x13, 0xa0,   // STA $A013   destination high
+                        0xa9, 0x01,         // LDA #$01
+                        0x8d, 0x15, 0xa0,   // STA $A015   length high
+                        0xa9, 0x00,         // LDA #$00
+                        0x8d, 0x17, 0xa0);  // STA $A017   copy up
+        cpu.step(12);
+        for (int i = 0; i < 0x100; i++) {
+            assertEquals(i, bus.read(0x4000 + i));
+        }
+    }
+
+    private Machine newInterruptingMachine() throws Exception {
+        Machine machine = new SymonMachine(null, true);
+        Bus bus = machine.getBus();
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        machine.getCpu().setProgramCounter(0x0300);
+        bus.loadProgram(0xad, 0x17, 0xa0,   // LDA $A017   (acknowledge)
+                        0x40);              // RTI
+        machine.getCpu().setProgramCounter(0x0200);
+        bus.loadProgram(0x58,               // CLI
+                        0xa9, 0x10,         // LDA #$10
+                        0x8d, 0x14, 0xa0,   // STA $A014   length low
+                        0xa9, 0x80,         // LDA #$80
+                        0x8d, 0x17, 0xa0,   // STA $A017   copy up, IRQ when done
+                        0xea,               // NOP
+                        0xea,               // NOP
+                        0x4c, 0x0b, 0x02);  // JMP $020B
+        return machine;
+    }
+
+    public void testCompletionIrqReplaysAtTheSamePoint() throws Exception {
+        Machine recorded = newInterruptingMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(recorded, log);
+        Cpu recordedCpu = recorded.getCpu();
+        recordedCpu.step(12);
+        recorder.close();
+
+        assertEquals(0, recorder.getEventCount());
+        assertEquals(1, recordedCpu.getIrqCount());
+
+        Machine replayed = newInterruptingMachine();
+        SessionReplayer replayer = new SessionReplayer(replayed, new ByteArrayInputStream(log.toByteArray()));
+        while (!replayer.isFinished()) {
+            replayer.poll();
+            if (!replayer.isFinished()) {
+                replayed.getCpu().step();
+            }
+        }
+
+        Cpu replayedCpu = replayed.getCpu();
+        assertEquals(1, replayedCpu.getIrqCount());
+        assertEquals(recordedCpu.getProgramCounter(), replayedCpu.getProgramCounter());
+        assertEquals(recordedCpu.getStackPointer(), replayedCpu.getStackPointer());
+        for (int addr = 0x01fd; addr <= 0x01ff; addr++) {
+            assertEquals(recorded.getBus().read(addr), replayed.getBus().read(addr));
+        }
+    }
+
+    private static boolean hasBlitter(Bus bus) {
+        for (Device device : bus.getDevices()) {
+            if (device instanceof Blitter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testSymonMachineOnlyMapsBlitterWhenAsked() throws Exception {
+        assertFalse(hasBlitter(new SymonMachine().getBus()));
+        assertTrue(hasBlitter(new SymonMachine(null, true).getBus()));
+    }
+}
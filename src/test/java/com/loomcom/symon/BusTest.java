@@ -135,4 +135,312 @@ public class BusTest extends TestCase {
         assertFalse(c.getCpuState().nmiAsserted);
     }
 
+    public void testHeatmapCountsAccesses() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0xffff));
+
+        MemoryHeatmap heatmap = new MemoryHeatmap(0x10000);
+        b.setHeatmap(heatmap);
+
+        b.write(0x0200, 0xea);
+        b.read(0x0200);
+        b.read(0x0200);
+        b.fetch(0x0200);
+
+        assertEquals(2, heatmap.getReads(0x0200));
+        assertEquals(1, heatmap.getWrites(0x0200));
+        assertEquals(1, heatmap.getExecutes(0x0200));
+        assertEquals(0, heatmap.getReads(0x0201));
+
+        heatmap.decay();
+        assertEquals(1, heatmap.getReads(0x0200));
+        assertEquals(0, heatmap.getWrites(0x0200));
+
+        b.setHeatmap(null);
+        b.read(0x0200);
+        assertEquals(1, heatmap.getReads(0x0200));
+    }
+
+    public void testPeekHasNoSideEffects() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        Acia acia = new Acia6551(0x8800);
+        b.addDevice(acia);
+        MemoryHeatmap heatmap = new MemoryHeatmap(0x10000);
+        b.setHeatmap(heatmap);
+        RecordingObserver observer = new RecordingObserver();
+        b.addObserver(observer);
+
+        b.write(0x0200, 0x5a);
+        assertEquals(0x5a, b.peek(0x0200));
+        assertEquals(0, heatmap.getReads(0x0200));
+        assertEquals("W0200=5A@0 ", observer.log.toString());
+
+        // The ACIA data register would be emptied by a read.
+        acia.rxWrite('a');
+        try {
+            b.peek(0x8800);
+            fail("Should have thrown");
+        } catch (MemoryAccessException ex) {
+        }
+        assertTrue(acia.hasRxChar());
+
+        try {
+            b.peek(0x9000);
+            fail("Should have thrown");
+        } catch (MemoryAccessException ex) {
+        }
+    }
+
+    public void testHeatmapMustCoverBus() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        try {
+            b.setHeatmap(new MemoryHeatmap(0x100));
+            fail("Should not accept a heatmap smaller than the bus");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCpuAccessesLowPagesDirectlyWhenTheyAreRam() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        Memory ram = new Memory(0x0000, 0x7fff);
+        b.addCpu(cpu);
+        b.addDevice(ram);
+        assertSame(ram.getDmaAccess(), b.getLowPages());
+
+        // A heatmap must see every access.
+        b.setHeatmap(new MemoryHeatmap(0x10000));
+        assertNull(b.getLowPages());
+        b.setHeatmap(null);
+        assertSame(ram.getDmaAccess(), b.getLowPages());
+
+        // So must a device mapped over part of the stack.
+        b.addDevice(new Memory(0x0180, 0x01ff), 1);
+        assertNull(b.getLowPages());
+    }
+
+    public void testHigherPriorityDevicesCoverLowerOnes() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Memory overlay = new Memory(0x0000, 0x00ff);
+        Memory ram = new Memory(0x0010, 0x7fff);
+        b.addDevice(overlay, 1);
+        b.addDevice(ram);
+        b.write(0x0010, 0x12);
+        b.write(0x0110, 0x34);
+        assertEquals(0x12, overlay.read(0x0010));
+        assertEquals(0x00, ram.read(0x0000));
+        assertEquals(0x34, ram.read(0x0100));
+
+        b.removeDevice(overlay);
+        b.write(0x0010, 0x56);
+        assertEquals(0x56, ram.read(0x0000));
+    }
+
+    public void testDecodeCacheStaysOffWhenTrackingStops() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.setDecodeCacheEnabled(false);
+        b.setHeatmap(new MemoryHeatmap(0x10000));
+        b.setHeatmap(null);
+        assertFalse(b.getDecodeCache().isEnabled());
+
+        b.setDecodeCacheEnabled(true);
+        assertTrue(b.getDecodeCache().isEnabled());
+        b.setHeatmap(new MemoryHeatmap(0x10000));
+        assertFalse(b.getDecodeCache().isEnabled());
+    }
+
+    public void testDirectLowPageWritesAreTracked() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        b.addCpu(cpu);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setStackPointer(0xff);
+        cpu.setProgramCounter(0x0200);
+        b.loadProgram(0xa9, 0x42,          // LDA #$42
+                      0x85, 0x10,          // STA $10
+                      0x48);               // PHA
+        b.clearDirtyPages();
+        long writes = b.getWriteCount();
+
+        cpu.step(3);
+        assertEquals(0x42, b.read(0x0010));
+        assertEquals(0x42, b.read(0x01ff));
+        assertTrue(b.isPageDirty(0x00));
+        assertTrue(b.isPageDirty(0x01));
+        // Pushes to the stack are not counted as writes.
+        assertEquals(writes + 1, b.getWriteCount());
+    }
+
+    public void testUnmappedAccessThrowsByDefault() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        try {
+            b.read(0x9000);
+            fail("Should have thrown");
+        } catch (MemoryAccessException expected) {
+        }
+        try {
+            b.write(0x9000, 0x12);
+            fail("Should have thrown");
+        } catch (MemoryAccessException expected) {
+        }
+    }
+
+    public void testOpenBusReadsValueAndCountsFaults() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        b.setOpenBus(true);
+        b.setOpenBusValue(0xea);
+
+        final int[] faults = new int[2];
+        b.setFaultListener(new Bus.FaultListener() {
+            public void unmappedRead(int address) {
+                faults[0] = address;
+            }
+
+            public void unmappedWrite(int address, int value) {
+                faults[1] = address;
+            }
+        });
+
+        assertEquals(0xea, b.read(0x9000));
+        assertEquals(0xea, b.fetch(0x9001));
+        b.write(0xa000, 0x12);
+        assertEquals(0xea, b.read(0xa000));
+
+        assertEquals(3, b.getUnmappedReadCount());
+        assertEquals(1, b.getUnmappedWriteCount());
+        assertEquals(0xa000, faults[0]);
+        assertEquals(0xa000, faults[1]);
+    }
+
+    public void testCpuRunsThroughOpenBus() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        b.addCpu(cpu);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        b.setOpenBus(true);
+        b.setOpenBusValue(0xea);                // NOP
+        cpu.setProgramCounter(0x9000);
+        cpu.step(10);
+        assertEquals(0x900a, cpu.getProgramCounter());
+        assertEquals(10, b.getUnmappedReadCount());
+    }
+
+    public void testBlockTransfersSpanDevices() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Memory low = new Memory(0x0000, 0x7fff);
+        Memory high = new Memory(0x8000, 0xffff);
+        b.addDevice(low);
+        b.addDevice(high);
+
+        byte[] data = new byte[0x100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        b.writeBlock(0x7f80, data, 0, data.length);
+        assertEquals(0x7f, low.read(0x7fff));
+        assertEquals(0x80, high.read(0x0000));
+        assertEquals(0xff, b.read(0x807f));
+
+        byte[] copy = new byte[0x104];
+        b.readBlock(0x7f80, copy, 4, 0x100);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], copy[i + 4]);
+        }
+    }
+
+    public void testBlockWriteForgetsCachedInstructions() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        b.addCpu(cpu);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setProgramCounter(0x0300);
+        b.loadProgram(0xa9, 0x11);              // LDA #$11
+        cpu.step();
+        assertEquals(0x11, cpu.getAccumulator());
+
+        b.writeBlock(0x0301, new byte[] {0x22}, 0, 1);
+        cpu.setProgramCounter(0x0300);
+        cpu.step();
+        assertEquals(0x22, cpu.getAccumulator());
+    }
+
+    public void testBlockTransfersOutsideTheBusFail() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        try {
+            b.writeBlock(0xfff0, new byte[0x20], 0, 0x20);
+            fail("Should have thrown");
+        } catch (MemoryAccessException expected) {
+        }
+    }
+
+    public void testBlockWriteToUnmappedAddressesFollowsOpenBus() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        byte[] data = new byte[0x10];
+        try {
+            b.writeBlock(0x7ff8, data, 0, data.length);
+            fail("Should have thrown");
+        } catch (MemoryAccessException expected) {
+        }
+
+        b.setOpenBus(true);
+        b.writeBlock(0x7ff8, data, 0, data.length);
+        assertEquals(8, b.getUnmappedWriteCount());
+    }
+
+    private static class RecordingObserver implements BusObserver {
+        final StringBuilder log = new StringBuilder();
+
+        public void read(int address, int value, long cycle) {
+            log.append(String.format("R%04X=%02X@%d ", address, value, cycle));
+        }
+
+        public void write(int address, int value, long cycle) {
+            log.append(String.format("W%04X=%02X@%d ", address, value, cycle));
+        }
+
+        public void fetch(int address, int value, long cycle) {
+            log.append(String.format("F%04X=%02X@%d ", address, value, cycle));
+        }
+    }
+
+    public void testObserversSeeEveryAccess() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        b.addCpu(cpu);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setProgramCounter(0x0300);
+        b.loadProgram(0xa5, 0x10,           // LDA $10
+                      0x85, 0x11);          // STA $11
+        b.write(0x0010, 0x5a);
+        cpu.step();
+        cpu.step();
+
+        RecordingObserver first = new RecordingObserver();
+        RecordingObserver second = new RecordingObserver();
+        b.addObserver(first);
+        b.addObserver(second);
+        long start = cpu.getCycleCount();
+        cpu.setProgramCounter(0x0300);
+        cpu.step();
+        cpu.step();
+
+        // Even though the zero page and the instructions were cached before.
+        String expected = "F0300=A5@" + start + " R0301=10@" + start + " R0010=5A@" + start +
+                          " F0302=85@" + (start + 3) + " R0303=11@" + (start + 3) +
+                          " W0011=5A@" + (start + 3) + " ";
+        assertEquals(expected, first.log.toString());
+        assertEquals(expected, second.log.toString());
+
+        b.removeObserver(first);
+        b.removeObserver(second);
+        cpu.setProgramCounter(0x0300);
+        cpu.step();
+        assertEquals(expected, first.log.toString());
+        assertNotNull(b.getLowPages());
+    }
 }
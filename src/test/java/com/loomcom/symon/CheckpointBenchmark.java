@@ -0,0 +1,54 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+
+/**
+ * Resetting a checkpoint after touching a few pages should cost much less
+ * than restoring all of RAM. This compares the two and only reports the
+ * timings; it is not run as part of the unit tests.
+ */
+public class CheckpointBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(new Cpu());
+        bus.addDevice(new Memory(0x0000, 0xefff));
+        bus.addDevice(new Memory(0xf000, 0xffff, true));
+
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+        MachineSnapshot full = checkpoint.getBase();
+
+        // Warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            touchPages(bus);
+            checkpoint.reset();
+            full.restore(bus);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            touchPages(bus);
+            checkpoint.reset();
+        }
+        long resetNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            touchPages(bus);
+            full.restore(bus);
+        }
+        long fullNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(String.format("Checkpoint reset with 4 dirty pages: %.2f us, full restore: %.2f us",
+                                         resetNanos / 1000.0, fullNanos / 1000.0));
+    }
+
+    private static void touchPages(Bus bus) throws Exception {
+        bus.write(0x0010, 1);
+        bus.write(0x01ff, 2);
+        bus.write(0x0200, 3);
+        bus.write(0x8000, 4);
+    }
+}
@@ -0,0 +1,175 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import junit.framework.TestCase;
+
+public class Cpu65C02Test extends TestCase {
+
+    protected Cpu    cpu;
+    protected Bus    bus;
+    protected Memory mem;
+
+    protected void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu65C02();
+        this.bus = new Bus(0x0000, 0xffff);
+        this.mem = new Memory(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(mem);
+
+        // Load the reset vector.
+        bus.write(0xfffc, Bus.DEFAULT_LOAD_ADDRESS & 0x00ff);
+        bus.write(0xfffd, (Bus.DEFAULT_LOAD_ADDRESS & 0xff00) >>> 8);
+
+        cpu.reset();
+    }
+
+    public void test_forBehavior() {
+        assertTrue(Cpu.forBehavior(InstructionTable.CpuBehavior.CMOS) instanceof Cpu65C02);
+        assertFalse(Cpu.forBehavior(InstructionTable.CpuBehavior.NMOS_WITH_INDIRECT_JMP_BUG) instanceof Cpu65C02);
+        assertTrue(cpu.isCmos());
+    }
+
+    public void test_SetBehaviorRejectsNmos() {
+        try {
+            cpu.setBehavior(InstructionTable.CpuBehavior.NMOS_WITH_INDIRECT_JMP_BUG);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    public void test_BRA() throws MemoryAccessException {
+        bus.loadProgram(0x80, 0x05); // BRA $05
+        cpu.step();
+        assertEquals(0x207, cpu.getProgramCounter());
+    }
+
+    public void test_STZ() throws MemoryAccessException {
+        bus.write(0x0010, 0xff);
+        bus.write(0x1234, 0xff);
+        bus.loadProgram(0x64, 0x10,       // STZ $10
+                        0x9c, 0x34, 0x12); // STZ $1234
+        cpu.step(2);
+        assertEquals(0x00, bus.read(0x0010));
+        assertEquals(0x00, bus.read(0x1234));
+    }
+
+    public void test_PHX_PLX_PHY_PLY() throws MemoryAccessException {
+        bus.loadProgram(0xa2, 0x80,  // LDX #$80
+                        0xa0, 0x00,  // LDY #$00
+                        0xda,        // PHX
+                        0x5a,        // PHY
+                        0xfa,        // PLX
+                        0x7a);       // PLY
+        cpu.step(6);
+        assertEquals(0x00, cpu.getXRegister());
+        assertEquals(0x80, cpu.getYRegister());
+        assertTrue(cpu.getNegativeFlag());
+        assertFalse(cpu.getZeroFlag());
+        assertEquals(0xff, cpu.getStackPointer());
+    }
+
+    public void test_INC_DEC_Accumulator() throws MemoryAccessException {
+        bus.loadProgram(0xa9, 0xff, // LDA #$ff
+                        0x1a,       // INC A
+                        0x3a);      // DEC A
+        cpu.step(2);
+        assertEquals(0x00, cpu.getAccumulator());
+        assertTrue(cpu.getZeroFlag());
+        cpu.step();
+        assertEquals(0xff, cpu.getAccumulator());
+        assertTrue(cpu.getNegativeFlag());
+    }
+
+    public void test_ZeropageIndirect() throws MemoryAccessException {
+        bus.write(0x0020, 0x00);
+        bus.write(0x0021, 0x30);
+        bus.write(0x3000, 0x42);
+        bus.loadProgram(0xb2, 0x20,  // LDA ($20)
+                        0x1a,        // INC A
+                        0x92, 0x20); // STA ($20)
+        cpu.step(3);
+        assertEquals(0x43, bus.read(0x3000));
+    }
+
+    public void test_TSB_TRB() throws MemoryAccessException {
+        bus.write(0x0010, 0x0f);
+        bus.loadProgram(0xa9, 0x30,  // LDA #$30
+                        0x04, 0x10,  // TSB $10
+                        0xa9, 0x03,  // LDA #$03
+                        0x14, 0x10); // TRB $10
+        cpu.step(2);
+        assertEquals(0x3f, bus.read(0x0010));
+        assertTrue(cpu.getZeroFlag());
+        cpu.step(2);
+        assertEquals(0x3c, bus.read(0x0010));
+        assertFalse(cpu.getZeroFlag());
+    }
+
+    public void test_RMB_SMB_BBR_BBS() throws MemoryAccessException {
+        bus.loadProgram(0x87, 0x10,        // SMB0 $10
+                        0x0f, 0x10, 0x02,  // BBR0 $10,+2 (not taken)
+                        0x8f, 0x10, 0x02,  // BBS0 $10,+2 (taken)
+                        0xea, 0xea,        // NOP NOP
+                        0x07, 0x10);       // RMB0 $10
+        bus.write(0x0010, 0x00);
+        cpu.step(3);
+        assertEquals(0x20a, cpu.getProgramCounter());
+        cpu.step();
+        assertEquals(0x00, bus.read(0x0010));
+    }
+
+    public void test_JMP_AbsoluteIndexedIndirect() throws MemoryAccessException {
+        bus.write(0x3002, 0x00);
+        bus.write(0x3003, 0x40);
+        bus.loadProgram(0xa2, 0x02,        // LDX #$02
+                        0x7c, 0x00, 0x30); // JMP ($3000,X)
+        cpu.step(2);
+        assertEquals(0x4000, cpu.getProgramCounter());
+    }
+
+    public void test_UndefinedOpcodesAreNops() throws MemoryAccessException {
+        bus.loadProgram(0x02, 0x00,        // two byte NOP
+                        0x5c, 0x00, 0x00,  // three byte NOP
+                        0x03);             // one byte NOP
+        cpu.step(3);
+        assertEquals(0x206, cpu.getProgramCounter());
+        assertFalse(cpu.getCpuState().opTrap);
+    }
+
+    public void test_BRK_ClearsDecimalMode() throws MemoryAccessException {
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x40);
+        bus.loadProgram(0xf8,  // SED
+                        0x78,  // SEI
+                        0x00); // BRK
+        cpu.step(3);
+        assertEquals(0x4000, cpu.getProgramCounter());
+        assertFalse(cpu.getDecimalModeFlag());
+    }
+
+    public void test_WAI_WaitsForInterrupt() throws MemoryAccessException {
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x40);
+        bus.loadProgram(0xcb,  // WAI
+                        0xea); // NOP
+        cpu.step();
+        cpu.step();
+        assertEquals(0x201, cpu.getProgramCounter());
+        cpu.assertIrq();
+        cpu.step();
+        assertEquals(0x4000, cpu.getProgramCounter());
+    }
+
+    public void test_STP_StopsUntilReset() throws MemoryAccessException {
+        bus.loadProgram(0xdb,  // STP
+                        0xea); // NOP
+        cpu.step(3);
+        assertEquals(0x201, cpu.getProgramCounter());
+        cpu.reset();
+        cpu.step();
+        assertEquals(0x201, cpu.getProgramCounter());
+    }
+}
@@ -602,4 +602,41 @@ public class CpuTest extends TestCase {
         cpu.step();
         assertEquals(0x3E, cpu.getAccumulator());
     }
-}
\ No newline at end of file
+
+    public void testLazyFlagsMatchEagerFlags() throws Exception {
+        int[] program = {0xa9, 0x80,        // LDA #$80
+                         0x08,              // PHP
+                         0xc9, 0x80,        // CMP #$80
+                         0x69, 0x7f,        // ADC #$7F
+                         0x24, 0x10,        // BIT $10
+                         0xa2, 0x00,        // LDX #$00
+                         0xca,              // DEX
+                         0x28,              // PLP
+                         0xd0, 0x00,        // BNE *+2
+                         0x0a,              // ASL A
+                         0xf8,              // SED
+                         0x69, 0x01,        // ADC #$01
+                         0x08};             // PHP
+
+        cpu.setLazyFlags(false);
+        int[] eager = runAndCollectStatus(program);
+        cpu.setLazyFlags(true);
+        int[] lazy = runAndCollectStatus(program);
+
+        for (int i = 0; i < eager.length; i++) {
+            assertEquals("Status after step " + i, eager[i], lazy[i]);
+        }
+    }
+
+    private int[] runAndCollectStatus(int[] program) throws Exception {
+        bus.write(0x10, 0xc0);
+        cpu.reset();
+        bus.loadProgram(program);
+        int[] status = new int[13];
+        for (int i = 0; i < status.length; i++) {
+            cpu.step();
+            status[i] = cpu.getProcessorStatus();
+        }
+        return status;
+    }
+}
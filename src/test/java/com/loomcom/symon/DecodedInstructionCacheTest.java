@@ -0,0 +1,114 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia6551;
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+public class DecodedInstructionCacheTest extends TestCase {
+
+    private Bus bus;
+    private Cpu cpu;
+    private Memory ram;
+    private DecodedInstructionCache cache;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        ram = new Memory(0x0000, 0x7fff);
+        bus.addCpu(cpu);
+        bus.addDevice(ram);
+        bus.addDevice(new Acia6551(0x8800));
+        cache = bus.getDecodeCache();
+        cpu.setProgramCounter(0x0200);
+    }
+
+    public void testRepeatedCodeComesFromCache() throws Exception {
+        bus.loadProgram(0xe8,               // INX
+                        0x4c, 0x00, 0x02);  // JMP $0200
+        cpu.step(100);
+        assertEquals(2, cache.getMisses());
+        assertEquals(98, cache.getHits());
+        assertEquals(50, cpu.getXRegister());
+        assertEquals(DecodedInstructionCache.pack(0x4c, 0x00, 0x02, 3), cache.get(0x0201));
+    }
+
+    public void testWriteToCachedOperandIsSeen() throws Exception {
+        bus.loadProgram(0xa9, 0x01,         // $0200 LDA #$01
+                        0x8d, 0x01, 0x02);  // $0202 STA $0201
+        cpu.step(2);
+        assertEquals(0x01, cpu.getAccumulator());
+
+        // Change the operand of the LDA, through the bus and directly.
+        bus.write(0x0201, 0x42);
+        cpu.setProgramCounter(0x0200);
+        cpu.step();
+        assertEquals(0x42, cpu.getAccumulator());
+
+        ram.getDmaAccess()[0x0201] = 0x55;
+        bus.markDirty(0x0201, 0x0201);
+        cpu.setProgramCounter(0x0200);
+        cpu.step();
+        assertEquals(0x55, cpu.getAccumulator());
+    }
+
+    public void testSelfModifyingCode() throws Exception {
+        bus.loadProgram(0xee, 0x04, 0x02,   // $0200 INC $0204
+                        0xa9, 0x00,         // $0203 LDA #$00
+                        0x4c, 0x00, 0x02);  // $0205 JMP $0200
+        cpu.step(3 * 10);
+        assertEquals(10, cpu.getAccumulator());
+    }
+
+    public void testDataWritesElsewhereKeepCache() throws Exception {
+        bus.loadProgram(0xe8,               // INX
+                        0x8e, 0x00, 0x40,   // STX $4000
+                        0x4c, 0x00, 0x02);  // JMP $0200
+        cpu.step(30);
+        assertEquals(3, cache.getMisses());
+    }
+
+    public void testIoIsNeverCached() throws Exception {
+        bus.write(0x8800, 0x4c);
+        cpu.setProgramCounter(0x8800);
+        try {
+            cpu.step();
+        } catch (Exception ignored) {
+            // Whatever the ACIA returns is not a useful instruction
+        }
+        assertEquals(0, cache.get(0x8800));
+        assertEquals(0, cache.getMisses());
+    }
+
+    public void testFillInvalidates() throws Exception {
+        bus.loadProgram(0xe8);              // INX
+        cpu.step();
+        assertTrue(cache.get(0x0200) != 0);
+        ram.fill(0xea);
+        assertEquals(0, cache.get(0x0200));
+    }
+
+    public void testHeatmapDisablesCache() throws Exception {
+        bus.setHeatmap(new MemoryHeatmap(0x10000));
+        bus.loadProgram(0xe8,               // INX
+                        0x4c, 0x00, 0x02);  // JMP $0200
+        cpu.step(10);
+        assertEquals(0, cache.getHits());
+        assertEquals(5, bus.getHeatmap().getExecutes(0x0200));
+    }
+
+    public void testCachedInstructionAtTopOfMemoryWrapsPc() throws Exception {
+        bus.addDevice(new Memory(0xc000, 0xffff));
+        bus.write(0xfffe, 0xa9);            // $FFFE LDA #$01
+        bus.write(0xffff, 0x01);
+        bus.write(0x0000, 0xe8);            // $0000 INX
+        for (int i = 0; i < 2; i++) {
+            cpu.setProgramCounter(0xfffe);
+            cpu.step();
+            assertEquals(0x0000, cpu.getProgramCounter());
+            cpu.step();
+            assertEquals(0x0001, cpu.getProgramCounter());
+        }
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cpu.getXRegister());
+    }
+}
@@ -0,0 +1,88 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.DeviceChangeListener;
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+public class DeviceChangeListenerTest extends TestCase {
+
+    private static class CountingListener implements DeviceChangeListener {
+        int calls;
+
+        public void deviceStateChanged() {
+            calls++;
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    private Memory device;
+
+    public void setUp() throws Exception {
+        device = new Memory(0x0000, 0x00ff);
+    }
+
+    public void testSynchronousListenerIsCalledForEveryChange() {
+        CountingListener listener = new CountingListener();
+        device.registerListener(listener);
+        device.registerListener(listener);
+        device.notifyListeners();
+        device.notifyListeners();
+        assertEquals(2, listener.calls);
+
+        device.unregisterListener(listener);
+        device.notifyListeners();
+        assertEquals(2, listener.calls);
+    }
+
+    public void testAsynchronousListenerCoalescesChanges() {
+        CountingListener listener = new CountingListener();
+        QueueExecutor executor = new QueueExecutor();
+        device.registerListener(listener, executor);
+
+        for (int i = 0; i < 100; i++) {
+            device.notifyListeners();
+        }
+        assertEquals(0, listener.calls);
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(1, listener.calls);
+
+        // A change after delivery is delivered again.
+        device.notifyListeners();
+        executor.runAll();
+        assertEquals(2, listener.calls);
+    }
+
+    public void testChangeDuringDeliveryIsNotLost() {
+        final QueueExecutor executor = new QueueExecutor();
+        final int[] calls = new int[1];
+        device.registerListener(new DeviceChangeListener() {
+            public void deviceStateChanged() {
+                if (calls[0]++ == 0) {
+                    device.notifyListeners();
+                }
+            }
+        }, executor);
+
+        device.notifyListeners();
+        executor.runAll();
+        assertEquals(2, calls[0]);
+    }
+}
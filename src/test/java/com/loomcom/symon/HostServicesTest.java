@@ -0,0 +1,181 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.HostServices;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+public class HostServicesTest extends TestCase {
+
+    private static final int BASE = 0xa000;
+
+    private File root;
+    private Bus bus;
+    private HostServices host;
+
+    public void setUp() throws Exception {
+        root = File.createTempFile("host", "");
+        root.delete();
+        root.mkdir();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        host = new HostServices(BASE, root);
+        bus.addDevice(host);
+    }
+
+    public void tearDown() {
+        host.closeAll();
+        for (File f : root.listFiles()) {
+            f.delete();
+        }
+        root.delete();
+    }
+
+    private void setWord(int register, int value) throws Exception {
+        bus.write(BASE + register, value & 0xff);
+        bus.write(BASE + register + 1, value >>> 8);
+    }
+
+    private int getWord(int register) throws Exception {
+        return bus.read(BASE + register) | bus.read(BASE + register + 1) << 8;
+    }
+
+    private int command(int command) throws Exception {
+        bus.write(BASE + HostServices.COMMAND, command);
+        return bus.read(BASE + HostServices.STATUS);
+    }
+
+    private int open(int command, String name) throws Exception {
+        byte[] bytes = (name + "\0").getBytes("US-ASCII");
+        bus.writeBlock(0x0400, bytes, 0, bytes.length);
+        setWord(HostServices.ADDRESS, 0x0400);
+        setWord(HostServices.LENGTH, 0x40);
+        return command(command);
+    }
+
+    public void testReadFileIntoMemory() throws Exception {
+        byte[] data = new byte[0x3000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        FileOutputStream out = new FileOutputStream(new File(root, "data.bin"));
+        out.write(data);
+        out.close();
+
+        assertEquals(HostServices.OK, open(HostServices.OPEN_READ, "data.bin"));
+        setWord(HostServices.ADDRESS, 0x1000);
+        setWord(HostServices.LENGTH, 0x4000);
+        assertEquals(HostServices.OK, command(HostServices.READ));
+        assertEquals(0x3000, getWord(HostServices.TRANSFERRED));
+        assertEquals(0x3000, getWord(HostServices.POSITION));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i] & 0xff, bus.read(0x1000 + i));
+        }
+
+        assertEquals(HostServices.END_OF_FILE, command(HostServices.READ));
+
+        setWord(HostServices.POSITION, 0x0010);
+        assertEquals(HostServices.OK, command(HostServices.SEEK));
+        setWord(HostServices.LENGTH, 1);
+        setWord(HostServices.ADDRESS, 0x0500);
+        assertEquals(HostServices.OK, command(HostServices.READ));
+        assertEquals(data[0x10] & 0xff, bus.read(0x0500));
+
+        assertEquals(HostServices.OK, command(HostServices.CLOSE));
+        assertEquals(HostServices.BAD_HANDLE, command(HostServices.READ));
+        assertEquals(0x3001, host.getBytesTransferred());
+    }
+
+    public void testWriteMemoryToFile() throws Exception {
+        for (int i = 0; i < 0x100; i++) {
+            bus.write(0x2000 + i, i);
+        }
+        assertEquals(HostServices.OK, open(HostServices.OPEN_WRITE, "out.bin"));
+        setWord(HostServices.ADDRESS, 0x2000);
+        setWord(HostServices.LENGTH, 0x100);
+        assertEquals(HostServices.OK, command(HostServices.WRITE));
+        assertEquals(HostServices.OK, command(HostServices.CLOSE));
+
+        File file = new File(root, "out.bin");
+        assertEquals(0x100, file.length());
+        FileInputStream in = new FileInputStream(file);
+        for (int i = 0; i < 0x100; i++) {
+            assertEquals(i, in.read());
+        }
+        in.close();
+    }
+
+    public void testNamesMayNotLeaveTheHostDirectory() throws Exception {
+        assertEquals(HostServices.BAD_NAME, open(HostServices.OPEN_READ, "../etc/passwd"));
+        assertEquals(HostServices.NOT_FOUND, open(HostServices.OPEN_READ, "missing.bin"));
+        assertEquals(HostServices.BAD_COMMAND, command(0x7f));
+    }
+
+    public void testReadIntoUnmappedMemoryFails() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(root, "data.bin"));
+        out.write(new byte[0x100]);
+        out.close();
+
+        assertEquals(HostServices.OK, open(HostServices.OPEN_READ, "data.bin"));
+        setWord(HostServices.ADDRESS, 0x7f80);
+        setWord(HostServices.LENGTH, 0x100);
+        assertEquals(HostServices.BAD_ADDRESS, command(HostServices.READ));
+        assertEquals(0, getWord(HostServices.TRANSFERRED));
+
+        // The failed read did not move the file.
+        assertEquals(0, getWord(HostServices.POSITION));
+        setWord(HostServices.ADDRESS, 0x1000);
+        assertEquals(HostServices.OK, command(HostServices.READ));
+        assertEquals(0x100, getWord(HostServices.TRANSFERRED));
+        assertEquals(0x100, getWord(HostServices.POSITION));
+    }
+
+    public void testZeroLengthReadSucceeds() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(root, "data.bin"));
+        out.write(new byte[0x10]);
+        out.close();
+
+        assertEquals(HostServices.OK, open(HostServices.OPEN_READ, "data.bin"));
+        setWord(HostServices.ADDRESS, 0x1000);
+        setWord(HostServices.LENGTH, 0);
+        assertEquals(HostServices.OK, command(HostServices.READ));
+        assertEquals(0, getWord(HostServices.TRANSFERRED));
+        assertEquals(0, getWord(HostServices.POSITION));
+    }
+
+    public void testRestoringStateClosesFiles() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(root, "data.bin"));
+        out.write(new byte[0x100]);
+        out.close();
+
+        ByteBuffer state = ByteBuffer.allocate(host.getStateSize());
+        host.saveState(state);
+        assertEquals(HostServices.OK, open(HostServices.OPEN_READ, "data.bin"));
+
+        state.flip();
+        host.restoreState(state);
+        setWord(HostServices.ADDRESS, 0x1000);
+        setWord(HostServices.LENGTH, 0x10);
+        assertEquals(HostServices.BAD_HANDLE, command(HostServices.READ));
+    }
+
+    private static boolean hasHostServices(Bus bus) {
+        for (Device device : bus.getDevices()) {
+            if (device instanceof HostServices) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testSymonMachineOnlyMapsHostServicesWhenAsked() throws Exception {
+        assertFalse(hasHostServices(new SymonMachine().getBus()));
+        assertTrue(hasHostServices(new SymonMachine(root).getBus()));
+    }
+}
@@ -0,0 +1,148 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+public class IdleLoopDetectorTest extends TestCase {
+
+    private Cpu cpu;
+    private Bus bus;
+    private IdleLoopDetector detector;
+
+    public void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        cpu.reset();
+        detector = new IdleLoopDetector(cpu, bus);
+    }
+
+    private boolean runUntilIdle(int maxSteps) throws Exception {
+        for (int i = 0; i < maxSteps; i++) {
+            cpu.step();
+            if (detector.instructionExecuted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testPollingLoopIsIdle() throws Exception {
+        bus.loadProgram(0xa5, 0x10,   // $0200  LDA $10
+                        0x29, 0x08,   // $0202  AND #$08
+                        0xf0, 0xfa);  // $0204  BEQ $0200
+        assertTrue(runUntilIdle(1000));
+    }
+
+    public void testLoopCallingSubroutineIsIdle() throws Exception {
+        bus.loadProgram(0x20, 0x00, 0x03,  // $0200  JSR $0300
+                        0x90, 0xfb);       // $0203  BCC $0200
+        bus.write(0x0300, 0xa5);           // $0300  LDA $10
+        bus.write(0x0301, 0x10);
+        bus.write(0x0302, 0x18);           // $0302  CLC
+        bus.write(0x0303, 0x60);           // $0303  RTS
+        assertTrue(runUntilIdle(2000));
+    }
+
+    public void testLoopWritingMemoryIsNotIdle() throws Exception {
+        bus.loadProgram(0xa5, 0x10,   // $0200  LDA $10
+                        0x85, 0x11,   // $0202  STA $11
+                        0xf0, 0xfa);  // $0204  BEQ $0200
+        assertFalse(runUntilIdle(5000));
+    }
+
+    public void testCountingLoopIsNotIdle() throws Exception {
+        bus.loadProgram(0xca,         // $0200  DEX
+                        0x4c, 0x00, 0x02);  // $0201  JMP $0200
+        assertFalse(runUntilIdle(5000));
+    }
+
+    public void testDisabledDetectorNeverReportsIdle() throws Exception {
+        detector.setEnabled(false);
+        bus.loadProgram(0x4c, 0x00, 0x02);  // $0200  JMP $0200
+        assertFalse(runUntilIdle(1000));
+    }
+
+    public void testParkAdvancesCycleCounter() throws Exception {
+        bus.loadProgram(0x4c, 0x00, 0x02);  // $0200  JMP $0200
+        assertTrue(runUntilIdle(1000));
+        long cycles = cpu.getCycleCount();
+        long parked = detector.park();
+        assertTrue(parked > 0);
+        assertTrue(cpu.getCycleCount() > cycles);
+    }
+
+    public void testParkReturnsEarlyOnActivity() throws Exception {
+        bus.loadProgram(0x4c, 0x00, 0x02);  // $0200  JMP $0200
+        assertTrue(runUntilIdle(1000));
+        bus.signalActivity();
+        // Activity signalled before parking must not be lost.
+        assertTrue(detector.park() < 10000000L);
+    }
+
+    public void testParkSkippedWhileIrqPending() throws Exception {
+        bus.loadProgram(0x4c, 0x00, 0x02);  // $0200  JMP $0200
+        assertTrue(runUntilIdle(1000));
+        cpu.assertIrq();
+        assertEquals(0, detector.park());
+        cpu.clearIrq();
+    }
+
+    public void testParkUntilInterruptOnlyWhileWaiting() throws Exception {
+        assertEquals(0, detector.parkUntilInterrupt());
+    }
+
+    public void testParkUntilInterruptWakesOnIrq() throws Exception {
+        cpu = new Cpu65C02();
+        bus.addCpu(cpu);
+        cpu.reset();
+        detector = new IdleLoopDetector(cpu, bus);
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.loadProgram(0xcb);  // $0200  WAI
+        cpu.step();
+        assertTrue(cpu.isWaitingForInterrupt());
+
+        // Activity left over from the reset must not end the wait early.
+        bus.awaitActivity(0);
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    // ignore
+                }
+                bus.assertIrq();
+            }
+        }.start();
+
+        long parked = 0;
+        while (cpu.isWaitingForInterrupt() && parked < 1000000000L) {
+            parked += detector.parkUntilInterrupt();
+            cpu.step();
+        }
+        assertFalse(cpu.isWaitingForInterrupt());
+        assertEquals(0x0300, cpu.getProgramCounter());
+        assertTrue(parked > 0);
+    }
+
+    public void testParkUntilInterruptSkippedWhileIrqPending() throws Exception {
+        cpu = new Cpu65C02();
+        bus.addCpu(cpu);
+        cpu.reset();
+        detector = new IdleLoopDetector(cpu, bus);
+        bus.loadProgram(0x78,   // $0200  SEI
+                        0xcb,   // $0201  WAI
+                        0xea);  // $0202  NOP
+        cpu.step(2);
+        cpu.assertIrq();
+        // A masked IRQ still ends WAI, without taking the interrupt.
+        assertEquals(0, detector.parkUntilInterrupt());
+        cpu.step();
+        assertEquals(0x0203, cpu.getProgramCounter());
+        cpu.clearIrq();
+    }
+}
@@ -0,0 +1,190 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.loader.*;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ImageLoaderTest extends TestCase {
+
+    private Bus bus;
+    private Memory memory;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        memory = new Memory(0x0000, 0xffff);
+        bus.addDevice(memory);
+    }
+
+    private ImageLoader.Result load(ImageLoader loader, String text) throws Exception {
+        return load(loader, text.getBytes("US-ASCII"));
+    }
+
+    private ImageLoader.Result load(ImageLoader loader, byte[] image) throws Exception {
+        InputStream in = new ByteArrayInputStream(image);
+        return loader.load(in, ImageLoader.busTarget(bus));
+    }
+
+    public void testIntelHexSegmentsAndEntryPoint() throws Exception {
+        ImageLoader.Result result = load(new IntelHexLoader(),
+                ":03030000A9018DC3\n" +
+                ":020303000002F6\n" +
+                ":02100000EAEA1A\n" +
+                ":0400000500000300F4\n" +
+                ":00000001FF\n");
+        assertEquals(0xa9, bus.read(0x0300));
+        assertEquals(0x02, bus.read(0x0304));
+        assertEquals(0xea, bus.read(0x1001));
+        assertEquals(2, result.getSegmentCount());
+        assertEquals(7, result.getByteCount());
+        assertEquals(0x0300, result.getLowAddress());
+        assertEquals(0x1001, result.getHighAddress());
+        assertEquals(0x0300, result.getEntryPoint());
+    }
+
+    public void testIntelHexExtendedLinearAddress() throws Exception {
+        final int[] written = new int[1];
+        ImageLoader.Target target = new ImageLoader.Target() {
+            public void writeBlock(int address, byte[] data, int offset, int length) {
+                written[0] = address;
+            }
+        };
+        new IntelHexLoader().load(new ByteArrayInputStream(
+                (":020000040001F9\n" +
+                 ":01200000AA35\n" +
+                 ":00000001FF\n").getBytes("US-ASCII")), target);
+        assertEquals(0x12000, written[0]);
+    }
+
+    public void testIntelHexBadChecksum() throws Exception {
+        try {
+            load(new IntelHexLoader(), ":03030000A9018DC4\n");
+            fail("Should have thrown");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testSRecords() throws Exception {
+        ImageLoader.Result result = load(new SRecordLoader(),
+                "S00600004844521B\n" +
+                "S1060400A9FF004D\n" +
+                "S2060005008D0067\n" +
+                "S9030400F8\n");
+        assertEquals(0xa9, bus.read(0x0400));
+        assertEquals(0xff, bus.read(0x0401));
+        assertEquals(0x8d, bus.read(0x0500));
+        assertEquals(2, result.getSegmentCount());
+        assertEquals(0x0400, result.getEntryPoint());
+    }
+
+    public void testSRecordZeroEntryPointMeansNone() throws Exception {
+        ImageLoader.Result result = load(new SRecordLoader(),
+                "S1060400A9FF004D\n" +
+                "S9030000FC\n");
+        assertFalse(result.hasEntryPoint());
+        assertEquals(0x0400, result.getStartAddress(0x0300));
+
+        result = load(new SRecordLoader(),
+                "S1040000EA11\n" +
+                "S9030000FC\n");
+        assertEquals(0x0000, result.getEntryPoint());
+    }
+
+    public void testSRecordBadChecksum() throws Exception {
+        try {
+            load(new SRecordLoader(), "S1060400A9FF004E\n");
+            fail("Should have thrown");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testPrg() throws Exception {
+        ImageLoader.Result result = load(new PrgLoader(), new byte[] {0x01, 0x08, 0x0b, 0x08, 0x0a});
+        assertEquals(0x0b, bus.read(0x0801));
+        assertEquals(0x0a, bus.read(0x0803));
+        assertFalse(result.hasEntryPoint());
+        assertEquals(0x0801, result.getStartAddress(0x0300));
+    }
+
+    public void testO65() throws Exception {
+        byte[] image = {
+                0x01, 0x00, 'o', '6', '5', 0x00,    // magic, version
+                0x00, 0x00,                         // mode
+                0x00, 0x20, 0x02, 0x00,             // text at $2000, 2 bytes
+                0x00, 0x30, 0x01, 0x00,             // data at $3000, 1 byte
+                0x00, 0x00, 0x00, 0x00,             // bss
+                0x00, 0x00, 0x00, 0x00,             // zero page
+                0x00, 0x00,                         // stack
+                0x04, 0x00, 'x', 'a',               // an option
+                0x00,                               // end of options
+                (byte) 0xea, 0x60,                  // text
+                0x42,                               // data
+                0x00, 0x00                          // relocation tables, ignored
+        };
+        ImageLoader.Result result = load(new O65Loader(), image);
+        assertEquals(0xea, bus.read(0x2000));
+        assertEquals(0x60, bus.read(0x2001));
+        assertEquals(0x42, bus.read(0x3000));
+        assertEquals(0x2000, result.getEntryPoint());
+    }
+
+    public void testBinaryLoadsAtDefaultAddress() throws Exception {
+        byte[] image = new byte[0x3000];
+        image[0x2fff] = 0x55;
+        ImageLoader.Result result = load(new BinaryLoader(0x1000), image);
+        assertEquals(0x55, bus.read(0x3fff));
+        assertEquals(1, result.getSegmentCount());
+        assertEquals(0x1000, result.getStartAddress(0x0300));
+    }
+
+    public void testEmptyImageStartsAtDefaultAddress() throws Exception {
+        ImageLoader.Result result = load(new BinaryLoader(0x1000), new byte[0]);
+        assertEquals(0, result.getByteCount());
+        assertEquals(0x0300, result.getStartAddress(0x0300));
+    }
+
+    private File tempFile(String name, byte[] contents) throws Exception {
+        File dir = File.createTempFile("images", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents);
+        out.close();
+        return file;
+    }
+
+    public void testBinaryStartingWithColonIsRaw() throws Exception {
+        // DEC A / CLC / ...
+        byte[] image = {0x3a, 0x18, 0x53, 0x31, 0x60};
+        File file = tempFile("prog.bin", image);
+        assertTrue(ImageLoader.forFile(file, 0x0300) instanceof BinaryLoader);
+        ImageLoader.Result result = ImageLoader.load(file, bus, 0x0300);
+        assertEquals(0x3a, bus.read(0x0300));
+        assertEquals(0x60, bus.read(0x0304));
+        assertEquals(5, result.getByteCount());
+
+        assertTrue(ImageLoader.forFile(tempFile("prog.rom", ":00000001FF\n".getBytes("US-ASCII")), 0x0300)
+                   instanceof BinaryLoader);
+    }
+
+    public void testFilesWithoutExtensionAreRecognizedByWholeRecords() throws Exception {
+        assertTrue(ImageLoader.forFile(tempFile("hex", ":03030000A9018DC3\r\n".getBytes("US-ASCII")), 0x0300)
+                   instanceof IntelHexLoader);
+        assertTrue(ImageLoader.forFile(tempFile("srec", "S9030400F8\n".getBytes("US-ASCII")), 0x0300)
+                   instanceof SRecordLoader);
+
+        // The right first bytes, but not a valid record.
+        assertTrue(ImageLoader.forFile(tempFile("raw1", new byte[] {0x3a, 0x18, 0x60}), 0x0300)
+                   instanceof BinaryLoader);
+        assertTrue(ImageLoader.forFile(tempFile("raw2", new byte[] {0x53, 0x31, 0x00, 0x00}), 0x0300)
+                   instanceof BinaryLoader);
+    }
+}
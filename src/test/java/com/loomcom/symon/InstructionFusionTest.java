@@ -0,0 +1,112 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+public class InstructionFusionTest extends TestCase {
+
+    // Copies 256 bytes from $1000 to $2000 through zero page pointers,
+    // adds up a table, and counts a 16-bit value up, over and over.
+    private static final int[] PROGRAM = {
+            0xa9, 0x00,         // $0200 LDA #$00
+            0x85, 0x10,         // $0202 STA $10
+            0x85, 0x12,         // $0204 STA $12
+            0xa9, 0x10,         // $0206 LDA #$10
+            0x85, 0x11,         // $0208 STA $11
+            0xa9, 0x20,         // $020A LDA #$20
+            0x85, 0x13,         // $020C STA $13
+            0xa0, 0x00,         // $020E LDY #$00
+            0xb1, 0x10,         // $0210 LDA ($10),Y
+            0x91, 0x12,         // $0212 STA ($12),Y
+            0x88,               // $0214 DEY
+            0xd0, 0xf9,         // $0215 BNE $0210
+            0xa2, 0x10,         // $0217 LDX #$10
+            0x18,               // $0219 CLC
+            0x7d, 0x00, 0x10,   // $021A ADC $1000,X
+            0xca,               // $021D DEX
+            0xd0, 0xf9,         // $021E BNE $0219
+            0xe6, 0x20,         // $0220 INC $20
+            0xd0, 0x02,         // $0222 BNE $0226
+            0xe6, 0x21,         // $0224 INC $21
+            0x4c, 0x0e, 0x02    // $0226 JMP $020E
+    };
+
+    private Bus newMachine(boolean fusion) throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        for (int i = 0; i < 256; i++) {
+            bus.write(0x1000 + i, (i * 37) & 0xff);
+        }
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(PROGRAM);
+        cpu.setFusionEnabled(fusion);
+        return bus;
+    }
+
+    private void runUntil(Cpu cpu, long instructions) throws Exception {
+        while (cpu.getInstructionCount() < instructions) {
+            cpu.step();
+        }
+    }
+
+    public void testFusedResultsAreIdentical() throws Exception {
+        Bus plain = newMachine(false);
+        Bus fused = newMachine(true);
+
+        for (long n = 1000; n <= 50000; n += 7001) {
+            runUntil(plain.getCpu(), n);
+            runUntil(fused.getCpu(), n);
+            // A fused step may have run one instruction further.
+            if (fused.getCpu().getInstructionCount() > n) {
+                runUntil(plain.getCpu(), fused.getCpu().getInstructionCount());
+            }
+            Cpu a = plain.getCpu();
+            Cpu b = fused.getCpu();
+            assertEquals(a.getInstructionCount(), b.getInstructionCount());
+            assertEquals(a.getCycleCount(), b.getCycleCount());
+            assertEquals(a.getProgramCounter(), b.getProgramCounter());
+            assertEquals(a.getAccumulator(), b.getAccumulator());
+            assertEquals(a.getXRegister(), b.getXRegister());
+            assertEquals(a.getYRegister(), b.getYRegister());
+            assertEquals(a.getProcessorStatus(), b.getProcessorStatus());
+            assertEquals(a.getCpuState().stepCounter, b.getCpuState().stepCounter);
+            for (int addr = 0; addr < 0x3000; addr++) {
+                assertEquals(plain.read(addr), fused.read(addr));
+            }
+        }
+
+        assertEquals(0, plain.getCpu().getFusedCount());
+        assertTrue(fused.getCpu().getFusedCount() > 10000);
+    }
+
+    public void testOnlyIdiomsAreFused() throws Exception {
+        assertTrue(InstructionFusion.canFuse(0xb1, 0x91));  // LDA (zp),Y / STA (zp),Y
+        assertTrue(InstructionFusion.canFuse(0xca, 0xd0));  // DEX / BNE
+        assertTrue(InstructionFusion.canFuse(0x18, 0x69));  // CLC / ADC #
+        assertTrue(InstructionFusion.canFuse(0xe6, 0xd0));  // INC zp / BNE
+        assertFalse(InstructionFusion.canFuse(0xca, 0xf0)); // DEX / BEQ
+        assertFalse(InstructionFusion.canFuse(0xa9, 0x86)); // LDA / STX
+    }
+
+    public void testNothingIsFusedWhileInterruptIsPending() throws Exception {
+        Bus bus = newMachine(true);
+        Cpu cpu = bus.getCpu();
+        cpu.setIrqDisableFlag();
+        cpu.assertIrq();
+        for (int i = 0; i < 1000; i++) {
+            cpu.step();
+        }
+        assertEquals(1000, cpu.getInstructionCount());
+        assertEquals(0, cpu.getFusedCount());
+    }
+
+    public void testNothingIsFusedWhileJournaling() throws Exception {
+        Bus bus = newMachine(true);
+        ReverseJournal journal = new ReverseJournal(bus);
+        bus.getCpu().step(1000);
+        assertEquals(0, bus.getCpu().getFusedCount());
+        assertEquals(1000, journal.getInstructionCount());
+    }
+}
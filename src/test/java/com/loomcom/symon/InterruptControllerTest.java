@@ -0,0 +1,139 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Acia6551;
+import com.loomcom.symon.devices.Blitter;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.InterruptController;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+public class InterruptControllerTest extends TestCase {
+
+    private static final int BASE = 0xa020;
+
+    private Bus bus;
+    private Cpu cpu;
+    private InterruptLines lines;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x9fff));
+        bus.addDevice(new Memory(0xb000, 0xffff));
+        lines = cpu.getInterruptLines();
+        bus.addDevice(new InterruptController(BASE, lines));
+    }
+
+    public void testVectorIsLowestAssertedSourceByDefault() throws Exception {
+        assertEquals(InterruptController.NO_VECTOR, bus.read(BASE + InterruptController.VECTOR));
+        bus.assertIrq(5);
+        bus.assertIrq(3);
+        assertEquals(6, bus.read(BASE + InterruptController.VECTOR));
+        assertEquals(0x28, bus.read(BASE + InterruptController.REQUESTS));
+
+        // One source clearing does not cancel the other.
+        bus.clearIrq(3);
+        assertTrue(lines.isIrqAsserted());
+        assertEquals(10, bus.read(BASE + InterruptController.VECTOR));
+    }
+
+    public void testMaskedSourcesDoNotInterrupt() throws Exception {
+        bus.write(BASE + InterruptController.MASK, 0xf7);
+        bus.assertIrq(3);
+        assertFalse(lines.isIrqAsserted());
+        assertEquals(0x08, bus.read(BASE + InterruptController.REQUESTS));
+        assertEquals(InterruptController.NO_VECTOR, bus.read(BASE + InterruptController.VECTOR));
+
+        bus.write(BASE + InterruptController.MASK, 0xff);
+        assertTrue(lines.isIrqAsserted());
+        assertEquals(6, bus.read(BASE + InterruptController.VECTOR));
+    }
+
+    public void testPriorities() throws Exception {
+        // Source 5 gets priority 4, in the high half of the third byte.
+        bus.write(BASE + InterruptController.PRIORITIES + 2, 0x40);
+        assertEquals(0x40, bus.read(BASE + InterruptController.PRIORITIES + 2));
+        bus.assertIrq(1);
+        bus.assertIrq(5);
+        assertEquals(10, bus.read(BASE + InterruptController.VECTOR));
+    }
+
+    public void testWritingAVectorClearsItsSource() throws Exception {
+        bus.assertIrq(7);
+        bus.write(BASE + InterruptController.VECTOR, 14);
+        assertFalse(lines.isIrqAsserted());
+    }
+
+    public void testHandlerDispatchesThroughTheVector() throws Exception {
+        // Handler: LDX vector / LDA table+1,X / PHA / LDA table,X / PHA / RTS
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x90);
+        cpu.setProgramCounter(0x9000);
+        bus.loadProgram(0xae, 0x24, 0xa0,   // LDX $A024
+                        0xbd, 0x01, 0x91,   // LDA $9101,X
+                        0x48,               // PHA
+                        0xbd, 0x00, 0x91,   // LDA $9100,X
+                        0x48,               // PHA
+                        0x60);              // RTS
+        // Handler for source 2 at $9200, entered through RTS.
+        bus.write(0x9104, 0xff);
+        bus.write(0x9105, 0x91);
+
+        cpu.setProgramCounter(0x0200);
+        cpu.clearIrqDisableFlag();
+        bus.write(0x0200, 0xea);            // NOP
+        bus.assertIrq(2);
+        cpu.step(6);
+        assertEquals(0x9200, cpu.getProgramCounter());
+    }
+
+    public void testAciaAndBlitterAreEachDispatchedThroughTheVector() throws Exception {
+        Acia acia = new Acia6551(0xa000, 2);
+        bus.addDevice(acia);
+        bus.addDevice(new Blitter(0xa010, 1));
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x90);
+        cpu.setProgramCounter(0x9000);
+        bus.loadProgram(0xea,               // NOP
+                        0x40);              // RTI
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0x58,               // CLI
+                        0xea);              // NOP
+        cpu.step();
+
+        acia.write(2, 0x00);                // receive IRQ enabled
+        acia.rxWrite('a');
+        bus.write(0xa014, 0x01);            // one byte
+        bus.write(0xa017, Blitter.CONTROL_IRQ);
+        assertEquals(0x06, bus.read(BASE + InterruptController.REQUESTS));
+
+        // Taking the IRQ does not acknowledge either device.
+        cpu.step();
+        assertEquals(0x9001, cpu.getProgramCounter());
+        assertEquals(2, bus.read(BASE + InterruptController.VECTOR));
+
+        bus.read(0xa017);                   // Blitter status
+        assertEquals(4, bus.read(BASE + InterruptController.VECTOR));
+
+        assertEquals('a', bus.read(0xa000)); // ACIA data
+        assertEquals(InterruptController.NO_VECTOR, bus.read(BASE + InterruptController.VECTOR));
+        assertFalse(lines.isIrqAsserted());
+    }
+
+    private static boolean hasInterruptController(Bus bus) {
+        for (Device device : bus.getDevices()) {
+            if (device instanceof InterruptController) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void testSymonMachineOnlyMapsInterruptControllerWhenAsked() throws Exception {
+        assertFalse(hasInterruptController(new SymonMachine().getBus()));
+        assertTrue(hasInterruptController(new SymonMachine(null, true).getBus()));
+    }
+}
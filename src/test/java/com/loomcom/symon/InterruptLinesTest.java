@@ -0,0 +1,117 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+public class InterruptLinesTest extends TestCase {
+
+    private InterruptLines lines;
+
+    public void setUp() {
+        lines = new InterruptLines();
+    }
+
+    public void testNothingPendingIsZero() {
+        assertEquals(0, lines.get());
+        lines.raiseIrq(3);
+        lines.clearIrq(3);
+        assertEquals(0, lines.get());
+    }
+
+    public void testIrqSourcesAreWiredOr() {
+        lines.raiseIrq(1);
+        lines.raiseIrq(2);
+        lines.clearIrq(1);
+        assertTrue(lines.isIrqAsserted());
+        lines.clearIrq(2);
+        assertFalse(lines.isIrqAsserted());
+    }
+
+    public void testAcknowledgeOnlyReleasesDefaultSource() {
+        lines.raiseIrq(InterruptLines.DEFAULT_SOURCE);
+        lines.acknowledgeIrq();
+        assertFalse(lines.isIrqAsserted());
+
+        lines.raiseIrq(5);
+        lines.acknowledgeIrq();
+        assertTrue(lines.isIrqAsserted());
+    }
+
+    public void testNmiIsEdgeLatched() {
+        lines.raiseNmi(1);
+        assertTrue(lines.isNmiPending());
+        assertTrue(lines.acknowledgeNmi());
+        assertFalse(lines.acknowledgeNmi());
+
+        // Holding the line low, or a second source joining it, is not a new edge.
+        lines.raiseNmi(2);
+        assertFalse(lines.isNmiPending());
+
+        lines.clearNmi(1);
+        lines.clearNmi(2);
+        lines.raiseNmi(2);
+        assertTrue(lines.isNmiPending());
+    }
+
+    public void testNmiStaysLatchedAfterLineIsReleased() {
+        lines.raiseNmi(0);
+        lines.clearNmi(0);
+        assertTrue(lines.isNmiPending());
+        lines.cancelNmi();
+        assertFalse(lines.isNmiPending());
+    }
+
+    public void testInvalidSourceIsRejected() {
+        try {
+            lines.raiseIrq(InterruptLines.SOURCES);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int source = i + 1;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 10000; n++) {
+                        lines.raiseIrq(source);
+                        lines.clearIrq(source);
+                    }
+                    lines.raiseIrq(source);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            lines.clearIrq(i + 1);
+            assertEquals(i < threads.length - 1, lines.isIrqAsserted());
+        }
+    }
+
+    public void testCpuTakesIrqFromAnySource() throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x10);
+        cpu.reset();
+        bus.loadProgram(0xea, 0xea);
+
+        bus.assertIrq(4);
+        cpu.step();
+        assertEquals(0x1001, cpu.getProgramCounter());
+        // The device has not released its line yet.
+        assertTrue(cpu.getCpuState().irqAsserted);
+        bus.clearIrq(4);
+        assertFalse(cpu.getCpuState().irqAsserted);
+    }
+}
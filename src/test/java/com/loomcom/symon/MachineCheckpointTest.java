@@ -0,0 +1,104 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+public class MachineCheckpointTest extends TestCase {
+
+    private Bus bus;
+    private Cpu cpu;
+    private Memory ram;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        ram = new Memory(0x0000, 0xefff);
+        bus.addCpu(cpu);
+        bus.addDevice(ram);
+        bus.addDevice(new Memory(0xf000, 0xffff, true));
+        ram.getDmaAccess()[0x4000] = 0x11;
+        cpu.setProgramCounter(0x0200);
+    }
+
+    public void testBusTracksDirtyPages() throws Exception {
+        bus.clearDirtyPages();
+        bus.write(0x0010, 1);
+        bus.write(0x0011, 1);
+        bus.write(0x3456, 1);
+        assertEquals(2, bus.getDirtyPageCount());
+        assertTrue(bus.isPageDirty(0x00));
+        assertTrue(bus.isPageDirty(0x34));
+        assertFalse(bus.isPageDirty(0x35));
+    }
+
+    public void testDirectChangesMarkPagesDirty() throws Exception {
+        bus.clearDirtyPages();
+        ram.fill(0);
+        assertEquals(0xf0, bus.getDirtyPageCount());
+    }
+
+    public void testResetRestoresDirtyPagesAndRegisters() throws Exception {
+        bus.loadProgram(0xa9, 0x42,         // LDA #$42
+                        0x8d, 0x00, 0x40,   // STA $4000
+                        0x8d, 0x00, 0x90);  // STA $9000
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+
+        cpu.step(3);
+        assertEquals(2, checkpoint.getDirtyPageCount());
+        assertEquals(0x42, bus.read(0x4000));
+
+        checkpoint.reset();
+        assertEquals(0, checkpoint.getDirtyPageCount());
+        assertEquals(0x11, bus.read(0x4000));
+        assertEquals(0x00, bus.read(0x9000));
+        assertEquals(0x0200, cpu.getProgramCounter());
+        assertEquals(0x00, cpu.getAccumulator());
+    }
+
+    public void testDeltaHoldsOnlyDirtyPages() throws Exception {
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+        bus.write(0x1000, 0xaa);
+        bus.write(0x2000, 0xbb);
+        cpu.setAccumulator(0x77);
+
+        MachineCheckpoint.Delta delta = checkpoint.takeDelta();
+        assertEquals(2, delta.getPageCount());
+        assertTrue(delta.getSize() < 4 * Bus.PAGE_SIZE);
+
+        // Change a page in the delta, and one that is not.
+        bus.write(0x1000, 0xcc);
+        bus.write(0x4000, 0xdd);
+        cpu.setAccumulator(0x00);
+
+        checkpoint.restore(delta);
+        assertEquals(0xaa, bus.read(0x1000));
+        assertEquals(0xbb, bus.read(0x2000));
+        assertEquals(0x11, bus.read(0x4000));
+        assertEquals(0x77, cpu.getAccumulator());
+
+        // The pages in the delta are still dirty relative to the checkpoint.
+        assertEquals(2, checkpoint.getDirtyPageCount());
+        checkpoint.reset();
+        assertEquals(0x00, bus.read(0x1000));
+        assertEquals(0x00, bus.read(0x2000));
+    }
+
+    public void testFallsBackToAllPagesIfTrackingIsLost() throws Exception {
+        MachineCheckpoint checkpoint = new MachineCheckpoint(bus);
+        bus.write(0x5000, 0x01);
+        bus.clearDirtyPages();
+        assertEquals(bus.getPageCount(), checkpoint.getDirtyPageCount());
+        checkpoint.reset();
+        assertEquals(0x00, bus.read(0x5000));
+    }
+
+    public void testDeltaFromOtherCheckpointIsRejected() throws Exception {
+        MachineCheckpoint.Delta delta = new MachineCheckpoint(bus).takeDelta();
+        try {
+            new MachineCheckpoint(bus).restore(delta);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
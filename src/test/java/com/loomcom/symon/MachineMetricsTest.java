@@ -0,0 +1,86 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.SimpleMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MachineMetricsTest {
+
+    private SimpleMachine machine;
+    private MachineMetrics metrics;
+
+    @Before
+    public void createMachine() throws Exception {
+        machine = new SimpleMachine();
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0200);
+        metrics = new MachineMetrics(machine);
+    }
+
+    @Test
+    public void shouldCountInstructionsAndCycles() throws Exception {
+        // LDA #$01 ; NOP ; NOP
+        machine.getBus().write(0x0200, 0xa9);
+        machine.getBus().write(0x0201, 0x01);
+        machine.getBus().write(0x0202, 0xea);
+        machine.getBus().write(0x0203, 0xea);
+
+        long instructions = metrics.getInstructionsExecuted();
+        long cycles = metrics.getCyclesEmulated();
+
+        machine.getCpu().step(3);
+
+        assertEquals(instructions + 3, metrics.getInstructionsExecuted());
+        assertEquals(cycles + 6, metrics.getCyclesEmulated());
+    }
+
+    @Test
+    public void shouldEmitNotifications() throws Exception {
+        final List<Notification> received = new ArrayList<Notification>();
+        metrics.addNotificationListener(new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                received.add(notification);
+            }
+        }, null, null);
+
+        metrics.resetPerformed(true);
+        metrics.breakpointHit(0x1234);
+
+        assertEquals(2, received.size());
+        assertEquals(MachineMetrics.RESET_NOTIFICATION, received.get(0).getType());
+        assertEquals(MachineMetrics.BREAKPOINT_NOTIFICATION, received.get(1).getType());
+        assertEquals(0x1234, received.get(1).getUserData());
+        assertTrue(received.get(0).getSequenceNumber() < received.get(1).getSequenceNumber());
+    }
+
+    @Test
+    public void shouldRegisterWithPlatformMBeanServer() throws Exception {
+        metrics.register();
+        try {
+            assertNotNull(metrics.getObjectName());
+            assertEquals("Simple", ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(metrics.getObjectName(), "MachineName"));
+        } finally {
+            metrics.unregister();
+        }
+        assertNull(metrics.getObjectName());
+    }
+
+    @Test
+    public void shouldReportZeroForMissingDevices() {
+        assertEquals(0, metrics.getAciaBytesIn());
+        assertEquals(0, metrics.getAciaBytesOut());
+        assertEquals(0, metrics.getSdSectorsRead());
+        assertEquals(0, metrics.getSdSectorsWritten());
+        assertEquals(0, metrics.getUnmappedReads());
+        assertEquals(0, metrics.getUnmappedWrites());
+    }
+}
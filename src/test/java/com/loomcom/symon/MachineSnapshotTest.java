@@ -0,0 +1,95 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.MulticompMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+public class MachineSnapshotTest extends TestCase {
+
+    private Machine machine;
+    private Bus bus;
+    private Cpu cpu;
+
+    public void setUp() throws Exception {
+        machine = new SymonMachine();
+        bus = machine.getBus();
+        cpu = machine.getCpu();
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        cpu.reset();
+    }
+
+    public void testRestoreUndoesExecution() throws Exception {
+        bus.loadProgram(0xa9, 0x42,        // LDA #$42
+                        0x85, 0x10,        // STA $10
+                        0xa2, 0x80,        // LDX #$80
+                        0x38,              // SEC
+                        0xe6, 0x10,        // INC $10
+                        0x4c, 0x00, 0x02); // JMP $0200
+        cpu.step(4);
+        Acia acia = machine.getAcia();
+        acia.rxWrite('A');
+        cpu.assertIrq();
+
+        MachineSnapshot snapshot = MachineSnapshot.take(machine);
+        int status = cpu.getProcessorStatus();
+
+        cpu.step(20);
+        acia.rxRead();
+        bus.write(0x1234, 0x55);
+        cpu.clearIrq();
+
+        snapshot.restore(machine);
+
+        assertEquals(0x0207, cpu.getProgramCounter());
+        assertEquals(0x42, cpu.getAccumulator());
+        assertEquals(0x80, cpu.getXRegister());
+        assertEquals(status, cpu.getProcessorStatus());
+        assertEquals(0x42, bus.read(0x0010));
+        assertEquals(0x00, bus.read(0x1234));
+        assertTrue(acia.hasRxChar());
+        assertTrue(cpu.getCpuState().irqAsserted);
+    }
+
+    public void testImageRoundTrip() throws Exception {
+        bus.write(0x3000, 0x99);
+        byte[] image = MachineSnapshot.take(machine).toByteArray();
+        bus.write(0x3000, 0x00);
+
+        MachineSnapshot.fromByteArray(image).restore(machine);
+        assertEquals(0x99, bus.read(0x3000));
+    }
+
+    public void testSnapshotOfOtherMachineIsRejected() throws Exception {
+        MachineSnapshot snapshot = MachineSnapshot.take(new MulticompMachine());
+        bus.write(0x3000, 0x99);
+        try {
+            snapshot.restore(machine);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        // Nothing was changed by the failed restore.
+        assertEquals(0x99, bus.read(0x3000));
+    }
+
+    public void testGarbageIsRejected() throws Exception {
+        try {
+            MachineSnapshot.fromByteArray(new byte[100]).restore(machine);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    public void testMulticompRoundTrip() throws Exception {
+        Machine multicomp = new MulticompMachine();
+        multicomp.getBus().write(0x0100, 0x12);
+        MachineSnapshot snapshot = MachineSnapshot.take(multicomp);
+        multicomp.getBus().write(0x0100, 0x34);
+        snapshot.restore(multicomp);
+        assertEquals(0x12, multicomp.getBus().read(0x0100));
+    }
+}
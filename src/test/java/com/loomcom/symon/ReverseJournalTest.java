@@ -0,0 +1,170 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class ReverseJournalTest extends TestCase {
+
+    private Bus bus;
+    private Cpu cpu;
+    private Memory ram;
+
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        ram = new Memory(0x0000, 0xefff);
+        bus.addCpu(cpu);
+        bus.addDevice(ram);
+        bus.addDevice(new Memory(0xf000, 0xffff, true));
+        cpu.setProgramCounter(0x0200);
+        bus.loadProgram(0xa2, 0x00,         // $0200  LDX #$00
+                        0xe8,               // $0202  INX
+                        0x86, 0x10,         // $0203  STX $10
+                        0x8a,               // $0205  TXA
+                        0x9d, 0x00, 0x20,   // $0206  STA $2000,X
+                        0x20, 0x10, 0x02,   // $0209  JSR $0210
+                        0x4c, 0x02, 0x02,   // $020C  JMP $0202
+                        0xea,               // $020F  NOP
+                        0x60);              // $0210  RTS
+    }
+
+    private byte[] ramContents() {
+        return Arrays.copyOf(ram.getDmaAccess(), ram.getDmaAccess().length);
+    }
+
+    public void testStepBackRestoresRegistersAndMemory() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(20);
+        Cpu.CpuState before = new Cpu.CpuState(cpu.getCpuState());
+        byte[] memory = ramContents();
+
+        cpu.step(37);
+        assertEquals(37, journal.stepBack(37));
+
+        Cpu.CpuState after = cpu.getCpuState();
+        assertEquals(before.pc, after.pc);
+        assertEquals(before.a, after.a);
+        assertEquals(before.x, after.x);
+        assertEquals(before.sp, after.sp);
+        assertEquals(before.getStatusFlag(), after.getStatusFlag());
+        assertEquals(before.stepCounter, after.stepCounter);
+        assertTrue(Arrays.equals(memory, ramContents()));
+    }
+
+    public void testRunningForwardAgainAfterSteppingBack() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(100);
+        byte[] memory = ramContents();
+        int pc = cpu.getProgramCounter();
+
+        journal.stepBack(40);
+        cpu.step(40);
+        assertEquals(pc, cpu.getProgramCounter());
+        assertTrue(Arrays.equals(memory, ramContents()));
+        assertEquals(100, journal.getInstructionCount());
+    }
+
+    public void testStepBackCannotGoPastStartOfJournal() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(5);
+        assertEquals(5, journal.stepBack(10));
+        assertEquals(0x0200, cpu.getProgramCounter());
+        assertEquals(0, journal.stepBack(1));
+    }
+
+    public void testLongStepBackUsesSnapshots() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus, ReverseJournal.DEFAULT_BUDGET, 1000);
+        cpu.step(1000);
+        byte[] memory = ramContents();
+        int x = cpu.getXRegister();
+
+        cpu.step(20000);
+        assertTrue(journal.getCheckpointCount() > 0);
+        assertEquals(20000, journal.stepBack(20000));
+        assertEquals(x, cpu.getXRegister());
+        assertTrue(Arrays.equals(memory, ramContents()));
+    }
+
+    public void testStepBackRestoresCycleCount() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus, ReverseJournal.DEFAULT_BUDGET, 1000);
+        cpu.step(1000);
+        long cycles = cpu.getCycleCount();
+
+        cpu.step(20);
+        journal.stepBack(20);
+        assertEquals(cycles, cpu.getCycleCount());
+
+        // Through a snapshot, with nothing left to undo after it.
+        cpu.step(5000);
+        journal.stepBack(5000);
+        assertEquals(cycles, cpu.getCycleCount());
+    }
+
+    public void testStepBackUndoesInterruptAcknowledgement() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.clearIrqDisableFlag();
+        cpu.step(3);
+        int pc = cpu.getProgramCounter();
+        int sp = cpu.getStackPointer();
+        byte[] memory = ramContents();
+
+        bus.assertIrq();
+        cpu.step();
+        assertEquals(1, cpu.getIrqCount());
+        assertFalse(cpu.getInterruptLines().isIrqAsserted());
+
+        journal.stepBack(1);
+        assertTrue(cpu.getInterruptLines().isIrqAsserted());
+        assertEquals(pc, cpu.getProgramCounter());
+        assertEquals(sp, cpu.getStackPointer());
+        assertTrue(Arrays.equals(memory, ramContents()));
+    }
+
+    public void testReverseContinueStopsAtBreakpoint() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(50);
+        journal.setBreakpoint(0x0210, true);
+
+        assertTrue(journal.reverseContinue() > 0);
+        assertEquals(0x0210, cpu.getProgramCounter());
+        long undone = journal.reverseContinue();
+        assertEquals(0x0210, cpu.getProgramCounter());
+        assertEquals(7, undone);
+    }
+
+    public void testReverseContinueStopsAtWatchpoint() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        cpu.step(50);
+        journal.setWatchpoint(0x2003, true);
+
+        journal.reverseContinue();
+        // Just before X was stored at $2003
+        assertEquals(0x0206, cpu.getProgramCounter());
+        assertEquals(3, cpu.getXRegister());
+        assertEquals(0, bus.read(0x2003));
+    }
+
+    public void testJournalStaysWithinBudget() throws Exception {
+        long budget = 256 * 1024;
+        ReverseJournal journal = new ReverseJournal(bus, budget, 10000);
+        cpu.step(200000);
+        assertTrue(journal.getMemoryUsed() <= budget);
+        assertTrue(journal.getInstructionCount() < 200000);
+
+        // The newest instructions can still be undone.
+        long count = journal.getInstructionCount();
+        assertEquals(count, journal.stepBack(count));
+        assertEquals(0, journal.getInstructionCount());
+    }
+
+    public void testCloseDetaches() throws Exception {
+        ReverseJournal journal = new ReverseJournal(bus);
+        assertSame(journal, bus.getReverseJournal());
+        journal.close();
+        assertNull(bus.getReverseJournal());
+        cpu.step(10);
+        assertEquals(0, journal.getInstructionCount());
+    }
+}
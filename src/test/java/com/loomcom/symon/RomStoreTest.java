@@ -0,0 +1,106 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.RomStore;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class RomStoreTest extends TestCase {
+
+    private File romFile;
+
+    public void setUp() throws Exception {
+        RomStore.clear();
+        romFile = writeRom(0x42);
+    }
+
+    public void tearDown() {
+        romFile.delete();
+        RomStore.clear();
+    }
+
+    private File writeRom(int fill) throws Exception {
+        File file = File.createTempFile("rom", ".bin");
+        byte[] image = new byte[0x2000];
+        java.util.Arrays.fill(image, (byte) fill);
+        image[0x1ffc] = 0x00;
+        image[0x1ffd] = (byte) 0xe0;
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(image);
+        out.close();
+        return file;
+    }
+
+    public void testMachinesShareOneImage() throws Exception {
+        long reads = RomStore.getFileReads();
+        Memory a = Memory.makeROM(0xe000, 0xffff, romFile);
+        Memory b = Memory.makeROM(0xe000, 0xffff, romFile);
+        assertSame(a.getDmaAccess(), b.getDmaAccess());
+        assertTrue(a.isShared());
+        assertEquals(reads + 1, RomStore.getFileReads());
+        assertEquals(0x42, a.read(0x0000));
+        assertEquals(0xe0, b.read(0x1ffd));
+    }
+
+    public void testFilesWithTheSameContentsShareOneImage() throws Exception {
+        File copy = writeRom(0x42);
+        try {
+            Memory a = Memory.makeROM(0xe000, 0xffff, romFile);
+            Memory b = Memory.makeROM(0xe000, 0xffff, copy);
+            assertSame(a.getDmaAccess(), b.getDmaAccess());
+            assertEquals(1, RomStore.getImageCount());
+        } finally {
+            copy.delete();
+        }
+    }
+
+    public void testWritesThroughTheBusAreRejected() throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addDevice(new Memory(0x0000, 0xdfff));
+        bus.addDevice(Memory.makeROM(0xe000, 0xffff, romFile));
+        try {
+            bus.write(0xe000, 0x00);
+            fail("Should have thrown");
+        } catch (MemoryAccessException expected) {
+        }
+        assertEquals(0x42, bus.read(0xe000));
+    }
+
+    public void testChangingOneRomLeavesTheOthersAlone() throws Exception {
+        Memory a = Memory.makeROM(0xe000, 0xffff, romFile);
+        Memory b = Memory.makeROM(0xe000, 0xffff, romFile);
+        a.fill(0x11);
+        assertFalse(a.isShared());
+        assertEquals(0x11, a.read(0x0000));
+        assertEquals(0x42, b.read(0x0000));
+    }
+
+    public void testLoadingAShortFileKeepsTheRestOfTheImage() throws Exception {
+        Memory a = Memory.makeROM(0xe000, 0xffff, romFile);
+        File patch = File.createTempFile("patch", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(patch);
+            out.write(new byte[] {0x11, 0x22});
+            out.close();
+            a.loadFromFile(patch);
+        } finally {
+            patch.delete();
+        }
+        assertFalse(a.isShared());
+        assertEquals(0x22, a.read(0x0001));
+        assertEquals(0x42, a.read(0x0002));
+        assertEquals(0xe0, a.read(0x1ffd));
+    }
+
+    public void testOversizedFileIsRejected() throws Exception {
+        try {
+            Memory.makeROM(0xf000, 0xffff, romFile);
+            fail("Should have thrown");
+        } catch (MemoryRangeException expected) {
+        }
+    }
+}
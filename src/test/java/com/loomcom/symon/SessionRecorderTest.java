@@ -0,0 +1,220 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+public class SessionRecorderTest extends TestCase {
+
+    // Copies every byte received by the ACIA to $0300,X
+    private static final int[] ECHO_PROGRAM = {
+            0x78,               // SEI
+            0xa2, 0x00,         // LDX #$00
+            0xad, 0x01, 0x88,   // LDA $8801   (status)
+            0x29, 0x08,         // AND #$08    (receive register full)
+            0xf0, 0xf9,         // BEQ -7
+            0xad, 0x00, 0x88,   // LDA $8800   (data)
+            0x9d, 0x00, 0x03,   // STA $0300,X
+            0xe8,               // INX
+            0x4c, 0x03, 0x02    // JMP $0203
+    };
+
+    private Machine newMachine() throws Exception {
+        Machine machine = new SymonMachine();
+        machine.getCpu().setProgramCounter(0x0200);
+        machine.getBus().loadProgram(ECHO_PROGRAM);
+        return machine;
+    }
+
+    public void testReplayReproducesSession() throws Exception {
+        Machine recorded = newMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(recorded, log);
+        Cpu cpu = recorded.getCpu();
+
+        cpu.step(50);
+        recorded.getAcia().rxWrite('H');
+        cpu.step(37);
+        recorded.getAcia().rxWrite('i');
+        recorded.getBus().injectIrq(3);
+        cpu.step(23);
+        recorded.getBus().retractIrq(3);
+        cpu.step(11);
+        recorder.close();
+
+        assertEquals(4, recorder.getEventCount());
+        assertNull(recorded.getBus().getSessionRecorder());
+        assertEquals('H', recorded.getBus().read(0x0300));
+        assertEquals('i', recorded.getBus().read(0x0301));
+
+        // Replay onto a machine that has gone its own way since.
+        Machine replayed = newMachine();
+        replayed.getCpu().step(1000);
+        replayed.getBus().write(0x0300, 0xff);
+        SessionReplayer replayer = new SessionReplayer(replayed, new ByteArrayInputStream(log.toByteArray()));
+        assertSame(replayer, replayed.getBus().getSessionReplayer());
+
+        boolean irqSeen = false;
+        while (!replayer.isFinished()) {
+            replayer.poll();
+            irqSeen |= replayed.getCpu().getInterruptLines().isIrqAsserted();
+            if (!replayer.isFinished()) {
+                replayed.getCpu().step();
+            }
+        }
+
+        assertTrue(irqSeen);
+        assertEquals(4, replayer.getEventCount());
+        assertNull(replayed.getBus().getSessionReplayer());
+        assertEquals(cpu.getProgramCounter(), replayed.getCpu().getProgramCounter());
+        assertEquals(cpu.getAccumulator(), replayed.getCpu().getAccumulator());
+        assertEquals(cpu.getXRegister(), replayed.getCpu().getXRegister());
+        assertEquals(cpu.getProcessorStatus(), replayed.getCpu().getProcessorStatus());
+        assertEquals(cpu.getInterruptLines().get(), replayed.getCpu().getInterruptLines().get());
+        for (int addr = 0x0000; addr < 0x8000; addr++) {
+            assertEquals(recorded.getBus().read(addr), replayed.getBus().read(addr));
+        }
+    }
+
+    /**
+     * Raises IRQ source 6 when written, and clears it when read.
+     */
+    private static class Doorbell extends Device {
+        Doorbell() throws MemoryRangeException {
+            super(0xb000, 0xb00f, "Doorbell");
+        }
+
+        public void write(int address, int data) {
+            getBus().assertIrq(6);
+        }
+
+        public int read(int address) {
+            getBus().clearIrq(6);
+            return 0;
+        }
+
+        public String toString() {
+            return "Doorbell";
+        }
+    }
+
+    private Machine newDoorbellMachine() throws Exception {
+        Machine machine = new SymonMachine();
+        machine.getBus().addDevice(new Doorbell());
+        Bus bus = machine.getBus();
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        machine.getCpu().setProgramCounter(0x0300);
+        bus.loadProgram(0xad, 0x00, 0xb0,   // LDA $B000   (acknowledge)
+                        0x40);              // RTI
+        machine.getCpu().setProgramCounter(0x0200);
+        bus.loadProgram(0x58,               // CLI
+                        0xe8,               // INX
+                        0x8e, 0x00, 0xb0,   // STX $B000   (ring)
+                        0xea,               // NOP
+                        0x4c, 0x01, 0x02);  // JMP $0201
+        return machine;
+    }
+
+    public void testDeviceInterruptsAreReplayedAtTheSamePoint() throws Exception {
+        Machine recorded = newDoorbellMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(recorded, log);
+        Cpu cpu = recorded.getCpu();
+        cpu.step(101);
+        recorded.getAcia().rxWrite('x');
+        cpu.step(53);
+        recorder.close();
+
+        // Only the serial input is an event; the doorbell raises its own line.
+        assertEquals(1, recorder.getEventCount());
+        assertTrue(cpu.getIrqCount() > 10);
+
+        Machine replayed = newDoorbellMachine();
+        SessionReplayer replayer = new SessionReplayer(replayed, new ByteArrayInputStream(log.toByteArray()));
+        while (!replayer.isFinished()) {
+            replayer.poll();
+            if (!replayer.isFinished()) {
+                replayed.getCpu().step();
+            }
+        }
+
+        assertEquals(cpu.getProgramCounter(), replayed.getCpu().getProgramCounter());
+        assertEquals(cpu.getStackPointer(), replayed.getCpu().getStackPointer());
+        assertEquals(cpu.getXRegister(), replayed.getCpu().getXRegister());
+        assertEquals(cpu.getProcessorStatus(), replayed.getCpu().getProcessorStatus());
+        assertEquals(cpu.getCycleCount(), replayed.getCpu().getCycleCount());
+        for (int addr = 0x0100; addr < 0x0200; addr++) {
+            assertEquals(recorded.getBus().read(addr), replayed.getBus().read(addr));
+        }
+    }
+
+    public void testReplayClearsTheReverseJournal() throws Exception {
+        Machine recorded = newMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(recorded, log);
+        recorded.getCpu().step(20);
+        recorder.close();
+
+        Machine replayed = newMachine();
+        ReverseJournal journal = new ReverseJournal(replayed.getBus());
+        replayed.getCpu().step(100);
+        assertEquals(100, journal.getInstructionCount());
+
+        new SessionReplayer(replayed, new ByteArrayInputStream(log.toByteArray()));
+        assertEquals(0, journal.getInstructionCount());
+        assertEquals(0, journal.stepBack(1));
+        journal.close();
+    }
+
+    public void testLogGrowsOnlyWithInput() throws Exception {
+        Machine machine = newMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(machine, log);
+        int header = MachineSnapshot.take(machine).getSize() + 12;
+
+        machine.getCpu().step(100000);
+        machine.getAcia().rxWrite('x');
+        machine.getCpu().step(100000);
+        recorder.close();
+
+        // Two events, each a short cycle delta and a type byte, one with a payload.
+        assertTrue(log.size() - header < 12);
+    }
+
+    public void testCannotRecordWhileReplaying() throws Exception {
+        Machine machine = newMachine();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        new SessionRecorder(machine, log).close();
+        new SessionReplayer(machine, new ByteArrayInputStream(log.toByteArray()));
+        try {
+            new SessionRecorder(machine, new ByteArrayOutputStream());
+            fail("Should not be able to record while replaying");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+    }
+
+    public void testVarLongRoundTrip() throws Exception {
+        long[] values = {0, 1, 127, 128, 16383, 16384, 1L << 40, Long.MAX_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            SessionRecorder.writeVarLong(out, value);
+        }
+        out.close();
+        assertEquals(1 + 1 + 1 + 2 + 2 + 3 + 6 + 9, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, SessionReplayer.readVarLong(in));
+        }
+    }
+}
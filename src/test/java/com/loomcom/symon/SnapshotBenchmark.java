@@ -0,0 +1,39 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SymonMachine;
+
+/**
+ * Checkpointing is meant to be cheap enough to do thousands of times, so
+ * this keeps an eye on how long a 64K machine takes to save and restore.
+ * It only reports timings and is not run as part of the unit tests.
+ */
+public class SnapshotBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        Machine machine = new SymonMachine();
+        MachineSnapshot snapshot = MachineSnapshot.take(machine);
+
+        // Warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            MachineSnapshot.take(machine).restore(machine);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            snapshot = MachineSnapshot.take(machine);
+        }
+        long takeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            snapshot.restore(machine);
+        }
+        long restoreNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(String.format("Snapshot of %d bytes: take %.1f us, restore %.1f us",
+                                         snapshot.getSize(), takeNanos / 1000.0, restoreNanos / 1000.0));
+    }
+}